@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.hibernation
+
+import android.os.UserHandle
+import android.util.AtomicFile
+import android.util.Log
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Persisted verdicts of [isPackageHibernationExemptBySystem] from previous hibernation runs, so
+ * that later runs only re-evaluate the packages whose exemption inputs changed.
+ *
+ * Each verdict is stored along with a hash of the inputs it was computed from, and is only reused
+ * if the hash is unchanged and the verdict is not older than [MAX_VERDICT_AGE_MS]. The age limit
+ * bounds how long a change to an input that isn't part of the hash, e.g. the carrier privileges
+ * of a package, may go unnoticed.
+ *
+ * This class isn't thread safe.
+ */
+class HibernationExemptionCache(private val file: AtomicFile) {
+
+    private val verdicts = mutableMapOf<Pair<String, UserHandle>, Verdict>()
+
+    private var loaded = false
+
+    /**
+     * Returns the verdict previously computed for the given package and user, or `null` if there
+     * is none that can be reused for the given inputs hash.
+     */
+    fun get(packageName: String, user: UserHandle, inputsHash: Int, now: Long): Boolean? {
+        ensureLoaded()
+        val verdict = verdicts[packageName to user] ?: return null
+        if (verdict.inputsHash != inputsHash ||
+            now - verdict.evaluatedAt !in 0..MAX_VERDICT_AGE_MS) {
+            return null
+        }
+        return verdict.exempt
+    }
+
+    /**
+     * Stores the verdict computed for the given package and user, replacing any previous one.
+     */
+    fun put(packageName: String, user: UserHandle, inputsHash: Int, now: Long, exempt: Boolean) {
+        ensureLoaded()
+        verdicts[packageName to user] = Verdict(inputsHash, now, exempt)
+    }
+
+    /**
+     * Drops the verdicts of all the packages that aren't in the given set, e.g. because they
+     * were uninstalled or are used again.
+     */
+    fun retainAll(packages: Set<Pair<String, UserHandle>>) {
+        ensureLoaded()
+        verdicts.keys.retainAll(packages)
+    }
+
+    /**
+     * Writes the verdicts to disk.
+     */
+    fun write() {
+        ensureLoaded()
+        var out: FileOutputStream? = null
+        try {
+            out = file.startWrite()
+            val dataOut = DataOutputStream(BufferedOutputStream(out))
+            dataOut.writeInt(VERSION)
+            dataOut.writeInt(verdicts.size)
+            for ((key, verdict) in verdicts) {
+                dataOut.writeUTF(key.first)
+                dataOut.writeInt(key.second.identifier)
+                dataOut.writeInt(verdict.inputsHash)
+                dataOut.writeLong(verdict.evaluatedAt)
+                dataOut.writeBoolean(verdict.exempt)
+            }
+            dataOut.flush()
+            file.finishWrite(out)
+        } catch (e: IOException) {
+            Log.e(LOG_TAG, "Failed to write hibernation exemption cache", e)
+            if (out != null) {
+                file.failWrite(out)
+            }
+        }
+    }
+
+    private fun ensureLoaded() {
+        if (loaded) {
+            return
+        }
+        loaded = true
+        try {
+            DataInputStream(BufferedInputStream(file.openRead())).use { dataIn ->
+                if (dataIn.readInt() != VERSION) {
+                    return
+                }
+                val count = dataIn.readInt()
+                for (i in 0 until count) {
+                    val packageName = dataIn.readUTF()
+                    val user = UserHandle.of(dataIn.readInt())
+                    val inputsHash = dataIn.readInt()
+                    val evaluatedAt = dataIn.readLong()
+                    val exempt = dataIn.readBoolean()
+                    verdicts[packageName to user] = Verdict(inputsHash, evaluatedAt, exempt)
+                }
+            }
+        } catch (e: FileNotFoundException) {
+            // Nothing was cached yet
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Failed to read hibernation exemption cache, ignoring it", e)
+            verdicts.clear()
+        }
+    }
+
+    private class Verdict(val inputsHash: Int, val evaluatedAt: Long, val exempt: Boolean)
+
+    companion object {
+        private const val LOG_TAG = "HibernationExemptionCache"
+
+        private const val FILE_NAME = "hibernation_exemption_cache"
+
+        private const val VERSION = 1
+
+        /**
+         * Max age of a verdict before it is re-evaluated even if its inputs hash is unchanged.
+         */
+        val MAX_VERDICT_AGE_MS = TimeUnit.DAYS.toMillis(30)
+
+        /**
+         * Returns the cache stored in the given files directory.
+         */
+        fun inDirectory(filesDir: File): HibernationExemptionCache =
+            HibernationExemptionCache(AtomicFile(File(filesDir, FILE_NAME)))
+    }
+}
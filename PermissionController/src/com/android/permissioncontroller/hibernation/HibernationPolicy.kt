@@ -76,6 +76,7 @@ import android.util.Log
 import android.view.inputmethod.InputMethod
 import androidx.annotation.MainThread
 import androidx.annotation.RequiresApi
+import androidx.annotation.VisibleForTesting
 import androidx.lifecycle.MutableLiveData
 import androidx.preference.PreferenceManager
 import com.android.modules.utils.build.SdkLevel
@@ -106,10 +107,12 @@ import com.android.permissioncontroller.permission.utils.forEachInParallel
 import java.util.Date
 import java.util.Random
 import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 private const val LOG_TAG = "HibernationPolicy"
 const val DEBUG_OVERRIDE_THRESHOLDS = false
@@ -367,7 +370,12 @@ private suspend fun getAppsToHibernate(
         }
     }
 
-    for ((user, stats) in userStats) {
+    // Index the usage stats by package once, rather than scanning them for every package.
+    val userLastTimePackageUsed = userStats.mapValues { (_, stats) ->
+        stats.lastTimePackageUsedByPackageName()
+    }
+
+    for ((user, lastTimeUsedByPackage) in userLastTimePackageUsed) {
         var unusedUserApps = unusedApps[user] ?: continue
 
         unusedUserApps = unusedUserApps.filter { packageInfo ->
@@ -379,7 +387,7 @@ private suspend fun getAppsToHibernate(
                 Log.wtf(LOG_TAG, "Package $pkgName not among packages for " +
                         "its uid ${packageInfo.uid}: $uidPackages")
             }
-            var lastTimePkgUsed: Long = stats.lastTimePackageUsed(uidPackages)
+            var lastTimePkgUsed: Long = lastTimeUsedByPackage.lastTimePackageUsed(uidPackages)
 
             // Limit by install time
             lastTimePkgUsed = Math.max(lastTimePkgUsed, packageInfo.firstInstallTime)
@@ -389,12 +397,12 @@ private suspend fun getAppsToHibernate(
 
             // Handle cross-profile apps
             if (context.isPackageCrossProfile(pkgName)) {
-                for ((otherUser, otherStats) in userStats) {
+                for ((otherUser, otherLastTimePackageUsed) in userLastTimePackageUsed) {
                     if (otherUser == user) {
                         continue
                     }
                     lastTimePkgUsed =
-                        maxOf(lastTimePkgUsed, otherStats.lastTimePackageUsed(pkgName))
+                        maxOf(lastTimePkgUsed, otherLastTimePackageUsed[pkgName] ?: 0L)
                 }
             }
 
@@ -409,6 +417,7 @@ private suspend fun getAppsToHibernate(
         }
     }
 
+    val exemptionCache = HibernationExemptionCache.inDirectory(context.filesDir)
     val appsToHibernate = mutableMapOf<UserHandle, List<LightPackageInfo>>()
     val userManager = context.getSystemService(UserManager::class.java)
     for ((user, userApps) in unusedApps) {
@@ -416,9 +425,11 @@ private suspend fun getAppsToHibernate(
             DumpableLog.w(LOG_TAG, "Skipping $user - locked direct boot state")
             continue
         }
+        val exemptionInputs = getHibernationExemptionInputs(context, user)
         var userAppsToHibernate = mutableListOf<LightPackageInfo>()
         userApps.forEachInParallel(Main) { pkg: LightPackageInfo ->
-            if (isPackageHibernationExemptBySystem(pkg, user)) {
+            if (isPackageHibernationExemptBySystem(pkg, user, exemptionInputs, exemptionCache,
+                    now)) {
                 return@forEachInParallel
             }
 
@@ -440,7 +451,7 @@ private suspend fun getAppsToHibernate(
 
             if (DEBUG_HIBERNATION_POLICY) {
                 DumpableLog.i(LOG_TAG, "unused app $packageName - last used on " +
-                    userStats[user]?.lastTimePackageUsed(packageName)?.let(::Date))
+                    userLastTimePackageUsed[user]?.get(packageName)?.let(::Date))
             }
 
             synchronized(userAppsToHibernate) {
@@ -449,9 +460,113 @@ private suspend fun getAppsToHibernate(
         }
         appsToHibernate.put(user, userAppsToHibernate)
     }
+
+    // Only keep the verdicts of the packages that are still unused, the other ones will need to be
+    // re-evaluated anyway by the time they become unused again.
+    exemptionCache.retainAll(unusedApps.flatMap { (user, userApps) ->
+        userApps.map { pkg -> pkg.packageName to user }
+    }.toSet())
+    withContext(IO) {
+        exemptionCache.write()
+    }
     return appsToHibernate
 }
 
+/**
+ * Same as [isPackageHibernationExemptBySystem], but reuses the verdict cached in the given
+ * [HibernationExemptionCache] if its inputs didn't change since it was computed.
+ */
+private suspend fun isPackageHibernationExemptBySystem(
+    pkg: LightPackageInfo,
+    user: UserHandle,
+    exemptionInputs: HibernationExemptionInputs,
+    exemptionCache: HibernationExemptionCache,
+    now: Long
+): Boolean {
+    // Carrier privileges can change without any change to the package, e.g. with the SIM card.
+    val carrierPrivilegedStatus = CarrierPrivilegedStatusLiveData[pkg.packageName]
+            .getInitializedValue()
+    val inputsHash = exemptionInputs.getInputsHash(pkg, carrierPrivilegedStatus)
+    synchronized(exemptionCache) {
+        val cachedExempt = exemptionCache.get(pkg.packageName, user, inputsHash, now)
+        if (cachedExempt != null) {
+            return cachedExempt
+        }
+    }
+
+    val exempt = isPackageHibernationExemptBySystem(pkg, user)
+    synchronized(exemptionCache) {
+        exemptionCache.put(pkg.packageName, user, inputsHash, now, exempt)
+    }
+    return exempt
+}
+
+/**
+ * The inputs of [isPackageHibernationExemptBySystem] for a user that can be queried once for all
+ * of its packages, used to detect whether a cached verdict for a package is still valid.
+ *
+ * Inputs that are specific to a package, e.g. its granted permissions, are read from its
+ * [LightPackageInfo], except for its carrier privileged status which is queried separately.
+ */
+private class HibernationExemptionInputs(
+    private val launcherPackages: Set<String>,
+    private val exemptServices: Map<String, List<String>>,
+    private val installerPackages: Set<String>,
+    private val exemptRoleHolders: Set<String>,
+    private val isUserDisabledOrWorkProfile: Boolean,
+    private val isDeviceManaged: Boolean,
+    private val deviceOwnerType: Int
+) {
+    fun getInputsHash(pkg: LightPackageInfo, carrierPrivilegedStatus: Int): Int {
+        val packageName = pkg.packageName
+        return listOf(
+            pkg.uid,
+            pkg.firstInstallTime,
+            pkg.targetSdkVersion,
+            pkg.appFlags,
+            pkg.enabled,
+            pkg.requestedPermissions,
+            pkg.requestedPermissionsFlags,
+            packageName in launcherPackages,
+            exemptServices[packageName].isNullOrEmpty(),
+            packageName in installerPackages,
+            packageName in exemptRoleHolders,
+            carrierPrivilegedStatus,
+            isUserDisabledOrWorkProfile,
+            isDeviceManaged,
+            deviceOwnerType
+        ).hashCode()
+    }
+}
+
+private suspend fun getHibernationExemptionInputs(
+    context: Context,
+    user: UserHandle
+): HibernationExemptionInputs {
+    val roleManager = context.getSystemService(RoleManager::class.java)!!
+    val exemptRoleHolders = mutableSetOf<String>()
+    if (SdkLevel.isAtLeastS()) {
+        exemptRoleHolders.addAll(roleManager.getRoleHolders(RoleManager.ROLE_SYSTEM_WELLBEING))
+    }
+    if (SdkLevel.isAtLeastT()) {
+        exemptRoleHolders.addAll(
+            roleManager.getRoleHolders(RoleManager.ROLE_DEVICE_POLICY_MANAGEMENT))
+    }
+    val installerPackages = if (SdkLevel.isAtLeastS()) {
+        InstallerPackagesLiveData[user].getInitializedValue()
+    } else {
+        emptySet()
+    }
+    return HibernationExemptionInputs(
+        LauncherPackagesLiveData.getInitializedValue(),
+        ExemptServicesLiveData[user].getInitializedValue(),
+        installerPackages,
+        exemptRoleHolders,
+        Utils.isUserDisabledOrWorkProfile(user),
+        context.getSystemService(DevicePolicyManager::class.java)!!.isDeviceManaged,
+        Settings.Global.getInt(context.contentResolver, "device_owner_type", 0))
+}
+
 /**
  * Gets the last time we consider the package used based off its usage stats. On pre-S devices
  * this looks at last time visible which tracks explicit usage. In S, we add component usage
@@ -465,18 +580,29 @@ fun UsageStats.lastTimePackageUsed(): Long {
     return lastTimePkgUsed
 }
 
-private fun List<UsageStats>.lastTimePackageUsed(pkgNames: List<String>): Long {
-    var result = 0L
+/**
+ * Gets the last time each package was used, as returned by [UsageStats.lastTimePackageUsed], by
+ * package name. If there are several usage stats for the same package, the latest time is kept.
+ */
+@VisibleForTesting
+fun List<UsageStats>.lastTimePackageUsedByPackageName(): Map<String, Long> {
+    val result = HashMap<String, Long>(size)
     for (stat in this) {
-        if (stat.packageName in pkgNames) {
-            result = Math.max(result, stat.lastTimePackageUsed())
+        val lastTimePkgUsed = stat.lastTimePackageUsed()
+        val previousLastTimePkgUsed = result[stat.packageName]
+        if (previousLastTimePkgUsed == null || lastTimePkgUsed > previousLastTimePkgUsed) {
+            result[stat.packageName] = lastTimePkgUsed
         }
     }
     return result
 }
 
-private fun List<UsageStats>.lastTimePackageUsed(pkgName: String): Long {
-    return lastTimePackageUsed(listOf(pkgName))
+private fun Map<String, Long>.lastTimePackageUsed(pkgNames: List<String>): Long {
+    var result = 0L
+    for (pkgName in pkgNames) {
+        result = maxOf(result, this[pkgName] ?: 0L)
+    }
+    return result
 }
 
 /**
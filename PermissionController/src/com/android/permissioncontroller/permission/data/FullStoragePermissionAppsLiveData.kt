@@ -110,7 +110,7 @@ object FullStoragePermissionAppsLiveData :
                 packageInfo.uid, packageInfo.packageName)
             val granted = mode == MODE_ALLOWED || mode == MODE_FOREGROUND ||
                 (mode == MODE_DEFAULT &&
-                    MANAGE_EXTERNAL_STORAGE in packageInfo.grantedPermissions)
+                    packageInfo.isPermissionGranted(MANAGE_EXTERNAL_STORAGE))
             return FullStoragePackageState(packageInfo.packageName, user,
                 isLegacy = false, isGranted = granted)
         }
@@ -22,8 +22,10 @@ import android.app.Application
 import android.os.Parcel
 import android.os.Parcelable
 import android.os.UserHandle
-import android.util.Log
+import androidx.annotation.GuardedBy
+import com.android.modules.utils.build.SdkLevel
 import com.android.permissioncontroller.PermissionControllerApplication
+import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
@@ -34,6 +36,10 @@ import kotlinx.coroutines.launch
  *
  * <p>For app-ops with duration the end of the access is considered.
  *
+ * <p>The accesses are cached per package. Once loaded, only the packages reported by the active
+ * and noted app op callbacks are reloaded, at most once per {@link #MIN_UPDATE_INTERVAL_MS}, and
+ * all packages are only reloaded at a low frequency to reconcile accesses that were not reported.
+ *
  * <p>Returns map op-name -> {@link OpAccess}
  *
  * @param app The current application
@@ -45,103 +51,270 @@ class OpUsageLiveData(
     private val opNames: List<String>,
     private val usageDurationMs: Long
 ) : SmartAsyncMediatorLiveData<@JvmSuppressWildcards Map<String, List<OpAccess>>>(),
-        AppOpsManager.OnOpActiveChangedListener {
+        AppOpsManager.OnOpActiveChangedListener, AppOpsManager.OnOpNotedListener {
     private val appOpsManager = app.getSystemService(AppOpsManager::class.java)!!
 
-    override suspend fun loadDataAndPostValue(job: Job) {
-        val now = System.currentTimeMillis()
-        val opMap = mutableMapOf<String, MutableList<OpAccess>>()
+    private val lock = Any()
 
-        val packageOps = try {
-            appOpsManager.getPackagesForOps(opNames.toTypedArray())
-        } catch (e: NullPointerException) {
-            // older builds might not support all the app-ops requested
-            emptyList<AppOpsManager.PackageOps>()
-        }
-        for (packageOp in packageOps) {
-            for (opEntry in packageOp.ops) {
-                for ((attributionTag, attributedOpEntry) in opEntry.attributedOpEntries) {
-                    val user = UserHandle.getUserHandleForUid(packageOp.uid)
-                    val lastAccessTime: Long = attributedOpEntry.getLastAccessTime(
-                            OP_FLAGS_ALL_TRUSTED)
-
-                    if (lastAccessTime == -1L) {
-                        // There was no access, so skip
-                        continue
-                    }
+    /** (uid, package name) -> all the accesses of the package, whether recent or not */
+    @GuardedBy("lock")
+    private val packageAccesses = mutableMapOf<Pair<Int, String>, List<CachedOpAccess>>()
 
-                    var lastAccessDuration = attributedOpEntry.getLastDuration(OP_FLAGS_ALL_TRUSTED)
+    /** The packages to reload on the next update */
+    @GuardedBy("lock")
+    private val dirtyPackages = mutableSetOf<Pair<Int, String>>()
 
-                    // Some accesses have no duration
-                    if (lastAccessDuration == -1L) {
-                        lastAccessDuration = 0
-                    }
+    /** Whether all the packages should be reloaded on the next update */
+    @GuardedBy("lock")
+    private var needsFullReload = true
+
+    @Volatile
+    private var lastFullReloadTime = 0L
+
+    /** The time at which the oldest posted access stops being recent enough */
+    @Volatile
+    private var nextExpiryTime = Long.MAX_VALUE
+
+    /** The next scheduled update, only accessed on the main thread */
+    private var updateJob: Job? = null
+
+    /** The time of [updateJob], only accessed on the main thread */
+    private var updateJobTime = Long.MAX_VALUE
+
+    /** The time of the last scheduled update, only accessed on the main thread */
+    private var lastUpdateTime = 0L
+
+    override suspend fun loadDataAndPostValue(job: Job) {
+        val fullReload: Boolean
+        val packagesToReload: List<Pair<Int, String>>
+        synchronized(lock) {
+            fullReload = needsFullReload
+            needsFullReload = false
+            packagesToReload = dirtyPackages.toList()
+            dirtyPackages.clear()
+        }
 
-                    if (attributedOpEntry.isRunning ||
-                            lastAccessTime + lastAccessDuration > (now - usageDurationMs)) {
-                        val accessList = opMap.getOrPut(opEntry.opStr) { mutableListOf() }
-                        val accessTime = if (attributedOpEntry.isRunning) {
-                            OpAccess.IS_RUNNING
-                        } else {
-                            lastAccessTime
-                        }
-                        val proxy = attributedOpEntry.getLastProxyInfo(OP_FLAGS_ALL_TRUSTED)
-                        var proxyAccess: OpAccess? = null
-                        if (proxy != null && proxy.packageName != null) {
-                            proxyAccess = OpAccess(proxy.packageName!!, proxy.attributionTag,
-                                UserHandle.getUserHandleForUid(proxy.uid), accessTime)
-                        }
-                        accessList.add(OpAccess(packageOp.packageName, attributionTag,
-                            user, accessTime, proxyAccess))
-
-                        // TODO ntmyren: remove logs once b/160724034 is fixed
-                        Log.i("OpUsageLiveData", "adding ${opEntry.opStr} for " +
-                                "${packageOp.packageName}/$attributionTag, access time of " +
-                                "$lastAccessTime, isRunning: ${attributedOpEntry.isRunning} " +
-                                "current time $now, duration $lastAccessDuration, proxy: " +
-                                "${proxy?.packageName}")
+        if (fullReload) {
+            val packageOps = try {
+                appOpsManager.getPackagesForOps(opNames.toTypedArray())
+            } catch (e: NullPointerException) {
+                // older builds might not support all the app-ops requested
+                emptyList<AppOpsManager.PackageOps>()
+            }
+            val accesses = packageOps.associate { packageOp ->
+                (packageOp.uid to packageOp.packageName) to getAccesses(packageOp)
+            }
+            synchronized(lock) {
+                packageAccesses.clear()
+                packageAccesses.putAll(accesses)
+            }
+            lastFullReloadTime = System.currentTimeMillis()
+        } else {
+            for (uidAndPackage in packagesToReload) {
+                val (uid, packageName) = uidAndPackage
+                val packageOps = try {
+                    appOpsManager.getOpsForPackage(uid, packageName, *opNames.toTypedArray())
+                } catch (e: NullPointerException) {
+                    // older builds might not support all the app-ops requested
+                    null
+                } catch (e: IllegalArgumentException) {
+                    // the package was removed
+                    null
+                }
+                val accesses = packageOps?.flatMap { getAccesses(it) }
+                synchronized(lock) {
+                    if (accesses.isNullOrEmpty()) {
+                        packageAccesses.remove(uidAndPackage)
                     } else {
-                        Log.i("OpUsageLiveData", "NOT adding ${opEntry.opStr} for " +
-                                "${packageOp.packageName}/$attributionTag, access time of " +
-                                "$lastAccessTime, isRunning: ${attributedOpEntry.isRunning} " +
-                                "current time $now, duration $lastAccessDuration")
+                        packageAccesses[uidAndPackage] = accesses
                     }
                 }
             }
         }
 
+        val now = System.currentTimeMillis()
+        val opMap = mutableMapOf<String, MutableList<OpAccess>>()
+        var expiryTime = Long.MAX_VALUE
+        synchronized(lock) {
+            for (accesses in packageAccesses.values) {
+                for (access in accesses) {
+                    if (access.endTime <= now - usageDurationMs) {
+                        continue
+                    }
+                    opMap.getOrPut(access.opName) { mutableListOf() }.add(access.access)
+                    if (!access.access.isRunning) {
+                        expiryTime = minOf(expiryTime, access.endTime + usageDurationMs)
+                    }
+                }
+            }
+        }
+        nextExpiryTime = expiryTime
+
         postValue(opMap)
+
+        // The expiry time may have decreased, or the full reload may have moved
+        app.mainExecutor.execute { scheduleReconcile() }
     }
 
-    override fun onActive() {
-        super.onActive()
+    /**
+     * Get all the accesses of a package to the app ops, whether recent or not.
+     */
+    private fun getAccesses(packageOp: AppOpsManager.PackageOps): List<CachedOpAccess> {
+        val accesses = mutableListOf<CachedOpAccess>()
+        val user = UserHandle.getUserHandleForUid(packageOp.uid)
+        for (opEntry in packageOp.ops) {
+            for ((attributionTag, attributedOpEntry) in opEntry.attributedOpEntries) {
+                val lastAccessTime: Long = attributedOpEntry.getLastAccessTime(
+                        OP_FLAGS_ALL_TRUSTED)
+
+                if (lastAccessTime == -1L) {
+                    // There was no access, so skip
+                    continue
+                }
+
+                var lastAccessDuration = attributedOpEntry.getLastDuration(OP_FLAGS_ALL_TRUSTED)
 
-        // appOpsManager.startWatchingNoted() is not exposed, hence force update regularly :-(
-        GlobalScope.launch {
-            while (hasActiveObservers()) {
-                delay(1000)
-                update()
+                // Some accesses have no duration
+                if (lastAccessDuration == -1L) {
+                    lastAccessDuration = 0
+                }
+
+                val accessTime: Long
+                val endTime: Long
+                if (attributedOpEntry.isRunning) {
+                    accessTime = OpAccess.IS_RUNNING
+                    endTime = Long.MAX_VALUE
+                } else {
+                    accessTime = lastAccessTime
+                    endTime = lastAccessTime + lastAccessDuration
+                }
+                val proxy = attributedOpEntry.getLastProxyInfo(OP_FLAGS_ALL_TRUSTED)
+                var proxyAccess: OpAccess? = null
+                if (proxy != null && proxy.packageName != null) {
+                    proxyAccess = OpAccess(proxy.packageName!!, proxy.attributionTag,
+                        UserHandle.getUserHandleForUid(proxy.uid), accessTime)
+                }
+                accesses.add(CachedOpAccess(opEntry.opStr, OpAccess(packageOp.packageName,
+                    attributionTag, user, accessTime, proxyAccess), endTime))
             }
         }
+        return accesses
+    }
+
+    override fun onActive() {
+        // Changes were not tracked while inactive
+        synchronized(lock) {
+            needsFullReload = true
+        }
+
+        // The reconciliation is scheduled once the full reload is done
+        lastUpdateTime = System.currentTimeMillis()
+        super.onActive()
 
         try {
-            appOpsManager.startWatchingActive(opNames.toTypedArray(), { it.run() }, this)
+            appOpsManager.startWatchingActive(opNames.toTypedArray(), app.mainExecutor, this)
         } catch (ignored: IllegalArgumentException) {
             // older builds might not support all the app-ops requested
         }
+
+        if (SdkLevel.isAtLeastS()) {
+            try {
+                appOpsManager.startWatchingNoted(opNames.toTypedArray(), this)
+            } catch (ignored: IllegalArgumentException) {
+                // older builds might not support all the app-ops requested
+            }
+        }
     }
 
     override fun onInactive() {
         super.onInactive()
 
+        updateJob?.cancel()
+        updateJob = null
+        updateJobTime = Long.MAX_VALUE
         appOpsManager.stopWatchingActive(this)
+        if (SdkLevel.isAtLeastS()) {
+            appOpsManager.stopWatchingNoted(this)
+        }
     }
 
     override fun onOpActiveChanged(op: String, uid: Int, packageName: String, active: Boolean) {
-        update()
+        onPackageChanged(uid, packageName)
     }
 
+    override fun onOpNoted(
+        op: String,
+        uid: Int,
+        packageName: String,
+        attributionTag: String?,
+        flags: Int,
+        result: Int
+    ) {
+        if (flags and OP_FLAGS_ALL_TRUSTED == 0) {
+            return
+        }
+        // Noted ops are reported on a binder thread
+        app.mainExecutor.execute { onPackageChanged(uid, packageName) }
+    }
+
+    private fun onPackageChanged(uid: Int, packageName: String) {
+        synchronized(lock) {
+            dirtyPackages.add(uid to packageName)
+        }
+        // Packages changing in a burst are reloaded together
+        scheduleUpdate(maxOf(System.currentTimeMillis(), lastUpdateTime + MIN_UPDATE_INTERVAL_MS))
+    }
+
+    /**
+     * Schedule an update to reconcile the accesses that were not reported, and to drop the ones
+     * that are too old. Must be called on the main thread.
+     */
+    private fun scheduleReconcile() {
+        val reconcileTime = lastFullReloadTime + RECONCILE_INTERVAL_MS
+        scheduleUpdate(maxOf(minOf(reconcileTime, nextExpiryTime),
+            lastUpdateTime + MIN_UPDATE_INTERVAL_MS))
+    }
+
+    /**
+     * Schedule an update at [time], unless one is already scheduled at or before it. Must be
+     * called on the main thread.
+     */
+    private fun scheduleUpdate(time: Long) {
+        if (!hasActiveObservers() || updateJobTime <= time) {
+            return
+        }
+        updateJob?.cancel()
+        updateJobTime = time
+        updateJob = GlobalScope.launch(Main) {
+            delay(time - System.currentTimeMillis())
+            updateJob = null
+            updateJobTime = Long.MAX_VALUE
+            lastUpdateTime = System.currentTimeMillis()
+            if (lastUpdateTime >= lastFullReloadTime + RECONCILE_INTERVAL_MS) {
+                synchronized(lock) {
+                    needsFullReload = true
+                }
+            }
+            update()
+        }
+    }
+
+    /**
+     * An access of a package to an app op.
+     *
+     * @param opName The name of the app op
+     * @param access The access, as posted
+     * @param endTime When the access ended, or {@code Long.MAX_VALUE} if it is running
+     */
+    private class CachedOpAccess(val opName: String, val access: OpAccess, val endTime: Long)
+
     companion object : DataRepository<Pair<List<String>, Long>, OpUsageLiveData>() {
+        /** How often all the packages are reloaded while active */
+        private const val RECONCILE_INTERVAL_MS = 30 * 1000L
+
+        /** The minimum delay between two updates, whether triggered by a callback or not */
+        private const val MIN_UPDATE_INTERVAL_MS = 1000L
+
         override fun newValue(key: Pair<List<String>, Long>): OpUsageLiveData {
             return OpUsageLiveData(PermissionControllerApplication.get(), key.first, key.second)
         }
@@ -157,6 +157,7 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
             // Invalidate all livedatas associated with this package
             LightPackageInfoLiveData.invalidateAllForPackage(packageName)
             PermStateLiveData.invalidateAllForPackage(packageName)
+            PackagePermissionFlagsLoader.invalidatePackage(packageName)
             PackagePermissionsLiveData.invalidateAllForPackage(packageName)
             HibernationSettingStateLiveData.invalidateAllForPackage(packageName)
             LightAppPermGroupLiveData.invalidateAllForPackage(packageName)
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.Application
+import android.os.UserHandle
+import androidx.annotation.GuardedBy
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.utils.Utils
+
+/**
+ * Loads the permission flags of packages and caches them, so that all the [PermStateLiveData] of
+ * a package share the flags fetched for it instead of each fetching them again.
+ *
+ * <p>The flags of a package are cached until [PermissionListenerMultiplexer] reports a permission
+ * change for its UID, stops listening to its UID, or the package is removed.
+ */
+object PackagePermissionFlagsLoader {
+
+    private val app: Application = PermissionControllerApplication.get()
+
+    private val lock = Any()
+
+    /** (package name, user) -> flags of the package */
+    @GuardedBy("lock")
+    private val packageFlags = mutableMapOf<Pair<String, UserHandle>, PackageFlags>()
+
+    /** Incremented on every invalidation, so that flags loaded before it aren't cached */
+    @GuardedBy("lock")
+    private var generation = 0
+
+    /**
+     * Get the flags of permissions of a package, only fetching the flags that aren't cached yet.
+     *
+     * @param packageName The name of the package
+     * @param user The user of the package
+     * @param uid The UID of the package
+     * @param permissionNames The names of the permissions to get the flags of
+     * @param cacheLoadedFlags Whether to cache the flags that are fetched. This must only be set if
+     * [PermissionListenerMultiplexer] listens to the UID, otherwise they would not be invalidated
+     *
+     * @return Map permission name -> flags
+     */
+    fun getPermissionFlags(
+        packageName: String,
+        user: UserHandle,
+        uid: Int,
+        permissionNames: Collection<String>,
+        cacheLoadedFlags: Boolean = true
+    ): Map<String, Int> {
+        val key = packageName to user
+        val permissionFlags = mutableMapOf<String, Int>()
+        val loadGeneration: Int
+        synchronized(lock) {
+            loadGeneration = generation
+            packageFlags[key]?.takeIf { it.uid == uid }?.let { cached ->
+                for (permissionName in permissionNames) {
+                    cached.flags[permissionName]?.let { permissionFlags[permissionName] = it }
+                }
+            }
+        }
+        if (permissionFlags.size == permissionNames.size) {
+            return permissionFlags
+        }
+
+        val packageManager = Utils.getUserContext(app, user).packageManager
+        val loadedFlags = mutableMapOf<String, Int>()
+        for (permissionName in permissionNames) {
+            if (permissionName !in permissionFlags) {
+                loadedFlags[permissionName] =
+                    packageManager.getPermissionFlags(permissionName, packageName, user)
+            }
+        }
+        permissionFlags.putAll(loadedFlags)
+        if (!cacheLoadedFlags) {
+            return permissionFlags
+        }
+
+        synchronized(lock) {
+            if (generation == loadGeneration) {
+                var cached = packageFlags[key]
+                if (cached == null || cached.uid != uid) {
+                    cached = PackageFlags(uid)
+                    packageFlags[key] = cached
+                }
+                cached.flags.putAll(loadedFlags)
+            }
+        }
+        return permissionFlags
+    }
+
+    /**
+     * Drop the cached flags of all the packages of a UID.
+     *
+     * @param uid The UID whose permissions changed
+     */
+    fun invalidateUid(uid: Int) {
+        synchronized(lock) {
+            generation++
+            packageFlags.values.removeAll { it.uid == uid }
+        }
+    }
+
+    /**
+     * Drop the cached flags of a package for all users.
+     *
+     * @param packageName The name of the package
+     */
+    fun invalidatePackage(packageName: String) {
+        synchronized(lock) {
+            generation++
+            packageFlags.keys.removeAll { it.first == packageName }
+        }
+    }
+
+    private class PackageFlags(val uid: Int) {
+        /** Permission name -> flags */
+        val flags = mutableMapOf<String, Int>()
+    }
+}
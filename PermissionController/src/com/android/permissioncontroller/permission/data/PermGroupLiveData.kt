@@ -17,6 +17,7 @@
 package com.android.permissioncontroller.permission.data
 
 import android.app.Application
+import android.content.Context
 import android.content.pm.PackageItemInfo
 import android.content.pm.PackageManager
 import android.content.pm.PermissionGroupInfo
@@ -42,8 +43,6 @@ class PermGroupLiveData private constructor(
 ) : SmartUpdateMediatorLiveData<PermGroup>(),
     PackageBroadcastReceiver.PackageBroadcastListener {
 
-    private val LOG_TAG = this::class.java.simpleName
-
     private val context = app.applicationContext!!
 
     /**
@@ -51,8 +50,6 @@ class PermGroupLiveData private constructor(
      */
     private val packageLiveDatas = mutableMapOf<String, LightPackageInfoLiveData>()
 
-    private lateinit var groupInfo: PackageItemInfo
-
     /**
      * Called when a package is installed, changed, or removed.
      *
@@ -67,47 +64,18 @@ class PermGroupLiveData private constructor(
      * PackageInfoLiveDatas, then re-adds them.
      */
     override fun onUpdate() {
-        val permissionInfos = mutableMapOf<String, LightPermInfo>()
-
-        groupInfo = Utils.getGroupInfo(groupName, context) ?: run {
-            Log.e(LOG_TAG, "Invalid permission group $groupName")
+        val permGroup = loadPermGroup(context, groupName) ?: run {
             invalidateSingle(groupName)
             value = null
             return
         }
 
-        when (groupInfo) {
-            is PermissionGroupInfo -> {
-                val permInfos = try {
-                    Utils.getInstalledRuntimePermissionInfosForGroup(context.packageManager,
-                        groupName)
-                } catch (e: PackageManager.NameNotFoundException) {
-                    Log.e(LOG_TAG, "Invalid permission group $groupName")
-                    invalidateSingle(groupName)
-                    value = null
-                    return
-                }
-
-                for (permInfo in permInfos) {
-                    permissionInfos[permInfo.name] = LightPermInfo(permInfo)
-                }
-            }
-            is PermissionInfo -> {
-                permissionInfos[groupInfo.name] = LightPermInfo(groupInfo as PermissionInfo)
-            }
-            else -> {
-                value = null
-                return
-            }
-        }
-
-        val permGroup = PermGroup(LightPermGroupInfo(groupInfo), permissionInfos)
-
         value = permGroup
 
-        val packageNames = permissionInfos.values.map { permInfo -> permInfo.packageName }
-            .toMutableSet()
-        packageNames.add(groupInfo.packageName)
+        val packageNames = permGroup.permissionInfos.values.map { permInfo ->
+            permInfo.packageName
+        }.toMutableSet()
+        packageNames.add(permGroup.groupInfo.packageName)
 
         // TODO ntmyren: What if the package isn't installed for the system user?
         val getLiveData = { packageName: String ->
@@ -139,8 +107,51 @@ class PermGroupLiveData private constructor(
      * <p> Key value is a string permission group name, value is its corresponding LiveData.
      */
     companion object : DataRepository<String, PermGroupLiveData>() {
+        private val LOG_TAG = PermGroupLiveData::class.java.simpleName
+
         override fun newValue(key: String): PermGroupLiveData {
             return PermGroupLiveData(PermissionControllerApplication.get(), key)
         }
+
+        /**
+         * Load a permission group synchronously.
+         *
+         * @param context The context to use to load the group
+         * @param groupName The name of the permission group
+         *
+         * @return The permission group, or null if there is no such group
+         */
+        fun loadPermGroup(context: Context, groupName: String): PermGroup? {
+            val permissionInfos = mutableMapOf<String, LightPermInfo>()
+
+            val groupInfo = Utils.getGroupInfo(groupName, context) ?: run {
+                Log.e(LOG_TAG, "Invalid permission group $groupName")
+                return null
+            }
+
+            when (groupInfo) {
+                is PermissionGroupInfo -> {
+                    val permInfos = try {
+                        Utils.getInstalledRuntimePermissionInfosForGroup(context.packageManager,
+                            groupName)
+                    } catch (e: PackageManager.NameNotFoundException) {
+                        Log.e(LOG_TAG, "Invalid permission group $groupName")
+                        return null
+                    }
+
+                    for (permInfo in permInfos) {
+                        permissionInfos[permInfo.name] = LightPermInfo(permInfo)
+                    }
+                }
+                is PermissionInfo -> {
+                    permissionInfos[groupInfo.name] = LightPermInfo(groupInfo)
+                }
+                else -> {
+                    return null
+                }
+            }
+
+            return PermGroup(LightPermGroupInfo(groupInfo), permissionInfos)
+        }
     }
 }
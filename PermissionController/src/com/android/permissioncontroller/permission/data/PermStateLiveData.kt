@@ -22,8 +22,8 @@ import android.content.pm.PackageManager
 import android.os.UserHandle
 import com.android.permissioncontroller.PermissionControllerApplication
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
 import com.android.permissioncontroller.permission.model.livedatatypes.PermState
-import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Job
 
 /**
@@ -45,7 +45,6 @@ class PermStateLiveData private constructor(
 ) : SmartAsyncMediatorLiveData<Map<String, PermState>>(),
     PermissionListenerMultiplexer.PermissionChangeCallback {
 
-    private val context = Utils.getUserContext(app, user)
     private val packageInfoLiveData = LightPackageInfoLiveData[packageName, user]
     private val groupLiveData = PermGroupLiveData[permGroupName]
 
@@ -79,21 +78,9 @@ class PermStateLiveData private constructor(
             postValue(null)
             return
         }
-        val permissionStates = mutableMapOf<String, PermState>()
-        for ((index, permissionName) in packageInfo.requestedPermissions.withIndex()) {
-
-            permissionGroup.permissionInfos[permissionName]?.let { permInfo ->
-                val packageFlags = packageInfo.requestedPermissionsFlags[index]
-                val permFlags = context.packageManager.getPermissionFlags(permInfo.name,
-                    packageName, user)
-                val granted = packageFlags and PackageInfo.REQUESTED_PERMISSION_GRANTED != 0 &&
-                    permFlags and PackageManager.FLAG_PERMISSION_REVOKED_COMPAT == 0
-
-                if (job.isCancelled) {
-                    return
-                }
-                permissionStates[permissionName] = PermState(permFlags, granted)
-            }
+        val permissionStates = loadPermStates(packageInfo, permissionGroup, user)
+        if (job.isCancelled) {
+            return
         }
 
         postValue(permissionStates)
@@ -127,11 +114,12 @@ class PermStateLiveData private constructor(
     }
 
     override fun onActive() {
-        super.onActive()
+        // Listen before loading, so that the loaded flags stay cached until the next change
         uid?.let {
             PermissionListenerMultiplexer.addCallback(it, this)
             registeredUid = uid
         }
+        super.onActive()
     }
 
     /**
@@ -145,5 +133,45 @@ class PermStateLiveData private constructor(
             return PermStateLiveData(PermissionControllerApplication.get(),
                 key.first, key.second, key.third)
         }
+
+        /**
+         * Load the state of the permissions of a group requested by a package synchronously.
+         *
+         * @param packageInfo The package
+         * @param permissionGroup The permission group
+         * @param user The user of the package
+         * @param cacheLoadedFlags Whether to cache the permission flags that are fetched, see
+         * [PackagePermissionFlagsLoader.getPermissionFlags]
+         *
+         * @return Map permission name -> state, for the permissions of the group that the package
+         * requests
+         */
+        fun loadPermStates(
+            packageInfo: LightPackageInfo,
+            permissionGroup: PermGroup,
+            user: UserHandle,
+            cacheLoadedFlags: Boolean = true
+        ): Map<String, PermState> {
+            val groupPermissionNames = packageInfo.requestedPermissions.filter {
+                it in permissionGroup.permissionInfos
+            }
+            val permissionFlags = PackagePermissionFlagsLoader.getPermissionFlags(
+                packageInfo.packageName, user, packageInfo.uid, groupPermissionNames,
+                cacheLoadedFlags)
+
+            val permissionStates = mutableMapOf<String, PermState>()
+            for ((index, permissionName) in packageInfo.requestedPermissions.withIndex()) {
+
+                permissionGroup.permissionInfos[permissionName]?.let { permInfo ->
+                    val packageFlags = packageInfo.requestedPermissionsFlags[index]
+                    val permFlags = permissionFlags[permInfo.name] ?: 0
+                    val granted = packageFlags and PackageInfo.REQUESTED_PERMISSION_GRANTED != 0 &&
+                        permFlags and PackageManager.FLAG_PERMISSION_REVOKED_COMPAT == 0
+
+                    permissionStates[permissionName] = PermState(permFlags, granted)
+                }
+            }
+            return permissionStates
+        }
     }
 }
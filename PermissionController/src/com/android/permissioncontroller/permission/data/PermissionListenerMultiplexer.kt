@@ -35,8 +35,10 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
     private val pm = app.applicationContext.packageManager
 
     override fun onPermissionsChanged(uid: Int) {
+        // Drop the cached flags before any callback reloads them
+        PackagePermissionFlagsLoader.invalidateUid(uid)
         callbacks[uid]?.toList()?.forEach { callback ->
-            callback.onPermissionChange()
+            callback.onPermissionChange(uid)
         }
     }
 
@@ -68,6 +70,8 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
 
         if (callbacks[uid]!!.isEmpty()) {
             callbacks.remove(uid)
+            // Changes to the UID are no longer reported, so its cached flags can't be trusted
+            PackagePermissionFlagsLoader.invalidateUid(uid)
         }
 
         if (callbacks.isEmpty()) {
@@ -77,5 +81,15 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
 
     interface PermissionChangeCallback {
         fun onPermissionChange()
+
+        /**
+         * Called when the permissions of a UID the callback was added for changed. Callbacks added
+         * for several UIDs can override this to only update the affected UID.
+         *
+         * @param uid The UID whose permissions changed
+         */
+        fun onPermissionChange(uid: Int) {
+            onPermissionChange()
+        }
     }
 }
\ No newline at end of file
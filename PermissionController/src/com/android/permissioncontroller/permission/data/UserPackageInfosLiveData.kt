@@ -17,20 +17,28 @@
 package com.android.permissioncontroller.permission.data
 
 import android.app.Application
+import android.content.pm.PackageManager
 import android.content.pm.PackageManager.GET_PERMISSIONS
 import android.content.pm.PackageManager.MATCH_ALL
 import android.os.UserHandle
+import androidx.annotation.GuardedBy
+import androidx.annotation.VisibleForTesting
 import com.android.permissioncontroller.PermissionControllerApplication
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Job
 
 /**
  * A LiveData which tracks all of the packageinfos installed for a given user.
  *
+ * <p>The packages are only all loaded when the LiveData is first used or becomes active again.
+ * After that, only the packages that were changed, and the packages of the UIDs whose permissions
+ * changed, are reloaded.
+ *
  * @param app The current application
  * @param user The user whose packages are desired
  */
-class UserPackageInfosLiveData private constructor(
+class UserPackageInfosLiveData @VisibleForTesting internal constructor(
     private val app: Application,
     private val user: UserHandle
 ) : SmartAsyncMediatorLiveData<@kotlin.jvm.JvmSuppressWildcards List<LightPackageInfo>>(),
@@ -42,25 +50,58 @@ class UserPackageInfosLiveData private constructor(
      */
     var permChangeStale = false
 
+    private val lock = Any()
+
+    /** Whether all the packages should be reloaded on the next update */
+    @GuardedBy("lock")
+    private var needsFullReload = true
+
+    /** The packages to reload on the next update */
+    @GuardedBy("lock")
+    private val changedPackages = mutableSetOf<String>()
+
+    /** The UIDs whose packages should be reloaded on the next update */
+    @GuardedBy("lock")
+    private val changedUids = mutableSetOf<Int>()
+
+    /**
+     * The last loaded packages, by package name, in the order they were listed. Only accessed
+     * by [loadDataAndPostValue], which never runs concurrently.
+     */
+    private var loadedPackageInfos = LinkedHashMap<String, LightPackageInfo>()
+
     override fun onPackageUpdate(packageName: String) {
+        synchronized(lock) {
+            changedPackages.add(packageName)
+        }
         updateAsync()
     }
 
-    // TODO ntmyren: replace with correctly updating
     override fun onPermissionChange() {
+        synchronized(lock) {
+            needsFullReload = true
+        }
         permChangeStale = true
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
+        updateAsync()
+    }
+
+    override fun onPermissionChange(uid: Int) {
+        synchronized(lock) {
+            changedUids.add(uid)
         }
+        permChangeStale = true
+        updateAsync()
     }
 
     override fun setValue(newValue: List<LightPackageInfo>?) {
-        if (newValue != value) {
-            for (packageInfo in value ?: emptyList()) {
-                PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
+        if (newValue != value && hasActiveObservers()) {
+            val oldUids = value?.mapTo(mutableSetOf()) { it.uid } ?: emptySet<Int>()
+            val newUids = newValue?.mapTo(mutableSetOf()) { it.uid } ?: emptySet<Int>()
+            for (uid in oldUids - newUids) {
+                PermissionListenerMultiplexer.removeCallback(uid, this)
             }
-            for (packageInfo in newValue ?: emptyList()) {
-                PermissionListenerMultiplexer.addCallback(packageInfo.uid, this)
+            for (uid in newUids - oldUids) {
+                PermissionListenerMultiplexer.addCallback(uid, this)
             }
         }
         super.setValue(newValue)
@@ -74,10 +115,45 @@ class UserPackageInfosLiveData private constructor(
         if (job.isCancelled) {
             return
         }
-        val packageInfos = app.applicationContext.packageManager
-            .getInstalledPackagesAsUser(GET_PERMISSIONS or MATCH_ALL, user.identifier)
 
-        postValue(packageInfos.map { packageInfo -> LightPackageInfo(packageInfo) })
+        val fullReload: Boolean
+        val packagesToReload: Set<String>
+        val uidsToReload: Set<Int>
+        synchronized(lock) {
+            fullReload = needsFullReload
+            needsFullReload = false
+            packagesToReload = changedPackages.toSet()
+            changedPackages.clear()
+            uidsToReload = changedUids.toSet()
+            changedUids.clear()
+        }
+
+        if (fullReload) {
+            val packageInfos = app.applicationContext.packageManager
+                .getInstalledPackagesAsUser(GET_PERMISSIONS or MATCH_ALL, user.identifier)
+            loadedPackageInfos = packageInfos.associateTo(LinkedHashMap()) { packageInfo ->
+                packageInfo.packageName to LightPackageInfo(packageInfo)
+            }
+        } else {
+            val packageInfos = LinkedHashMap(loadedPackageInfos)
+            val packageManager = Utils.getUserContext(app, user).packageManager
+            val packageNames = packagesToReload.toMutableSet()
+            for (uid in uidsToReload) {
+                packageInfos.values.filter { it.uid == uid }.mapTo(packageNames) { it.packageName }
+                packageManager.getPackagesForUid(uid)?.let { packageNames.addAll(it) }
+            }
+            for (packageName in packageNames) {
+                try {
+                    packageInfos[packageName] = LightPackageInfo(packageManager.getPackageInfo(
+                        packageName, GET_PERMISSIONS or MATCH_ALL))
+                } catch (e: PackageManager.NameNotFoundException) {
+                    packageInfos.remove(packageName)
+                }
+            }
+            loadedPackageInfos = packageInfos
+        }
+
+        postValue(loadedPackageInfos.values.toList())
     }
 
     override fun onActive() {
@@ -85,16 +161,21 @@ class UserPackageInfosLiveData private constructor(
 
         PackageBroadcastReceiver.addAllCallback(this)
 
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.addCallback(packageInfo.uid, this)
+        for (uid in value?.mapTo(mutableSetOf()) { it.uid } ?: emptySet<Int>()) {
+            PermissionListenerMultiplexer.addCallback(uid, this)
         }
     }
 
     override fun onInactive() {
         super.onInactive()
 
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
+        // Changes are not tracked while inactive
+        synchronized(lock) {
+            needsFullReload = true
+        }
+
+        for (uid in value?.mapTo(mutableSetOf()) { it.uid } ?: emptySet<Int>()) {
+            PermissionListenerMultiplexer.removeCallback(uid, this)
         }
 
         PackageBroadcastReceiver.removeAllCallback(this)
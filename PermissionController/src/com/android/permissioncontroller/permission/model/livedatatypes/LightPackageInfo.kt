@@ -29,7 +29,8 @@ import com.android.permissioncontroller.permission.utils.Utils
  *
  * @param packageName The name of the packages
  * @param permissions The list of LightPermInfos representing the permissions this package defines
- * @param requestedPermissions The names of the permissions this package requests
+ * @param requestedPermissions The names of the permissions this package requests, as
+ * [RequestedPermissions] when read from a [PackageInfo]
  * @param requestedPermissionsFlags The grant state of the permissions this package requests
  * @param uid The UID of this package
  * @param targetSdkVersion The target SDK of this package
@@ -50,8 +51,10 @@ data class LightPackageInfo(
 ) {
     constructor(pI: PackageInfo) : this(pI.packageName,
         pI.permissions?.map { perm -> LightPermInfo(perm) } ?: emptyList(),
-        pI.requestedPermissions?.toList() ?: emptyList(),
-        pI.requestedPermissionsFlags?.toList() ?: emptyList(),
+        pI.requestedPermissions?.let {
+            RequestedPermissions(it, pI.requestedPermissionsFlags)
+        } ?: emptyList(),
+        pI.requestedPermissionsFlags?.asList() ?: emptyList(),
         pI.applicationInfo.uid, pI.applicationInfo.targetSdkVersion,
         pI.applicationInfo.isInstantApp, pI.applicationInfo.enabled, pI.applicationInfo.flags,
         pI.firstInstallTime)
@@ -60,6 +63,10 @@ data class LightPackageInfo(
      * Permissions which are granted according to the [requestedPermissionsFlags]
      */
     val grantedPermissions: List<String> get() {
+        if (requestedPermissions is RequestedPermissions) {
+            return requestedPermissions.grantedPermissions
+        }
+
         val grantedPermissions = mutableListOf<String>()
         for (i in 0 until requestedPermissions.size) {
             if ((requestedPermissionsFlags[i] and PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
@@ -69,6 +76,21 @@ data class LightPackageInfo(
         return grantedPermissions
     }
 
+    /**
+     * Whether a permission is requested and granted according to the [requestedPermissionsFlags]
+     *
+     * @param permissionName The name of the permission
+     */
+    fun isPermissionGranted(permissionName: String): Boolean {
+        if (requestedPermissions is RequestedPermissions) {
+            return requestedPermissions.isGranted(permissionName)
+        }
+
+        val index = requestedPermissions.indexOf(permissionName)
+        return index >= 0 &&
+            (requestedPermissionsFlags[index] and PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0
+    }
+
     /**
      * Gets the ApplicationInfo for this package from the system. Can be expensive if called too
      * often.
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.model.livedatatypes
+
+import android.content.pm.PackageInfo
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The names of the permissions requested by a package, along with their grant state.
+ *
+ * <p>The names are interned in a table shared by all packages, so that every package requesting
+ * a permission shares the same name instance, and the requested and granted permissions are
+ * stored as bitsets of their ids in that table. This makes checking whether a permission is
+ * requested or granted O(1).
+ *
+ * @param names The names of the permissions, in the order the package requests them
+ * @param flags The [PackageInfo.requestedPermissionsFlags] of the permissions
+ */
+class RequestedPermissions(
+    names: Array<String>,
+    flags: IntArray
+) : AbstractList<String>(), RandomAccess {
+
+    private val names = Array(names.size) { internName(names[it]) }
+
+    private val requestedIds = BitSet()
+
+    private val grantedIds = BitSet()
+
+    init {
+        for (i in names.indices) {
+            val id = getOrAddId(this.names[i])
+            requestedIds.set(id)
+            if (flags[i] and PackageInfo.REQUESTED_PERMISSION_GRANTED != 0) {
+                grantedIds.set(id)
+            }
+        }
+    }
+
+    /**
+     * Permissions which are granted, in the order the package requests them
+     */
+    val grantedPermissions: List<String> = this.names.filter { isGranted(it) }
+
+    override val size: Int
+        get() = names.size
+
+    override fun get(index: Int): String = names[index]
+
+    override fun contains(element: String): Boolean {
+        val id = getId(element)
+        return id >= 0 && requestedIds[id]
+    }
+
+    /**
+     * Whether a permission is requested and granted
+     *
+     * @param permissionName The name of the permission
+     */
+    fun isGranted(permissionName: String): Boolean {
+        val id = getId(permissionName)
+        return id >= 0 && grantedIds[id]
+    }
+
+    companion object {
+        private val lock = Any()
+
+        /** Permission name -> id, only added to while holding [lock] */
+        private val ids = ConcurrentHashMap<String, Int>()
+
+        /**
+         * The interned permission names, by id. Replaced by a copy with the new name appended
+         * while holding [lock], before the name is added to [ids].
+         */
+        @Volatile
+        private var internedNames = emptyArray<String>()
+
+        private fun getOrAddId(name: String): Int {
+            val id = ids[name]
+            if (id != null) {
+                return id
+            }
+            synchronized(lock) {
+                return ids[name] ?: internedNames.size.also {
+                    internedNames += name
+                    ids[name] = it
+                }
+            }
+        }
+
+        private fun getId(name: String): Int = ids[name] ?: -1
+
+        private fun internName(name: String): String = internedNames[getOrAddId(name)]
+    }
+}
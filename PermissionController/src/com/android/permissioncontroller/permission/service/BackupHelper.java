@@ -16,7 +16,6 @@
 
 package com.android.permissioncontroller.permission.service;
 
-import static android.content.Context.MODE_PRIVATE;
 import static android.content.pm.PackageManager.FLAG_PERMISSION_POLICY_FIXED;
 import static android.content.pm.PackageManager.FLAG_PERMISSION_SYSTEM_FIXED;
 import static android.content.pm.PackageManager.GET_PERMISSIONS;
@@ -41,13 +40,16 @@ import android.os.Build;
 import android.os.UserHandle;
 import android.permission.PermissionManager;
 import android.permission.PermissionManager.SplitPermissionInfo;
+import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Xml;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.os.BuildCompat;
 
 import com.android.permissioncontroller.Constants;
@@ -60,16 +62,25 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 /**
  * Helper for creating and restoring permission backups.
@@ -79,6 +90,7 @@ public class BackupHelper {
 
     private static final String TAG_PERMISSION_BACKUP = "perm-grant-backup";
     private static final String ATTR_PLATFORM_VERSION = "version";
+    private static final String ATTR_JOURNAL_GENERATION = "journal-generation";
 
     private static final String TAG_ALL_GRANTS = "rt-grants";
 
@@ -101,10 +113,19 @@ public class BackupHelper {
     private static final int SYSTEM_RUNTIME_GRANT_MASK = FLAG_PERMISSION_POLICY_FIXED
             | FLAG_PERMISSION_SYSTEM_FIXED;
 
+    /** Suffix of the journal of the packages restored from the delayed permissions file */
+    private static final String DELAYED_RESTORE_JOURNAL_SUFFIX = ".journal";
+
     /** Make sure only one user can change the delayed permissions at a time */
     private static final Object sLock = new Object();
 
+    /** The delayed restore stores that have been loaded, per user */
+    // @GuardedBy("sLock")
+    private static final ArrayMap<UserHandle, DelayedRestoreStore> sDelayedRestoreStores =
+            new ArrayMap<>();
+
     private final Context mContext;
+    private final UserHandle mUser;
 
     /**
      * Create a new backup utils for a user.
@@ -118,6 +139,7 @@ public class BackupHelper {
         } catch (PackageManager.NameNotFoundException doesNotHappen) {
             throw new IllegalStateException();
         }
+        mUser = user;
     }
 
     /**
@@ -174,10 +196,23 @@ public class BackupHelper {
      */
     private @NonNull ArrayList<BackupPackageState> parseFromXml(@NonNull XmlPullParser parser)
             throws IOException, XmlPullParserException {
-        ArrayList<BackupPackageState> pkgStates = new ArrayList<>();
-
         skipToTag(parser, TAG_PERMISSION_BACKUP);
 
+        return parseBackupFromXml(parser);
+    }
+
+    /**
+     * Parse the state to restore from the xml, with the parser at the start of the
+     * {@link #TAG_PERMISSION_BACKUP} tag.
+     *
+     * @param parser The xml to read
+     *
+     * @return The state to restore
+     */
+    private @NonNull ArrayList<BackupPackageState> parseBackupFromXml(
+            @NonNull XmlPullParser parser) throws IOException, XmlPullParserException {
+        ArrayList<BackupPackageState> pkgStates = new ArrayList<>();
+
         int backupPlatformVersion;
         try {
             backupPlatformVersion = Integer.parseInt(
@@ -231,7 +266,9 @@ public class BackupHelper {
      *
      * @param parser The xml to read
      */
-    void restoreState(@NonNull XmlPullParser parser) throws IOException, XmlPullParserException {
+    @VisibleForTesting
+    public void restoreState(@NonNull XmlPullParser parser)
+            throws IOException, XmlPullParserException {
         ArrayList<BackupPackageState> pkgStates = parseFromXml(parser);
 
         ArrayList<BackupPackageState> packagesToRestoreLater = new ArrayList<>();
@@ -259,7 +296,9 @@ public class BackupHelper {
         }
 
         synchronized (sLock) {
-            writeDelayedStorePkgsLocked(packagesToRestoreLater);
+            DelayedRestoreStore store = new DelayedRestoreStore(packagesToRestoreLater);
+            writeDelayedStoreLocked(store);
+            sDelayedRestoreStores.put(mUser, store);
         }
     }
 
@@ -321,10 +360,27 @@ public class BackupHelper {
      */
     private static void writePkgsAsXml(@NonNull XmlSerializer serializer,
             @NonNull ArrayList<BackupPackageState> pkgs) throws IOException {
+        writePkgsAsXml(serializer, pkgs, null);
+    }
+
+    /**
+     * Write a xml file for the given packages.
+     *
+     * @param serializer The file to write to
+     * @param pkgs The packages to write
+     * @param journalGeneration The generation of the journal that applies to the file, if any
+     */
+    private static void writePkgsAsXml(@NonNull XmlSerializer serializer,
+            @NonNull ArrayList<BackupPackageState> pkgs, @Nullable String journalGeneration)
+            throws IOException {
         serializer.startDocument(null, true);
 
         serializer.startTag(null, TAG_PERMISSION_BACKUP);
 
+        if (journalGeneration != null) {
+            serializer.attribute(null, ATTR_JOURNAL_GENERATION, journalGeneration);
+        }
+
         if (BuildCompat.isAtLeastQ()) {
             // STOPSHIP: Remove compatibility code once Q SDK level is declared
             serializer.attribute(null, ATTR_PLATFORM_VERSION,
@@ -352,22 +408,159 @@ public class BackupHelper {
     }
 
     /**
-     * Update the {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE} to contain the
-     * {@code packagesToRestoreLater}.
+     * Update the {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE} to contain the packages of the
+     * {@code store}, and clear its journal.
+     *
+     * <p>The file is written with a new journal generation, so that a journal that could not be
+     * deleted is not applied to it. If the file cannot be written, the previous file and its
+     * journal are kept.
      *
-     * @param packagesToRestoreLater The new pkgs in the delayed restore file
+     * @param store The store to write
+     *
+     * @return {@code true} iff the file was written
      */
-    private void writeDelayedStorePkgsLocked(
-            @NonNull ArrayList<BackupPackageState> packagesToRestoreLater) {
-        try (OutputStream delayedRestoreData = mContext.openFileOutput(
-                DELAYED_RESTORE_PERMISSIONS_FILE, MODE_PRIVATE)) {
+    private boolean writeDelayedStoreLocked(@NonNull DelayedRestoreStore store) {
+        String journalGeneration = UUID.randomUUID().toString();
+        AtomicFile delayedRestoreFile = getDelayedRestoreFile();
+        FileOutputStream delayedRestoreData = null;
+        try {
+            delayedRestoreData = delayedRestoreFile.startWrite();
             XmlSerializer serializer = newSerializer();
             serializer.setOutput(delayedRestoreData, UTF_8.name());
 
-            writePkgsAsXml(serializer, packagesToRestoreLater);
+            writePkgsAsXml(serializer, store.toList(), journalGeneration);
             serializer.flush();
+            delayedRestoreFile.finishWrite(delayedRestoreData);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Could not remember which packages still need to be restored", e);
+            delayedRestoreFile.failWrite(delayedRestoreData);
+            return false;
+        }
+
+        store.mJournalGeneration = journalGeneration;
+        store.mJournalSize = 0;
+        getDelayedRestoreJournalFile().delete();
+        return true;
+    }
+
+    private @NonNull AtomicFile getDelayedRestoreFile() {
+        return new AtomicFile(new File(mContext.getFilesDir(), DELAYED_RESTORE_PERMISSIONS_FILE));
+    }
+
+    private @NonNull File getDelayedRestoreJournalFile() {
+        return new File(mContext.getFilesDir(),
+                DELAYED_RESTORE_PERMISSIONS_FILE + DELAYED_RESTORE_JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Get the {@link DelayedRestoreStore} of the user, loading it from
+     * {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE} and its journal if needed.
+     *
+     * @return The store, or {@code null} if it could not be loaded
+     */
+    private @Nullable DelayedRestoreStore getDelayedRestoreStoreLocked() {
+        DelayedRestoreStore store = sDelayedRestoreStores.get(mUser);
+        if (store != null) {
+            return store;
+        }
+
+        try (FileInputStream delayedRestoreData = getDelayedRestoreFile().openRead()) {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(delayedRestoreData, UTF_8.name());
+
+            skipToTag(parser, TAG_PERMISSION_BACKUP);
+            String journalGeneration = parser.getAttributeValue(null, ATTR_JOURNAL_GENERATION);
+            store = new DelayedRestoreStore(parseBackupFromXml(parser));
+            store.mJournalGeneration = journalGeneration;
+        } catch (IOException | XmlPullParserException e) {
+            Log.e(LOG_TAG, "Could not parse delayed permissions", e);
+            return null;
+        }
+
+        /*
+         * The format of the journal is its generation on the first line, followed by
+         * <package> <index among the states of the package>, one line per restored package, e.g.
+         * 0c8e2d6a-5b8e-4a3c-9f0e-7d1b2c3d4e5f
+         * com.one.package 0
+         * com.two.package 0
+         *
+         * A journal whose generation doesn't match the file was left behind by a previous version
+         * of the file and is ignored.
+         */
+        try (BufferedReader journal = new BufferedReader(new InputStreamReader(
+                new FileInputStream(getDelayedRestoreJournalFile()), UTF_8))) {
+            String journalGeneration = journal.readLine();
+            if (journalGeneration != null && journalGeneration.equals(store.mJournalGeneration)) {
+                String line;
+                while ((line = journal.readLine()) != null) {
+                    String[] lineComponents = line.split(" ");
+                    if (lineComponents.length != 2) {
+                        Log.w(LOG_TAG, "Ignoring malformed delayed restore journal line: "
+                                + line);
+                        continue;
+                    }
+                    store.remove(lineComponents[0], Integer.parseInt(lineComponents[1]));
+                    store.mJournalSize++;
+                }
+            } else {
+                Log.w(LOG_TAG, "Ignoring stale delayed restore journal");
+            }
+        } catch (FileNotFoundException ignored) {
+            // No package was restored since the file was written
+        } catch (IOException | NumberFormatException e) {
+            Log.w(LOG_TAG, "Could not read delayed restore journal", e);
+        }
+
+        sDelayedRestoreStores.put(mUser, store);
+        return store;
+    }
+
+    /**
+     * Forget the delayed restore stores loaded in memory, so that they are loaded from disk again
+     * as after a restart.
+     */
+    @VisibleForTesting
+    public static void clearLoadedDelayedRestoreStores() {
+        synchronized (sLock) {
+            sDelayedRestoreStores.clear();
+        }
+    }
+
+    /**
+     * Remember that a package was restored from the {@link DelayedRestoreStore} of the user.
+     *
+     * <p>This appends the package to the journal, unless the journal grew as large as the store,
+     * in which case the store is written to disk again instead if possible. This keeps the total cost of
+     * restoring all the packages linear in their number.
+     *
+     * @param store The store of the user
+     * @param packageName The restored package
+     * @param index The index of the restored state among the states of the package
+     */
+    private void persistDelayedRestoreLocked(@NonNull DelayedRestoreStore store,
+            @NonNull String packageName, int index) {
+        if (store.mJournalSize + 1 >= store.size() && writeDelayedStoreLocked(store)) {
+            return;
+        }
+
+        if (store.mJournalGeneration == null) {
+            // The file on disk has no journal generation, so it can't have a journal
+            writeDelayedStoreLocked(store);
+            return;
+        }
+
+        // Start a new journal instead of appending to a stale one
+        boolean isNewJournal = store.mJournalSize == 0;
+        try (Writer journal = new OutputStreamWriter(
+                new FileOutputStream(getDelayedRestoreJournalFile(), !isNewJournal), UTF_8)) {
+            if (isNewJournal) {
+                journal.write(store.mJournalGeneration + "\n");
+            }
+            journal.write(packageName + " " + index + "\n");
+            store.mJournalSize++;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not append to delayed restore journal", e);
+            writeDelayedStoreLocked(store);
         }
     }
 
@@ -401,18 +594,11 @@ public class BackupHelper {
      *
      * @return {@code true} if there is still delayed backup left
      */
-    boolean restoreDelayedState(@NonNull String packageName) {
+    @VisibleForTesting
+    public boolean restoreDelayedState(@NonNull String packageName) {
         synchronized (sLock) {
-            ArrayList<BackupPackageState> packagesToRestoreLater;
-
-            try (FileInputStream delayedRestoreData =
-                         mContext.openFileInput(DELAYED_RESTORE_PERMISSIONS_FILE)) {
-                XmlPullParser parser = Xml.newPullParser();
-                parser.setInput(delayedRestoreData, UTF_8.name());
-
-                packagesToRestoreLater = parseFromXml(parser);
-            } catch (IOException | XmlPullParserException e) {
-                Log.e(LOG_TAG, "Could not parse delayed permissions", e);
+            DelayedRestoreStore packagesToRestoreLater = getDelayedRestoreStoreLocked();
+            if (packagesToRestoreLater == null) {
                 return false;
             }
 
@@ -425,16 +611,16 @@ public class BackupHelper {
             }
 
             if (pkgInfo != null) {
-                int numPkgs = packagesToRestoreLater.size();
-                for (int i = 0; i < numPkgs; i++) {
-                    BackupPackageState pkgState = packagesToRestoreLater.get(i);
+                List<BackupPackageState> pkgStates = packagesToRestoreLater.get(packageName);
+                int numPkgStates = pkgStates.size();
+                for (int i = 0; i < numPkgStates; i++) {
+                    BackupPackageState pkgState = pkgStates.get(i);
 
-                    if (pkgState.mPackageName.equals(packageName) && checkCertificateDigestsMatch(
-                            pkgInfo, pkgState)) {
+                    if (checkCertificateDigestsMatch(pkgInfo, pkgState)) {
                         pkgState.restore(mContext, pkgInfo);
-                        packagesToRestoreLater.remove(i);
+                        packagesToRestoreLater.remove(packageName, i);
 
-                        writeDelayedStorePkgsLocked(packagesToRestoreLater);
+                        persistDelayedRestoreLocked(packagesToRestoreLater, packageName, i);
 
                         break;
                     }
@@ -445,6 +631,93 @@ public class BackupHelper {
         }
     }
 
+    /**
+     * The packages whose permissions still need to be restored for a user, indexed by package
+     * name.
+     */
+    private static class DelayedRestoreStore {
+        /** The states of the packages, in the order they were backed up */
+        private final LinkedHashMap<String, ArrayList<BackupPackageState>> mPkgStates =
+                new LinkedHashMap<>();
+
+        private int mSize;
+
+        /** The number of restored packages appended to the journal since the last write */
+        int mJournalSize;
+
+        /**
+         * The generation of the journal that applies to the file on disk, or {@code null} if the
+         * file has none
+         */
+        @Nullable
+        String mJournalGeneration;
+
+        DelayedRestoreStore(@NonNull List<BackupPackageState> pkgStates) {
+            int numPkgStates = pkgStates.size();
+            for (int i = 0; i < numPkgStates; i++) {
+                BackupPackageState pkgState = pkgStates.get(i);
+                ArrayList<BackupPackageState> statesForPkg = mPkgStates.get(pkgState.mPackageName);
+                if (statesForPkg == null) {
+                    statesForPkg = new ArrayList<>(1);
+                    mPkgStates.put(pkgState.mPackageName, statesForPkg);
+                }
+                statesForPkg.add(pkgState);
+            }
+            mSize = numPkgStates;
+        }
+
+        /**
+         * Get the states of a package.
+         *
+         * @param packageName The package
+         *
+         * @return The states, or an empty list if there is none
+         */
+        @NonNull
+        List<BackupPackageState> get(@NonNull String packageName) {
+            ArrayList<BackupPackageState> statesForPkg = mPkgStates.get(packageName);
+            return statesForPkg != null ? statesForPkg : Collections.emptyList();
+        }
+
+        /**
+         * Remove a state of a package.
+         *
+         * @param packageName The package
+         * @param index The index of the state among the states of the package
+         */
+        void remove(@NonNull String packageName, int index) {
+            ArrayList<BackupPackageState> statesForPkg = mPkgStates.get(packageName);
+            if (statesForPkg == null || index < 0 || index >= statesForPkg.size()) {
+                Log.w(LOG_TAG, "No delayed state " + index + " to remove for " + packageName);
+                return;
+            }
+            statesForPkg.remove(index);
+            if (statesForPkg.isEmpty()) {
+                mPkgStates.remove(packageName);
+            }
+            mSize--;
+        }
+
+        /**
+         * @return The number of states in the store
+         */
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @return All the states in the store, in the order they were backed up
+         */
+        @NonNull
+        ArrayList<BackupPackageState> toList() {
+            ArrayList<BackupPackageState> pkgStates = new ArrayList<>(mSize);
+            for (ArrayList<BackupPackageState> statesForPkg : mPkgStates.values()) {
+                pkgStates.addAll(statesForPkg);
+            }
+            return pkgStates;
+        }
+    }
+
     /**
      * State that needs to be backed up for a permission.
      */
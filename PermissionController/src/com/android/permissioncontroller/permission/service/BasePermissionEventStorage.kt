@@ -18,12 +18,28 @@ package com.android.permissioncontroller.permission.service
 
 import android.app.job.JobScheduler
 import android.content.Context
+import android.provider.DeviceConfig
 import android.util.AtomicFile
 import android.util.Log
+import androidx.annotation.GuardedBy
 import com.android.permissioncontroller.DumpableLog
 import com.android.permissioncontroller.permission.data.PermissionEvent
+import com.android.permissioncontroller.permission.utils.Utils
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import org.xmlpull.v1.XmlPullParserException
+import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
 import java.io.File
+import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
@@ -32,6 +48,16 @@ import java.io.OutputStream
 /**
  * Thread-safe implementation of [PermissionEventStorage] using an XML file as the
  * database.
+ *
+ * The events are loaded once and then kept in memory, so reads don't do any I/O. Changes are
+ * batched and written to disk in the background after [WRITE_DELAY_MILLIS]. The storage methods
+ * wait for the write that includes their change and report its result.
+ *
+ * When [Utils.PROPERTY_PERMISSION_EVENTS_JOURNAL_ENABLED] is set, stored events are appended
+ * to a journal file next to the database instead of rewriting the whole database. The journal is
+ * replayed on top of the database on read, and compacted into it once it grows past
+ * [MAX_JOURNAL_EVENTS] or whenever the database is rewritten, e.g. by [removeOldData] from
+ * [PermissionEventCleanupJobService].
  */
 abstract class BasePermissionEventStorage<T : PermissionEvent>(
     private val context: Context,
@@ -39,10 +65,70 @@ abstract class BasePermissionEventStorage<T : PermissionEvent>(
 ) : PermissionEventStorage<T> {
 
     private val dbFile: AtomicFile = AtomicFile(File(context.filesDir, getDatabaseFileName()))
+    private val journalFile: File =
+        File(context.filesDir, getDatabaseFileName() + JOURNAL_FILE_SUFFIX)
     private val fileLock = Object()
 
+    /**
+     * Number of events in [journalFile], or -1 if the journal hasn't been read yet.
+     */
+    @GuardedBy("fileLock")
+    private var journalEventCount = -1
+
+    private val lock = Object()
+
+    /**
+     * In-memory copy of the events sorted from newest to oldest, or `null` if not loaded yet.
+     */
+    @GuardedBy("lock")
+    private var events: MutableList<T>? = null
+
+    /**
+     * Index of [events] by package name.
+     */
+    @GuardedBy("lock")
+    private val eventsByPackage = mutableMapOf<String, MutableList<T>>()
+
+    /**
+     * Events stored since the last write that can be appended to the journal.
+     */
+    @GuardedBy("lock")
+    private val pendingJournalEvents = mutableListOf<T>()
+
+    /**
+     * Whether the whole database needs to be rewritten on the next write.
+     */
+    @GuardedBy("lock")
+    private var fullWritePending = false
+
+    @GuardedBy("lock")
+    private var writeJob: Job? = null
+
+    /**
+     * Result of the next write, completed once the pending changes are on disk.
+     */
+    @GuardedBy("lock")
+    private var pendingWriteResult: CompletableDeferred<Boolean>? = null
+
     companion object {
         private const val LOG_TAG = "BasePermissionEventStorage"
+
+        private const val JOURNAL_FILE_SUFFIX = ".journal"
+
+        /**
+         * Max number of events in the journal before it is compacted into the database.
+         */
+        private const val MAX_JOURNAL_EVENTS = 100
+
+        /**
+         * Max size of a single journal record, anything bigger is considered to be corrupted.
+         */
+        private const val MAX_JOURNAL_RECORD_BYTES = 64 * 1024
+
+        /**
+         * Delay used to batch changes together before writing them to disk.
+         */
+        private const val WRITE_DELAY_MILLIS = 200L
     }
 
     init {
@@ -50,39 +136,54 @@ abstract class BasePermissionEventStorage<T : PermissionEvent>(
     }
 
     override suspend fun storeEvent(event: T): Boolean {
-        synchronized(fileLock) {
-            val existingEvents = readData()
-
-            val newEvents = mutableListOf<T>()
-            // add new event first to keep the list ordered
-            newEvents.add(event)
-            for (existingEvent in existingEvents) {
-                // ignore any old events that violate the primary key uniqueness with the database
-                if (hasTheSamePrimaryKey(existingEvent, event)) {
-                    continue
-                }
-                newEvents.add(existingEvent)
+        loadEventsIfNeeded()
+        val writeResult = synchronized(lock) {
+            val existingEvents = getEventsLocked()
+            val packageEvents = eventsByPackage.getOrPut(event.packageName) { mutableListOf() }
+            // ignore any old events that violate the primary key uniqueness with the database
+            val existingEvent = packageEvents.find { hasTheSamePrimaryKey(it, event) }
+            if (existingEvent != null) {
+                packageEvents.remove(existingEvent)
+                existingEvents.remove(existingEvent)
             }
+            // add new event first to keep the list ordered
+            packageEvents.add(0, event)
+            existingEvents.add(0, event)
 
-            return writeData(newEvents)
+            pendingJournalEvents.add(event)
+            scheduleWriteLocked()
         }
+        return writeResult.await()
     }
 
     override suspend fun loadEvents(): List<T> {
-        synchronized(fileLock) {
-            return readData()
+        loadEventsIfNeeded()
+        synchronized(lock) {
+            return getEventsLocked().toList()
         }
     }
 
     override suspend fun clearEvents() {
         synchronized(fileLock) {
+            synchronized(lock) {
+                writeJob?.cancel()
+                writeJob = null
+                // The pending changes are cleared along with everything else
+                pendingWriteResult?.complete(true)
+                pendingWriteResult = null
+                pendingJournalEvents.clear()
+                fullWritePending = false
+                setEventsLocked(emptyList())
+            }
             dbFile.delete()
+            deleteJournal()
         }
     }
 
     override suspend fun removeOldData(): Boolean {
-        synchronized(fileLock) {
-            val existingEvents = readData()
+        loadEventsIfNeeded()
+        synchronized(lock) {
+            val existingEvents = getEventsLocked()
 
             val originalCount = existingEvents.size
             val newEvents = existingEvents.filter {
@@ -92,30 +193,158 @@ abstract class BasePermissionEventStorage<T : PermissionEvent>(
             DumpableLog.d(LOG_TAG,
                 "${originalCount - newEvents.size} old permission events removed")
 
-            return writeData(newEvents)
+            // Always rewrite the database, which also compacts the journal into it
+            setEventsLocked(newEvents)
+            fullWritePending = true
         }
+        // This runs from a job, so write right away instead of risking the process to be killed
+        // before the scheduled write
+        return flushPendingWrites()
     }
 
     override suspend fun removeEventsForPackage(packageName: String): Boolean {
-        synchronized(fileLock) {
-            val existingEvents = readData()
+        loadEventsIfNeeded()
+        val writeResult = synchronized(lock) {
+            val existingEvents = getEventsLocked()
+            val packageEvents = eventsByPackage[packageName] ?: return true
 
             val newEvents = existingEvents.filter { it.packageName != packageName }
-            return writeData(newEvents)
+            setEventsLocked(newEvents)
+            DumpableLog.d(LOG_TAG, "${packageEvents.size} permission events removed")
+            fullWritePending = true
+            scheduleWriteLocked()
         }
+        return writeResult.await()
     }
 
     override suspend fun updateEventsBySystemTimeDelta(diffSystemTimeMillis: Long): Boolean {
-        synchronized(fileLock) {
-            val existingEvents = readData()
+        loadEventsIfNeeded()
+        val writeResult = synchronized(lock) {
+            val existingEvents = getEventsLocked()
+            if (existingEvents.isEmpty()) {
+                return true
+            }
 
             val newEvents = existingEvents.map {
                 it.copyWithTimeDelta(diffSystemTimeMillis)
             }
-            return writeData(newEvents)
+            setEventsLocked(newEvents)
+            fullWritePending = true
+            scheduleWriteLocked()
+        }
+        return writeResult.await()
+    }
+
+    /**
+     * Writes all the pending changes to disk right away instead of waiting for the scheduled
+     * write.
+     *
+     * @return whether the write was successful
+     */
+    fun flushPendingWrites(): Boolean {
+        synchronized(lock) {
+            writeJob?.cancel()
+            writeJob = null
+        }
+        return writePendingChanges()
+    }
+
+    /**
+     * Loads the events from disk unless they are already in memory. Reading the journal can
+     * truncate it, so the files are read holding [fileLock], which is always taken before [lock].
+     */
+    private fun loadEventsIfNeeded() {
+        synchronized(lock) {
+            if (events != null) {
+                return
+            }
+        }
+        synchronized(fileLock) {
+            synchronized(lock) {
+                if (events != null) {
+                    return
+                }
+                setEventsLocked(readData())
+            }
+        }
+    }
+
+    /**
+     * Returns the in-memory events, which must have been loaded by [loadEventsIfNeeded].
+     */
+    @GuardedBy("lock")
+    private fun getEventsLocked(): MutableList<T> = checkNotNull(events) { "Events not loaded" }
+
+    @GuardedBy("lock")
+    private fun setEventsLocked(newEvents: List<T>) {
+        events = newEvents.toMutableList()
+        eventsByPackage.clear()
+        for (event in newEvents) {
+            eventsByPackage.getOrPut(event.packageName) { mutableListOf() }.add(event)
+        }
+    }
+
+    /**
+     * Schedules a write of the pending changes, unless one is already scheduled.
+     *
+     * @return the result of the write
+     */
+    @GuardedBy("lock")
+    private fun scheduleWriteLocked(): CompletableDeferred<Boolean> {
+        if (writeJob == null) {
+            writeJob = GlobalScope.launch(Dispatchers.IO) {
+                delay(WRITE_DELAY_MILLIS)
+                writePendingChanges()
+            }
+        }
+        return pendingWriteResult ?: CompletableDeferred<Boolean>().also {
+            pendingWriteResult = it
         }
     }
 
+    private fun writePendingChanges(): Boolean {
+        synchronized(fileLock) {
+            val eventsToWrite: List<T>?
+            val journalEvents: List<T>
+            val fullWrite: Boolean
+            val writeResult: CompletableDeferred<Boolean>?
+            synchronized(lock) {
+                writeJob = null
+                writeResult = pendingWriteResult
+                pendingWriteResult = null
+                fullWrite = fullWritePending || !isJournalEnabled()
+                eventsToWrite = events?.toList()
+                journalEvents = pendingJournalEvents.toList()
+                pendingJournalEvents.clear()
+                fullWritePending = false
+            }
+            if (eventsToWrite == null || (!fullWrite && journalEvents.isEmpty())) {
+                writeResult?.complete(true)
+                return true
+            }
+
+            val success = if (!fullWrite && appendToJournal(journalEvents)) {
+                // The events are already persisted in the journal, so a failed compaction will
+                // simply be retried on the next write
+                if (getJournalEventCount() >= MAX_JOURNAL_EVENTS) {
+                    writeData(eventsToWrite)
+                }
+                true
+            } else {
+                writeData(eventsToWrite)
+            }
+            if (!success) {
+                synchronized(lock) {
+                    // Retry on the next change
+                    fullWritePending = true
+                }
+            }
+            writeResult?.complete(success)
+            return success
+        }
+    }
+
+    @GuardedBy("fileLock")
     private fun writeData(events: List<T>): Boolean {
         val stream: FileOutputStream = try {
             dbFile.startWrite()
@@ -132,10 +361,22 @@ abstract class BasePermissionEventStorage<T : PermissionEvent>(
             return false
         }
 
+        // The written events always include the journaled ones, see readData()
+        deleteJournal()
         return true
     }
 
+    @GuardedBy("fileLock")
     private fun readData(): List<T> {
+        var allEvents = readDatabase()
+        for (event in readJournal()) {
+            allEvents = addEvent(allEvents, event)
+        }
+        return allEvents
+    }
+
+    @GuardedBy("fileLock")
+    private fun readDatabase(): List<T> {
         if (!dbFile.baseFile.exists()) {
             return emptyList()
         }
@@ -150,6 +391,149 @@ abstract class BasePermissionEventStorage<T : PermissionEvent>(
         }
     }
 
+    private fun addEvent(existingEvents: List<T>, event: T): List<T> {
+        val newEvents = mutableListOf<T>()
+        // add new event first to keep the list ordered
+        newEvents.add(event)
+        for (existingEvent in existingEvents) {
+            // ignore any old events that violate the primary key uniqueness with the database
+            if (hasTheSamePrimaryKey(existingEvent, event)) {
+                continue
+            }
+            newEvents.add(existingEvent)
+        }
+        return newEvents
+    }
+
+    /**
+     * Appends one length-prefixed record per serialized event to the journal.
+     */
+    @GuardedBy("fileLock")
+    private fun appendToJournal(events: List<T>): Boolean {
+        val records = ByteArrayOutputStream()
+        val out = DataOutputStream(records)
+        try {
+            for (event in events) {
+                val record = ByteArrayOutputStream()
+                serialize(record, listOf(event))
+                out.writeInt(record.size())
+                record.writeTo(out)
+            }
+            out.flush()
+        } catch (e: IOException) {
+            Log.e(LOG_TAG, "Failed to serialize journal records", e)
+            return false
+        }
+        try {
+            FileOutputStream(journalFile, /* append= */ true).use { stream ->
+                records.writeTo(stream)
+                stream.fd.sync()
+            }
+        } catch (e: IOException) {
+            Log.e(LOG_TAG, "Failed to append to journal file", e)
+            // Any partially written record is dropped when the journal is read back
+            return false
+        }
+        if (journalEventCount >= 0) {
+            journalEventCount += events.size
+        }
+        return true
+    }
+
+    /**
+     * Returns the journaled events in the order they were stored. A truncated or corrupted
+     * trailing record, e.g. after a crash during [appendToJournal], is cut off the journal, so that
+     * the events appended after it aren't hidden behind it.
+     */
+    @GuardedBy("fileLock")
+    private fun readJournal(): List<T> {
+        val events = mutableListOf<T>()
+        if (!journalFile.exists()) {
+            journalEventCount = 0
+            return events
+        }
+        // Length of the journal up to the end of the last valid record
+        var validLength = 0L
+        var isTailValid = false
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(journalFile))).use { input ->
+                while (true) {
+                    val size = try {
+                        input.readInt()
+                    } catch (e: EOFException) {
+                        isTailValid = validLength == journalFile.length()
+                        break
+                    }
+                    if (size < 0 || size > MAX_JOURNAL_RECORD_BYTES) {
+                        Log.e(LOG_TAG, "Invalid journal record size $size, ignoring the rest")
+                        break
+                    }
+                    val bytes = ByteArray(size)
+                    input.readFully(bytes)
+                    events.addAll(parse(ByteArrayInputStream(bytes)))
+                    validLength += Int.SIZE_BYTES + size
+                }
+            }
+        } catch (e: EOFException) {
+            Log.w(LOG_TAG, "Ignoring truncated journal record", e)
+        } catch (e: IOException) {
+            Log.e(LOG_TAG, "Failed to read journal file", e)
+        } catch (e: XmlPullParserException) {
+            Log.e(LOG_TAG, "Failed to read journal file", e)
+        }
+        if (!isTailValid) {
+            truncateJournal(validLength)
+        }
+        journalEventCount = events.size
+        return events
+    }
+
+    /**
+     * Cuts off an invalid tail of the journal. If that fails, the whole database is rewritten on
+     * the next write instead, which drops the journal.
+     */
+    @GuardedBy("fileLock")
+    private fun truncateJournal(validLength: Long) {
+        try {
+            FileOutputStream(journalFile, /* append= */ true).use { stream ->
+                stream.channel.truncate(validLength)
+                stream.fd.sync()
+            }
+        } catch (e: IOException) {
+            Log.e(LOG_TAG, "Failed to truncate journal file, rewriting the database", e)
+            synchronized(lock) {
+                fullWritePending = true
+            }
+        }
+    }
+
+    @GuardedBy("fileLock")
+    private fun getJournalEventCount(): Int {
+        if (journalEventCount < 0) {
+            readJournal()
+        }
+        return journalEventCount
+    }
+
+    @GuardedBy("fileLock")
+    private fun deleteJournal() {
+        if (journalFile.exists() && !journalFile.delete()) {
+            Log.e(LOG_TAG, "Failed to delete journal file")
+            journalEventCount = -1
+            return
+        }
+        journalEventCount = 0
+    }
+
+    /**
+     * Disabled by default, since a version of this module that doesn't know about the journal
+     * would silently drop the events only stored in it after a rollback.
+     */
+    private fun isJournalEnabled(): Boolean {
+        return DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_PERMISSIONS,
+            Utils.PROPERTY_PERMISSION_EVENTS_JOURNAL_ENABLED, /* defaultValue= */ false)
+    }
+
     /**
      * Serialize a list of permission events.
      *
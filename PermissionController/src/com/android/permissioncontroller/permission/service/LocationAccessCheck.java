@@ -113,12 +113,16 @@ import android.text.Html;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.Pair;
 
 import androidx.annotation.ChecksSdkIntAtLeast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 import androidx.core.util.Preconditions;
 
@@ -131,7 +135,9 @@ import com.android.permissioncontroller.permission.utils.Utils;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -141,6 +147,12 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
@@ -193,6 +205,32 @@ public class LocationAccessCheck {
      */
     private static final Object sLock = new Object();
 
+    /**
+     * In-memory copy of the packages we already shown a notification for, mapped to whether their
+     * warning was dismissed in safety center, or {@code null} if not loaded yet.
+     *
+     * <p>Kept across instances so that the file only needs to be read once per process.
+     */
+    // @GuardedBy("sLock")
+    private static @Nullable ArrayMap<Pair<String, UserHandle>, Boolean>
+            sAlreadyNotifiedPackages;
+
+    /**
+     * Max number of packages whose location permissions are evaluated in parallel
+     */
+    private static final int MAX_LOCATION_GROUP_THREADS = 4;
+
+    /**
+     * Time after which the idle threads evaluating location permissions are stopped
+     */
+    private static final long LOCATION_GROUP_THREADS_KEEP_ALIVE_MILLIS = 10 * 1000;
+
+    /**
+     * Pool used to evaluate the location permissions of multiple packages in parallel
+     */
+    private static final ThreadPoolExecutor sLocationGroupExecutor =
+            createLocationGroupExecutor();
+
     private final Random mRandom = new Random();
 
     private final @NonNull Context mContext;
@@ -259,82 +297,172 @@ public class LocationAccessCheck {
     }
 
     /**
-     * Load the list of {@link UserPackage packages} we already shown a notification for.
+     * Get the in-memory copy of the packages we already shown a notification for, loading it from
+     * disk if needed.
      *
-     * @return The list of packages we already shown a notification for.
+     * @return A map from the packages we already shown a notification for to whether their
+     * warning was dismissed in safety center
      */
-    private @NonNull ArraySet<UserPackage> loadAlreadyNotifiedPackagesLocked() {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
-            mContext.openFileInput(LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE)))) {
-            ArraySet<UserPackage> packages = new ArraySet<>();
-
-            /*
-             * The format of the file is <package> <serial of user> <dismissed in safety center>,
-             * Since notification timestamp was added later it is possible that it might be
-             * missing during the first check. We need to handle that.
-             *
-             * e.g.
-             * com.one.package 5630633845 true
-             * com.two.package 5630633853 false
-             * com.three.package 5630633853 false
-             */
-            while (true) {
-                String line = reader.readLine();
-                if (line == null) {
-                    break;
-                }
-                String[] lineComponents = line.split(" ");
-                String pkg = lineComponents[0];
-                UserHandle user = mUserManager.getUserForSerialNumber(
-                        Long.valueOf(lineComponents[1]));
-                boolean dismissedInSafetyCenter = lineComponents.length == 3
-                        ? Boolean.valueOf(lineComponents[2]) : false;
-                if (user != null) {
-                    UserPackage userPkg = new UserPackage(mContext, pkg, user,
-                            dismissedInSafetyCenter);
-                    packages.add(userPkg);
-                } else {
-                    Log.i(LOG_TAG, "Not restoring state \"" + line + "\" as user is unknown");
-                }
-            }
-            return packages;
+    private @NonNull ArrayMap<Pair<String, UserHandle>, Boolean>
+            getAlreadyNotifiedPackagesLocked() {
+        if (sAlreadyNotifiedPackages == null) {
+            sAlreadyNotifiedPackages = readAlreadyNotifiedPackagesLocked();
+        }
+        return sAlreadyNotifiedPackages;
+    }
+
+    /**
+     * Read the packages we already shown a notification for from disk.
+     *
+     * @return A map from the packages we already shown a notification for to whether their
+     * warning was dismissed in safety center
+     */
+    private @NonNull ArrayMap<Pair<String, UserHandle>, Boolean>
+            readAlreadyNotifiedPackagesLocked() {
+        AtomicFile file = getAlreadyNotifiedPackagesFile();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.openRead()))) {
+            return readAlreadyNotifiedPackages(reader, mUserManager);
         } catch (FileNotFoundException ignored) {
-            return new ArraySet<>();
+            return new ArrayMap<>();
         } catch (Exception e) {
             Log.w(LOG_TAG, "Could not read " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE, e);
-            return new ArraySet<>();
+            return new ArrayMap<>();
         }
     }
 
     /**
-     * Persist the list of {@link UserPackage packages} we have already shown a notification for.
+     * Parse the packages we already shown a notification for.
+     *
+     * <p>The format of the file is {@code <package> <serial of user> <dismissed in safety
+     * center>}, e.g.
+     * <pre>
+     * com.one.package 5630633845 true
+     * com.two.package 5630633853 false
+     * com.three.package 5630633853 false
+     * </pre>
+     * Since the dismissed state was added later it might be missing, in which case it is
+     * {@code false}. Packages of users that no longer exist are dropped.
      *
-     * @param packages The list of packages we already shown a notification for.
+     * @param reader The reader for the file
+     * @param userManager The user manager used to resolve the serial numbers
+     *
+     * @return A map from the packages we already shown a notification for to whether their
+     * warning was dismissed in safety center
      */
-    private void persistAlreadyNotifiedPackagesLocked(@NonNull ArraySet<UserPackage> packages) {
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-                mContext.openFileOutput(LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE,
-                        MODE_PRIVATE)))) {
-            /*
-             * The format of the file is <package> <serial of user> <dismissed in safety center>,
-             * e.g.
-             * com.one.package 5630633845 true
-             * com.two.package 5630633853 false
-             * com.three.package 5630633853 false
-             */
-            int numPkgs = packages.size();
-            for (int i = 0; i < numPkgs; i++) {
-                UserPackage userPkg = packages.valueAt(i);
-                writer.append(userPkg.pkg);
-                writer.append(' ');
-                writer.append(
-                        Long.valueOf(mUserManager.getSerialNumberForUser(userPkg.user)).toString());
-                writer.append(' ');
-                writer.append(Boolean.toString(userPkg.dismissedInSafetyCenter));
-                writer.newLine();
+    @VisibleForTesting
+    public static @NonNull ArrayMap<Pair<String, UserHandle>, Boolean>
+            readAlreadyNotifiedPackages(@NonNull BufferedReader reader,
+            @NonNull UserManager userManager) throws IOException {
+        ArrayMap<Pair<String, UserHandle>, Boolean> packages = new ArrayMap<>();
+        LongSparseArray<UserHandle> usersForSerialNumber = new LongSparseArray<>();
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            String[] lineComponents = line.split(" ");
+            String pkg = lineComponents[0];
+            long serialNumber = Long.parseLong(lineComponents[1]);
+            int userIndex = usersForSerialNumber.indexOfKey(serialNumber);
+            UserHandle user;
+            if (userIndex >= 0) {
+                user = usersForSerialNumber.valueAt(userIndex);
+            } else {
+                user = userManager.getUserForSerialNumber(serialNumber);
+                usersForSerialNumber.put(serialNumber, user);
             }
+            boolean dismissedInSafetyCenter = lineComponents.length == 3
+                    ? Boolean.valueOf(lineComponents[2]) : false;
+            if (user != null) {
+                packages.put(new Pair<>(pkg, user), dismissedInSafetyCenter);
+            } else {
+                Log.i(LOG_TAG, "Not restoring state \"" + line + "\" as user is unknown");
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Load the list of {@link UserPackage packages} we already shown a notification for.
+     *
+     * @return The list of packages we already shown a notification for.
+     */
+    private @NonNull ArraySet<UserPackage> loadAlreadyNotifiedPackagesLocked() {
+        ArrayMap<Pair<String, UserHandle>, Boolean> alreadyNotifiedPackages =
+                getAlreadyNotifiedPackagesLocked();
+        int numPkgs = alreadyNotifiedPackages.size();
+        ArraySet<UserPackage> packages = new ArraySet<>(numPkgs);
+        for (int i = 0; i < numPkgs; i++) {
+            Pair<String, UserHandle> userPkg = alreadyNotifiedPackages.keyAt(i);
+            packages.add(new UserPackage(mContext, userPkg.first, userPkg.second,
+                    alreadyNotifiedPackages.valueAt(i)));
+        }
+        return packages;
+    }
+
+    /**
+     * Persist the in-memory copy of the packages we have already shown a notification for.
+     *
+     * <p>The file is replaced atomically, so that it is never left partially written.
+     */
+    private void persistAlreadyNotifiedPackagesLocked() {
+        ArrayMap<Pair<String, UserHandle>, Boolean> packages = getAlreadyNotifiedPackagesLocked();
+        AtomicFile file = getAlreadyNotifiedPackagesFile();
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+            writeAlreadyNotifiedPackages(writer, packages, mUserManager);
+            writer.flush();
+            file.finishWrite(out);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Could not write " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE, e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Write the packages we already shown a notification for in the format read by
+     * {@link #readAlreadyNotifiedPackages}.
+     *
+     * <p>The serial numbers are looked up on every write rather than cached, so that a removed
+     * user is never written under a stale serial number. Packages of users that no longer exist
+     * are removed from {@code packages} and not written.
+     *
+     * @param writer The writer for the file
+     * @param packages A map from the packages we already shown a notification for to whether
+     *                 their warning was dismissed in safety center
+     * @param userManager The user manager used to look up the serial numbers
+     */
+    @VisibleForTesting
+    public static void writeAlreadyNotifiedPackages(@NonNull BufferedWriter writer,
+            @NonNull ArrayMap<Pair<String, UserHandle>, Boolean> packages,
+            @NonNull UserManager userManager) throws IOException {
+        ArrayMap<UserHandle, Long> serialNumbersForUser = new ArrayMap<>();
+        for (int i = packages.size() - 1; i >= 0; i--) {
+            Pair<String, UserHandle> userPkg = packages.keyAt(i);
+            Long serialNumber = serialNumbersForUser.get(userPkg.second);
+            if (serialNumber == null) {
+                serialNumber = userManager.getSerialNumberForUser(userPkg.second);
+                serialNumbersForUser.put(userPkg.second, serialNumber);
+            }
+            if (serialNumber < 0) {
+                Log.i(LOG_TAG, "Forgetting " + userPkg.first + " as " + userPkg.second
+                        + " is unknown");
+                packages.removeAt(i);
+            }
+        }
+        int numPkgs = packages.size();
+        for (int i = 0; i < numPkgs; i++) {
+            Pair<String, UserHandle> userPkg = packages.keyAt(i);
+            writer.append(userPkg.first);
+            writer.append(' ');
+            writer.append(Long.toString(serialNumbersForUser.get(userPkg.second)));
+            writer.append(' ');
+            writer.append(Boolean.toString(packages.valueAt(i)));
+            writer.newLine();
         }
     }
 
@@ -349,13 +477,12 @@ public class LocationAccessCheck {
     private void markAsNotified(@NonNull String pkg, @NonNull UserHandle user,
             boolean dismissedInSafetyCenter) {
         synchronized (sLock) {
-            ArraySet<UserPackage> alreadyNotifiedPackages = loadAlreadyNotifiedPackagesLocked();
-            UserPackage userPackage = new UserPackage(mContext, pkg, user, dismissedInSafetyCenter);
-            // Remove stale persisted info
-            alreadyNotifiedPackages.remove(userPackage);
-            // Persist new info about the package
-            alreadyNotifiedPackages.add(userPackage);
-            persistAlreadyNotifiedPackagesLocked(alreadyNotifiedPackages);
+            Boolean previousDismissedInSafetyCenter = getAlreadyNotifiedPackagesLocked().put(
+                    new Pair<>(pkg, user), dismissedInSafetyCenter);
+            if (previousDismissedInSafetyCenter == null
+                    || previousDismissedInSafetyCenter != dismissedInSafetyCenter) {
+                persistAlreadyNotifiedPackagesLocked();
+            }
         }
     }
 
@@ -507,10 +634,21 @@ public class LocationAccessCheck {
     private @NonNull List<UserPackage> getLocationUsersLocked(
             @NonNull List<PackageOps> allOps) throws InterruptedException {
         List<UserPackage> pkgsWithLocationAccess = new ArrayList<>();
-        List<UserHandle> profiles = mUserManager.getUserProfiles();
 
+        // We show only bg accesses since the location access check feature was enabled to handle
+        // cases where the feature is remotely toggled since we don't want to notify for accesses
+        // before the feature was turned on.
+        long featureEnabledTime = getLocationAccessCheckEnabledTime();
+        if (featureEnabledTime < 0) {
+            return pkgsWithLocationAccess;
+        }
+
+        List<UserHandle> profiles = mUserManager.getUserProfiles();
         LocationManager lm = mContext.getSystemService(LocationManager.class);
 
+        // First only keep the packages with a relevant background access, which is cheap to check,
+        // before looking at their permissions.
+        List<UserPackage> candidatePkgs = new ArrayList<>();
         int numPkgs = allOps.size();
         for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
             PackageOps packageOps = allOps.get(pkgNum);
@@ -526,60 +664,120 @@ public class LocationAccessCheck {
                 continue;
             }
 
-            UserPackage userPkg = new UserPackage(mContext, pkg, user, false);
-            AppPermissionGroup bgLocationGroup = userPkg.getBackgroundLocationGroup();
-            // Do not show notification that do not request the background permission anymore
-            if (bgLocationGroup == null) {
-                continue;
+            if (hasTrustedBackgroundAccessSince(packageOps, lm, featureEnabledTime)) {
+                candidatePkgs.add(new UserPackage(mContext, pkg, user, false));
             }
+        }
+        throwInterruptedExceptionIfTaskIsCanceled();
 
-            // Do not show notification that do not currently have the background permission
-            // granted
-            if (!bgLocationGroup.areRuntimePermissionsGranted()) {
-                continue;
+        // Then evaluate the permissions of the remaining packages in parallel.
+        int numCandidatePkgs = candidatePkgs.size();
+        List<Future<Boolean>> hasNotifiableLocationGroupResults = new ArrayList<>(numCandidatePkgs);
+        try {
+            for (int i = 0; i < numCandidatePkgs; i++) {
+                UserPackage userPkg = candidatePkgs.get(i);
+                hasNotifiableLocationGroupResults.add(sLocationGroupExecutor.submit(
+                        () -> hasNotifiableBackgroundLocationGroup(userPkg)));
+            }
+            for (int i = 0; i < numCandidatePkgs; i++) {
+                throwInterruptedExceptionIfTaskIsCanceled();
+                if (hasNotifiableLocationGroupResults.get(i).get()) {
+                    pkgsWithLocationAccess.add(candidatePkgs.get(i));
+                }
             }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(e);
+        } finally {
+            int numResults = hasNotifiableLocationGroupResults.size();
+            for (int i = 0; i < numResults; i++) {
+                hasNotifiableLocationGroupResults.get(i).cancel(false);
+            }
+        }
+        return pkgsWithLocationAccess;
+    }
+
+    private static @NonNull ThreadPoolExecutor createLocationGroupExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LOCATION_GROUP_THREADS,
+                MAX_LOCATION_GROUP_THREADS, LOCATION_GROUP_THREADS_KEEP_ALIVE_MILLIS,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, LOG_TAG + "-" + threadCount.incrementAndGet()));
+        // Don't keep any thread around between checks
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
-            // Do not show notification for permissions that are not user sensitive
-            if (!bgLocationGroup.isUserSensitive()) {
+    /**
+     * Check whether a package accessed the location in the background since the given time, only
+     * considering accesses that are attributed to it by a trusted package.
+     *
+     * @param packageOps The location ops of the package
+     * @param lm The location manager
+     * @param sinceTime The time from which to consider accesses
+     * @return Whether the package accessed the location in the background since the given time
+     */
+    private static boolean hasTrustedBackgroundAccessSince(@NonNull PackageOps packageOps,
+            @NonNull LocationManager lm, long sinceTime) {
+        int numOps = packageOps.getOps().size();
+        for (int opNum = 0; opNum < numOps; opNum++) {
+            OpEntry entry = packageOps.getOps().get(opNum);
+
+            // To protect against OEM apps that accidentally blame app ops on other packages
+            // since they can hold the privileged UPDATE_APP_OPS_STATS permission for location
+            // access in the background we trust only the OS and the location providers. Note
+            // that this mitigation only handles usage of AppOpsManager#noteProxyOp and not
+            // direct usage of AppOpsManager#noteOp, i.e. handles bad blaming and not bad
+            // attribution.
+            String proxyPackageName = entry.getProxyPackageName();
+            if (proxyPackageName != null && !proxyPackageName.equals(OS_PKG)
+                    && !lm.isProviderPackage(proxyPackageName)) {
                 continue;
             }
 
-            // Never show notification for pregranted permissions as warning the user via the
-            // notification and then warning the user again when revoking the permission is
-            // confusing
-            if (userPkg.getLocationGroup().hasGrantedByDefaultPermission()
-                    && bgLocationGroup.hasGrantedByDefaultPermission()) {
-                continue;
+            if (entry.getLastAccessBackgroundTime(AppOpsManager.OP_FLAGS_ALL_TRUSTED)
+                    >= sinceTime) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            int numOps = packageOps.getOps().size();
-            for (int opNum = 0; opNum < numOps; opNum++) {
-                OpEntry entry = packageOps.getOps().get(opNum);
-
-                // To protect against OEM apps that accidentally blame app ops on other packages
-                // since they can hold the privileged UPDATE_APP_OPS_STATS permission for location
-                // access in the background we trust only the OS and the location providers. Note
-                // that this mitigation only handles usage of AppOpsManager#noteProxyOp and not
-                // direct usage of AppOpsManager#noteOp, i.e. handles bad blaming and not bad
-                // attribution.
-                String proxyPackageName = entry.getProxyPackageName();
-                if (proxyPackageName != null && !proxyPackageName.equals(OS_PKG)
-                        && !lm.isProviderPackage(proxyPackageName)) {
-                    continue;
-                }
+    /**
+     * Check whether a package currently has a background location permission we should notify
+     * about.
+     *
+     * <p>This can be called concurrently for multiple packages.
+     *
+     * @param userPkg The package to check
+     * @return Whether the package has a background location permission we should notify about
+     */
+    private static boolean hasNotifiableBackgroundLocationGroup(@NonNull UserPackage userPkg) {
+        AppPermissionGroup bgLocationGroup = userPkg.getBackgroundLocationGroup();
+        // Do not show notification that do not request the background permission anymore
+        if (bgLocationGroup == null) {
+            return false;
+        }
 
-                // We show only bg accesses since the location access check feature was enabled
-                // to handle cases where the feature is remotely toggled since we don't want to
-                // notify for accesses before the feature was turned on.
-                long featureEnabledTime = getLocationAccessCheckEnabledTime();
-                if (featureEnabledTime >= 0 && entry.getLastAccessBackgroundTime(
-                        AppOpsManager.OP_FLAGS_ALL_TRUSTED) >= featureEnabledTime) {
-                    pkgsWithLocationAccess.add(userPkg);
-                    break;
-                }
-            }
+        // Do not show notification that do not currently have the background permission
+        // granted
+        if (!bgLocationGroup.areRuntimePermissionsGranted()) {
+            return false;
         }
-        return pkgsWithLocationAccess;
+
+        // Do not show notification for permissions that are not user sensitive
+        if (!bgLocationGroup.isUserSensitive()) {
+            return false;
+        }
+
+        // Never show notification for pregranted permissions as warning the user via the
+        // notification and then warning the user again when revoking the permission is
+        // confusing
+        return !(userPkg.getLocationGroup().hasGrantedByDefaultPermission()
+                && bgLocationGroup.hasGrantedByDefaultPermission());
     }
 
     private void filterAlreadyNotifiedPackagesLocked(
@@ -785,7 +983,14 @@ public class LocationAccessCheck {
 
         if (!packagesToRemove.isEmpty()) {
             alreadyNotifiedPkgs.removeAll(packagesToRemove);
-            persistAlreadyNotifiedPackagesLocked(alreadyNotifiedPkgs);
+            ArrayMap<Pair<String, UserHandle>, Boolean> alreadyNotifiedPackages =
+                    getAlreadyNotifiedPackagesLocked();
+            int numPkgsToRemove = packagesToRemove.size();
+            for (int i = 0; i < numPkgsToRemove; i++) {
+                UserPackage userPkg = packagesToRemove.get(i);
+                alreadyNotifiedPackages.remove(new Pair<>(userPkg.pkg, userPkg.user));
+            }
+            persistAlreadyNotifiedPackagesLocked();
             throwInterruptedExceptionIfTaskIsCanceled();
         }
     }
@@ -805,9 +1010,9 @@ public class LocationAccessCheck {
                         pkg, LOCATION_ACCESS_CHECK_NOTIFICATION_ID);
             }
 
-            ArraySet<UserPackage> packages = loadAlreadyNotifiedPackagesLocked();
-            packages.remove(new UserPackage(mContext, pkg, user, false));
-            persistAlreadyNotifiedPackagesLocked(packages);
+            if (getAlreadyNotifiedPackagesLocked().remove(new Pair<>(pkg, user)) != null) {
+                persistAlreadyNotifiedPackagesLocked();
+            }
         }
     }
 
@@ -915,7 +1120,9 @@ public class LocationAccessCheck {
     private Set<UserPackage> getAlreadyDismissedPackages(
             @Nullable ArraySet<UserPackage> alreadyNotifiedPackages) {
         if (alreadyNotifiedPackages == null) {
-            alreadyNotifiedPackages = loadAlreadyNotifiedPackagesLocked();
+            synchronized (sLock) {
+                alreadyNotifiedPackages = loadAlreadyNotifiedPackagesLocked();
+            }
         }
         return alreadyNotifiedPackages.stream().filter(
                 pkg -> pkg.dismissedInSafetyCenter).collect(
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.content.pm.PackageManager
+import android.content.pm.PackageManager.GET_PERMISSIONS
+import android.content.pm.PackageManager.MATCH_ALL
+import android.os.Process
+import android.permission.PermissionControllerManager.COUNT_ONLY_WHEN_GRANTED
+import android.permission.PermissionControllerManager.COUNT_WHEN_SYSTEM
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.data.AppPermGroupUiInfoCalculator
+import com.android.permissioncontroller.permission.data.PackagePermissionFlagsLoader
+import com.android.permissioncontroller.permission.data.PermGroupLiveData
+import com.android.permissioncontroller.permission.data.PermStateLiveData
+import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo.PermGrantState
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.utils.PermissionMapping
+import com.android.permissioncontroller.permission.utils.Utils
+
+/**
+ * Counts the apps that have at least one of a list of permissions, directly from a snapshot of the
+ * installed packages and of their permission flags instead of from a LiveData per package and
+ * permission group.
+ *
+ * <p>Counts are computed again on every call, as not all of their inputs, e.g. the location state
+ * or app ops, report their changes. Permission flags already cached by
+ * [PackagePermissionFlagsLoader] are reused, but the flags fetched for a count aren't cached, as
+ * nothing would invalidate them.
+ */
+object PermissionAppsCounter {
+
+    private val app = PermissionControllerApplication.get()
+
+    /**
+     * Counts the number of apps that have at least one of a provided list of permissions, subject
+     * to the options specified in flags. Must not be called on the main thread.
+     *
+     * @param permissionNames The list of permission names whose apps we want to count
+     * @param flags Flags specifying if we want to count system apps, and count only granted apps
+     *
+     * @return The number of apps
+     */
+    fun countPermissionApps(permissionNames: List<String>, flags: Int): Int {
+        val countSystem = flags and COUNT_WHEN_SYSTEM != 0
+        val countOnlyGranted = flags and COUNT_ONLY_WHEN_GRANTED != 0
+        val user = Process.myUserHandle()
+
+        // Store the group of all installed, runtime permissions in permissionNames
+        val permToGroup = mutableMapOf<String, String>()
+        for (permName in permissionNames) {
+            val permInfo = try {
+                app.packageManager.getPermissionInfo(permName, 0)
+            } catch (e: PackageManager.NameNotFoundException) {
+                continue
+            }
+
+            if (Utils.isPermissionDangerousInstalledNotRemoved(permInfo)) {
+                PermissionMapping.getGroupOfPermission(permInfo)?.let { groupName ->
+                    permToGroup[permName] = groupName
+                }
+            }
+        }
+        if (permToGroup.isEmpty()) {
+            return 0
+        }
+
+        val permGroups = permToGroup.values.toSet().mapNotNull { groupName ->
+            PermGroupLiveData.loadPermGroup(app, groupName)
+        }.associateBy { it.name }
+        val packageInfos = app.packageManager
+            .getInstalledPackagesAsUser(GET_PERMISSIONS or MATCH_ALL, user.identifier)
+
+        var packagesWithPermission = 0
+        for (pI in packageInfos) {
+            val packageInfo = LightPackageInfo(pI)
+            val groupNames = permToGroup.filterKeys { it in packageInfo.requestedPermissions }
+                .values.toSet()
+
+            var packageAdded = false
+            for (groupName in groupNames) {
+                val permGroup = permGroups[groupName] ?: continue
+                val permissionState = PermStateLiveData.loadPermStates(packageInfo, permGroup,
+                    user, cacheLoadedFlags = false)
+                val uiInfo = AppPermGroupUiInfoCalculator(app, packageInfo.packageName,
+                    groupName, user).getAppPermGroupUiInfo(packageInfo, permGroup.groupInfo,
+                    permGroup.permissionInfos, permissionState)
+
+                if (uiInfo.shouldShow && (!uiInfo.isSystem || countSystem)) {
+                    val granted = uiInfo.permGrantState != PermGrantState.PERMS_DENIED &&
+                        uiInfo.permGrantState != PermGrantState.PERMS_ASK
+                    if (granted || !countOnlyGranted && !packageAdded) {
+                        // The permission might not be granted, but some permissions of the
+                        // group are granted. In this case the permission is granted silently
+                        // when the app asks for it.
+                        // Hence this is as-good-as-granted and we count it.
+                        packageAdded = true
+                        packagesWithPermission++
+                    }
+                }
+            }
+        }
+        return packagesWithPermission
+    }
+}
@@ -482,8 +482,7 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     public void onCountPermissionApps(@NonNull List<String> permissionNames, int flags,
             @NonNull IntConsumer callback) {
         // There is no data processing needed, so we just directly pass the result onto the callback
-        mServiceModel.onCountPermissionAppsLiveData(permissionNames, flags,
-                callback);
+        mServiceModel.onCountPermissionApps(permissionNames, flags, callback);
     }
 
     /**
@@ -19,9 +19,13 @@
 package com.android.permissioncontroller.permission.utils
 
 import android.content.pm.PackageManager
+import android.os.Process
 import android.os.UserHandle
 import android.util.Log
+import androidx.annotation.GuardedBy
+import androidx.annotation.VisibleForTesting
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.PermissionControllerProto.UserSensitiveFlagsUpdateDumpProto
 import com.android.permissioncontroller.permission.data.UserSensitivityLiveData
 import com.android.permissioncontroller.permission.model.livedatatypes.UidSensitivityState
 import com.android.permissioncontroller.permission.utils.Utils.FLAGS_ALWAYS_USER_SENSITIVE
@@ -31,6 +35,19 @@ import java.lang.IllegalStateException
 
 private const val LOG_TAG = "UserSensitiveFlagsUtils"
 
+/** How many updates are kept for dumping */
+private const val MAX_RECENT_UPDATES = 10
+
+/**
+ * A permission requested by a package.
+ */
+private data class PermissionKey(val uid: Int, val packageName: String, val permissionName: String)
+
+private val lock = Any()
+
+@GuardedBy("lock")
+private val recentUpdates = ArrayDeque<UserSensitiveFlagsUpdateDumpProto>(MAX_RECENT_UPDATES)
+
 /**
  * Update the [PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED] and
  * [PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED] for all apps of this user.
@@ -56,35 +73,120 @@ fun updateUserSensitiveForUser(user: UserHandle, callback: Runnable) {
 private fun updateUserSensitiveForUidsInternal(
     uidsUserSensitivity: Map<Int, UidSensitivityState>,
     user: UserHandle,
-    callback: Runnable?
+    callback: Runnable?,
+    updatedUid: Int = Process.INVALID_UID
 ) {
     val userContext = Utils.getUserContext(PermissionControllerApplication.get(), user)
-    val pm = userContext.packageManager
+    reconcileUserSensitiveFlags(uidsUserSensitivity, user, userContext.packageManager, updatedUid)
+    callback?.run()
+}
 
+/**
+ * Read the current user sensitive flags of the permissions requested by the packages of
+ * [uidsUserSensitivity], and then only update the flags that differ from the target ones. The
+ * current flags are always read, as they can be changed outside of this process at any time, e.g.
+ * by a permission reset or a package update.
+ *
+ * @param uidsUserSensitivity The target state of the uids to update
+ * @param user The user of the uids
+ * @param pm The package manager of the user
+ * @param updatedUid The uid that is updated, or [Process.INVALID_UID] if all the uids of the
+ * user are updated
+ *
+ * @return The record of the update, which is also kept for dumping
+ */
+@VisibleForTesting
+internal fun reconcileUserSensitiveFlags(
+    uidsUserSensitivity: Map<Int, UidSensitivityState>,
+    user: UserHandle,
+    pm: PackageManager,
+    updatedUid: Int
+): UserSensitiveFlagsUpdateDumpProto {
+    val startTime = System.currentTimeMillis()
+
+    // Diff the target flags of all the permissions against their current flags first
+    val changedFlags = mutableListOf<Pair<PermissionKey, Int>>()
+    var numPermissions = 0
+    var numFlagsRead = 0
     for ((uid, uidState) in uidsUserSensitivity) {
-            for (pkg in uidState.packages) {
-                for (perm in pkg.requestedPermissions) {
-                    var flags = uidState.permStates[perm] ?: continue
-
-                    try {
-                        val oldFlags = pm.getPermissionFlags(perm, pkg.packageName, user) and
-                            FLAGS_ALWAYS_USER_SENSITIVE
-                        if (flags != oldFlags) {
-                            pm.updatePermissionFlags(perm, pkg.packageName,
-                                FLAGS_ALWAYS_USER_SENSITIVE, flags, user)
-                        }
-                    } catch (e: IllegalArgumentException) {
-                        if (e.message?.startsWith("Unknown permission: ") == false) {
-                            Log.e(LOG_TAG, "Unexpected exception while updating flags for " +
-                                "${pkg.packageName} (uid $uid) permission $perm", e)
-                        } else {
-                            // Unknown permission - ignore
-                        }
+        for (pkg in uidState.packages) {
+            for (perm in pkg.requestedPermissions) {
+                val flags = uidState.permStates[perm] ?: continue
+                val key = PermissionKey(uid, pkg.packageName, perm)
+                numPermissions++
+
+                try {
+                    numFlagsRead++
+                    val oldFlags = pm.getPermissionFlags(perm, pkg.packageName, user) and
+                        FLAGS_ALWAYS_USER_SENSITIVE
+                    if (flags != oldFlags) {
+                        changedFlags.add(key to flags)
                     }
+                } catch (e: IllegalArgumentException) {
+                    logUpdateException(key, e)
                 }
             }
         }
-    callback?.run()
+    }
+
+    // Then only apply the flags that actually changed
+    var numFlagsUpdated = 0
+    for ((key, flags) in changedFlags) {
+        try {
+            pm.updatePermissionFlags(key.permissionName, key.packageName,
+                FLAGS_ALWAYS_USER_SENSITIVE, flags, user)
+            numFlagsUpdated++
+        } catch (e: IllegalArgumentException) {
+            logUpdateException(key, e)
+        }
+    }
+
+    val update = UserSensitiveFlagsUpdateDumpProto.newBuilder()
+        .setStartTimeMillis(startTime)
+        .setDurationMillis(System.currentTimeMillis() - startTime)
+        .setUserId(user.identifier)
+        .setUid(updatedUid)
+        .setNumPermissions(numPermissions)
+        .setNumFlagsRead(numFlagsRead)
+        .setNumFlagsUpdated(numFlagsUpdated)
+        .build()
+    synchronized(lock) {
+        if (recentUpdates.size == MAX_RECENT_UPDATES) {
+            recentUpdates.removeFirst()
+        }
+        recentUpdates.addLast(update)
+    }
+    return update
+}
+
+private fun logUpdateException(key: PermissionKey, e: IllegalArgumentException) {
+    if (e.message?.startsWith("Unknown permission: ") == false) {
+        Log.e(LOG_TAG, "Unexpected exception while updating flags for " +
+            "${key.packageName} (uid ${key.uid}) permission ${key.permissionName}", e)
+    } else {
+        // Unknown permission - ignore
+    }
+}
+
+/**
+ * Get the most recent user sensitive flags updates, for dumping.
+ *
+ * @return The updates, oldest first
+ */
+fun dumpUserSensitiveFlagsUpdates(): List<UserSensitiveFlagsUpdateDumpProto> {
+    return synchronized(lock) {
+        recentUpdates.toList()
+    }
+}
+
+/**
+ * Forget the recent user sensitive flags updates.
+ */
+@VisibleForTesting
+internal fun clearUserSensitiveFlagsUpdates() {
+    synchronized(lock) {
+        recentUpdates.clear()
+    }
 }
 
 /**
@@ -99,7 +201,7 @@ fun updateUserSensitiveForUid(uid: Int, callback: Runnable? = null) {
         val uidSensitivityState = UserSensitivityLiveData[uid].getInitializedValue()
         if (uidSensitivityState != null) {
             updateUserSensitiveForUidsInternal(uidSensitivityState,
-                UserHandle.getUserHandleForUid(uid), callback)
+                UserHandle.getUserHandleForUid(uid), callback, uid)
         } else {
             Log.e(LOG_TAG, "No packages associated with uid $uid, not updating flags")
             callback?.run()
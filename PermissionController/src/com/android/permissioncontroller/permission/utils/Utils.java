@@ -183,6 +183,13 @@ public final class Utils {
     public static final String PROPERTY_PERMISSION_DECISIONS_MAX_DATA_AGE_MILLIS =
             "permission_decisions_max_data_age_millis";
 
+    /**
+     * Whether new permission events are appended to a journal that is periodically compacted into
+     * the event store, instead of rewriting the whole store for every event
+     */
+    public static final String PROPERTY_PERMISSION_EVENTS_JOURNAL_ENABLED =
+            "permission_events_journal_enabled";
+
     /** Whether or not warning banner is displayed when device sensors are off **/
     public static final String PROPERTY_WARNING_BANNER_DISPLAY_ENABLED = "warning_banner_enabled";
 
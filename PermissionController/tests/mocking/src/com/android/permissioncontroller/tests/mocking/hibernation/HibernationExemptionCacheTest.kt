@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.hibernation
+
+import android.content.Context
+import android.os.UserHandle
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.permissioncontroller.hibernation.HibernationExemptionCache
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Unit tests for [HibernationExemptionCache].
+ */
+@RunWith(AndroidJUnit4::class)
+class HibernationExemptionCacheTest {
+
+    companion object {
+        private const val PACKAGE_NAME = "com.example.app"
+        private const val INPUTS_HASH = 42
+        private const val NOW = 1_000_000L
+        private val USER = UserHandle.of(0)
+    }
+
+    private lateinit var filesDir: File
+
+    @Before
+    fun setup() {
+        filesDir = File(ApplicationProvider.getApplicationContext<Context>()
+            .cacheDir, "hibernation_exemption_cache_test")
+        filesDir.mkdirs()
+    }
+
+    @After
+    fun cleanup() {
+        filesDir.deleteRecursively()
+    }
+
+    @Test
+    fun get_withNoVerdict_shouldReturnNull() {
+        val cache = HibernationExemptionCache.inDirectory(filesDir)
+
+        assertThat(cache.get(PACKAGE_NAME, USER, INPUTS_HASH, NOW)).isNull()
+    }
+
+    @Test
+    fun get_afterWrite_shouldReturnPersistedVerdict() {
+        HibernationExemptionCache.inDirectory(filesDir).apply {
+            put(PACKAGE_NAME, USER, INPUTS_HASH, NOW, true)
+            write()
+        }
+
+        val cache = HibernationExemptionCache.inDirectory(filesDir)
+
+        assertThat(cache.get(PACKAGE_NAME, USER, INPUTS_HASH, NOW)).isTrue()
+    }
+
+    @Test
+    fun get_withChangedInputsHash_shouldReturnNull() {
+        val cache = HibernationExemptionCache.inDirectory(filesDir)
+        cache.put(PACKAGE_NAME, USER, INPUTS_HASH, NOW, false)
+
+        assertThat(cache.get(PACKAGE_NAME, USER, INPUTS_HASH + 1, NOW)).isNull()
+    }
+
+    @Test
+    fun get_withExpiredVerdict_shouldReturnNull() {
+        val cache = HibernationExemptionCache.inDirectory(filesDir)
+        cache.put(PACKAGE_NAME, USER, INPUTS_HASH, NOW, false)
+
+        val later = NOW + HibernationExemptionCache.MAX_VERDICT_AGE_MS + 1
+        assertThat(cache.get(PACKAGE_NAME, USER, INPUTS_HASH, later)).isNull()
+    }
+
+    @Test
+    fun retainAll_shouldDropOtherPackages() {
+        val cache = HibernationExemptionCache.inDirectory(filesDir)
+        cache.put(PACKAGE_NAME, USER, INPUTS_HASH, NOW, false)
+        cache.put("com.example.other", USER, INPUTS_HASH, NOW, false)
+
+        cache.retainAll(setOf(PACKAGE_NAME to USER))
+
+        assertThat(cache.get(PACKAGE_NAME, USER, INPUTS_HASH, NOW)).isFalse()
+        assertThat(cache.get("com.example.other", USER, INPUTS_HASH, NOW)).isNull()
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.permissioncontroller.tests.mocking.hibernation
 
 import android.app.job.JobScheduler
+import android.app.usage.UsageStats
 import android.content.Context
 import android.content.Intent
 import android.content.SharedPreferences
@@ -38,6 +39,7 @@ import com.android.permissioncontroller.hibernation.PREF_KEY_ELAPSED_REALTIME_SN
 import com.android.permissioncontroller.hibernation.PREF_KEY_START_TIME_OF_UNUSED_APP_TRACKING
 import com.android.permissioncontroller.hibernation.SNAPSHOT_UNINITIALIZED
 import com.android.permissioncontroller.hibernation.getStartTimeOfUnusedAppTracking
+import com.android.permissioncontroller.hibernation.lastTimePackageUsedByPackageName
 import com.google.common.truth.Truth.assertThat
 import java.io.File
 import org.junit.After
@@ -146,6 +148,50 @@ class HibernationPolicyTest {
                 .isNotEqualTo(systemTimeSnapshot)
     }
 
+    @Test
+    fun lastTimePackageUsedByPackageName_shouldKeepLatestVisibleOrComponentUsage() {
+        val stats = listOf(
+            mockUsageStats("com.example.a", lastTimeVisible = 10, lastTimeAnyComponentUsed = 20),
+            mockUsageStats("com.example.a", lastTimeVisible = 15, lastTimeAnyComponentUsed = 5),
+            mockUsageStats("com.example.b", lastTimeVisible = 30, lastTimeAnyComponentUsed = 0))
+
+        assertThat(stats.lastTimePackageUsedByPackageName())
+            .containsExactly("com.example.a", 20L, "com.example.b", 30L)
+    }
+
+    @Test
+    fun lastTimePackageUsedByPackageName_withManyPackages_shouldIndexAllPackages() {
+        val packageCount = 2000
+        val stats = mutableListOf<UsageStats>()
+        for (i in 0 until packageCount) {
+            // Several usage stats buckets per package, as returned for a long interval.
+            stats.add(mockUsageStats("com.example.app$i", lastTimeVisible = i.toLong(),
+                lastTimeAnyComponentUsed = 0))
+            stats.add(mockUsageStats("com.example.app$i", lastTimeVisible = 0,
+                lastTimeAnyComponentUsed = i.toLong() + 1))
+        }
+
+        val lastTimePackageUsedByPackageName = stats.lastTimePackageUsedByPackageName()
+
+        assertThat(lastTimePackageUsedByPackageName).hasSize(packageCount)
+        for (i in 0 until packageCount) {
+            assertThat(lastTimePackageUsedByPackageName["com.example.app$i"])
+                .isEqualTo(i.toLong() + 1)
+        }
+    }
+
+    private fun mockUsageStats(
+        packageName: String,
+        lastTimeVisible: Long,
+        lastTimeAnyComponentUsed: Long
+    ): UsageStats {
+        val usageStats = Mockito.mock(UsageStats::class.java)
+        `when`(usageStats.packageName).thenReturn(packageName)
+        `when`(usageStats.lastTimeVisible).thenReturn(lastTimeVisible)
+        `when`(usageStats.lastTimeAnyComponentUsed).thenReturn(lastTimeAnyComponentUsed)
+        return usageStats
+    }
+
     private fun assertAdjustedTime(
         systemTimeSnapshot: Long,
         realtimeSnapshot: Long
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.permission.data
+
+import android.content.pm.PackageManager
+import android.os.UserHandle
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.data.PackagePermissionFlagsLoader
+import com.android.permissioncontroller.permission.utils.Utils
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when` as whenever
+import org.mockito.MockitoAnnotations.initMocks
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness.LENIENT
+
+/**
+ * Unit tests for the permission flags cached by [PackagePermissionFlagsLoader].
+ */
+@RunWith(AndroidJUnit4::class)
+class PackagePermissionFlagsLoaderTest {
+
+    companion object {
+        private const val PACKAGE_NAME_1 = "package.test.one"
+        private const val PACKAGE_NAME_2 = "package.test.two"
+        private const val UID_1 = 10001
+        private const val UID_2 = 10002
+        private const val PERMISSION_1 = "android.permission.TEST_ONE"
+        private const val PERMISSION_2 = "android.permission.TEST_TWO"
+    }
+
+    private var mockitoSession: MockitoSession? = null
+
+    @Mock
+    lateinit var application: PermissionControllerApplication
+
+    @Mock
+    lateinit var packageManager: PackageManager
+
+    private val user0 = UserHandle.of(0)
+    private val user10 = UserHandle.of(10)
+
+    /** The flags returned by the package manager for every permission */
+    private var currentFlags = 1
+
+    /** Called by the package manager before returning flags, to interleave an invalidation */
+    private var onGetPermissionFlags: () -> Unit = {}
+
+    @Before
+    fun setup() {
+        initMocks(this)
+        mockitoSession = mockitoSession().mockStatic(PermissionControllerApplication::class.java)
+            .mockStatic(Utils::class.java).strictness(LENIENT).startMocking()
+
+        whenever(PermissionControllerApplication.get()).thenReturn(application)
+        whenever(Utils.getUserContext(any(), any())).thenReturn(application)
+        doReturn(packageManager).`when`(application).packageManager
+        doAnswer {
+            onGetPermissionFlags()
+            currentFlags
+        }.`when`(packageManager).getPermissionFlags(anyString(), anyString(), any())
+
+        // The loader is a singleton, make sure nothing is left cached by other tests.
+        PackagePermissionFlagsLoader.invalidatePackage(PACKAGE_NAME_1)
+        PackagePermissionFlagsLoader.invalidatePackage(PACKAGE_NAME_2)
+    }
+
+    @After
+    fun finish() {
+        PackagePermissionFlagsLoader.invalidatePackage(PACKAGE_NAME_1)
+        PackagePermissionFlagsLoader.invalidatePackage(PACKAGE_NAME_2)
+        mockitoSession?.finishMocking()
+    }
+
+    @Test
+    fun getPermissionFlags_cached_doesNotFetchAgain() {
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, PERMISSION_2)
+        currentFlags = 2
+
+        val flags = getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, PERMISSION_2)
+
+        assertThat(flags).containsExactly(PERMISSION_1, 1, PERMISSION_2, 1)
+        verify(packageManager, times(2)).getPermissionFlags(anyString(), anyString(), any())
+    }
+
+    @Test
+    fun getPermissionFlags_partiallyCached_fetchesOnlyMissingFlags() {
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+        currentFlags = 2
+
+        val flags = getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, PERMISSION_2)
+
+        assertThat(flags).containsExactly(PERMISSION_1, 1, PERMISSION_2, 2)
+        verify(packageManager, times(1))
+            .getPermissionFlags(eq(PERMISSION_1), eq(PACKAGE_NAME_1), any())
+        verify(packageManager, times(1))
+            .getPermissionFlags(eq(PERMISSION_2), eq(PACKAGE_NAME_1), any())
+    }
+
+    @Test
+    fun getPermissionFlags_uidChanged_fetchesAgain() {
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+        currentFlags = 2
+
+        val flags = getFlags(PACKAGE_NAME_1, UID_2, PERMISSION_1)
+
+        assertThat(flags).containsExactly(PERMISSION_1, 2)
+    }
+
+    @Test
+    fun getPermissionFlags_notCaching_fetchesAgain() {
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, cacheLoadedFlags = false)
+        currentFlags = 2
+
+        val flags = getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+
+        assertThat(flags).containsExactly(PERMISSION_1, 2)
+    }
+
+    @Test
+    fun invalidateUid_evictsOnlyPackagesOfThatUid() {
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+        getFlags(PACKAGE_NAME_2, UID_2, PERMISSION_1)
+        currentFlags = 2
+
+        PackagePermissionFlagsLoader.invalidateUid(UID_1)
+
+        assertThat(getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1))
+            .containsExactly(PERMISSION_1, 2)
+        assertThat(getFlags(PACKAGE_NAME_2, UID_2, PERMISSION_1))
+            .containsExactly(PERMISSION_1, 1)
+    }
+
+    @Test
+    fun invalidatePackage_evictsPackageForAllUsers() {
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, user = user10)
+        getFlags(PACKAGE_NAME_2, UID_2, PERMISSION_1)
+        currentFlags = 2
+
+        PackagePermissionFlagsLoader.invalidatePackage(PACKAGE_NAME_1)
+
+        assertThat(getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1))
+            .containsExactly(PERMISSION_1, 2)
+        assertThat(getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, user = user10))
+            .containsExactly(PERMISSION_1, 2)
+        assertThat(getFlags(PACKAGE_NAME_2, UID_2, PERMISSION_1))
+            .containsExactly(PERMISSION_1, 1)
+    }
+
+    @Test
+    fun getPermissionFlags_uidInvalidatedDuringLoad_doesNotCacheLoadedFlags() {
+        onGetPermissionFlags = { PackagePermissionFlagsLoader.invalidateUid(UID_1) }
+
+        assertThat(getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1))
+            .containsExactly(PERMISSION_1, 1)
+
+        onGetPermissionFlags = {}
+        currentFlags = 2
+        assertThat(getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1))
+            .containsExactly(PERMISSION_1, 2)
+    }
+
+    @Test
+    fun getPermissionFlags_packageInvalidatedDuringLoad_doesNotCacheLoadedFlags() {
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+        onGetPermissionFlags = { PackagePermissionFlagsLoader.invalidatePackage(PACKAGE_NAME_1) }
+
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, PERMISSION_2)
+
+        onGetPermissionFlags = {}
+        currentFlags = 2
+        assertThat(getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1, PERMISSION_2))
+            .containsExactly(PERMISSION_1, 2, PERMISSION_2, 2)
+    }
+
+    @Test
+    fun getPermissionFlags_otherUidInvalidatedDuringLoad_doesNotCacheLoadedFlags() {
+        // Invalidations are not tracked per UID, so any overlapping one drops the loaded flags.
+        onGetPermissionFlags = { PackagePermissionFlagsLoader.invalidateUid(UID_2) }
+
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+
+        onGetPermissionFlags = {}
+        getFlags(PACKAGE_NAME_1, UID_1, PERMISSION_1)
+        verify(packageManager, times(2))
+            .getPermissionFlags(eq(PERMISSION_1), eq(PACKAGE_NAME_1), any())
+    }
+
+    private fun getFlags(
+        packageName: String,
+        uid: Int,
+        vararg permissionNames: String,
+        user: UserHandle = user0,
+        cacheLoadedFlags: Boolean = true
+    ): Map<String, Int> =
+        PackagePermissionFlagsLoader.getPermissionFlags(
+            packageName, user, uid, permissionNames.toList(), cacheLoadedFlags)
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.permission.data
+
+import android.app.Application
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.os.UserHandle
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.permission.data.UserPackageInfosLiveData
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.utils.Utils
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.atLeastOnce
+import org.mockito.Mockito.clearInvocations
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doNothing
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.never
+import org.mockito.Mockito.spy
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when` as whenever
+import org.mockito.MockitoAnnotations.initMocks
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness.LENIENT
+
+/**
+ * Unit tests for the packages [UserPackageInfosLiveData] reloads after a change.
+ */
+@RunWith(AndroidJUnit4::class)
+class UserPackageInfosLiveDataTest {
+
+    companion object {
+        private const val PACKAGE_NAME_1 = "package.test.one"
+        private const val PACKAGE_NAME_2 = "package.test.two"
+        private const val PACKAGE_NAME_3 = "package.test.three"
+        private const val SHARED_UID_PACKAGE_NAME = "package.test.shared"
+        private const val UID_1 = 10001
+        private const val UID_2 = 10002
+        private const val UID_3 = 10003
+    }
+
+    private var mockitoSession: MockitoSession? = null
+
+    @Mock
+    lateinit var application: Application
+
+    @Mock
+    lateinit var packageManager: PackageManager
+
+    @Mock
+    lateinit var job: Job
+
+    /** The packages currently installed, by package name */
+    private val installedPackages = LinkedHashMap<String, PackageInfo>()
+
+    private lateinit var userPackageInfosLiveData: UserPackageInfosLiveData
+
+    @Before
+    fun setup() {
+        initMocks(this)
+        mockitoSession = mockitoSession().mockStatic(Utils::class.java)
+            .strictness(LENIENT).startMocking()
+
+        val user = UserHandle.of(0)
+        whenever(Utils.getUserContext(any(), eq(user))).thenReturn(application)
+        doReturn(application).`when`(application).applicationContext
+        doReturn(packageManager).`when`(application).packageManager
+        doAnswer { installedPackages.values.toList() }.`when`(packageManager)
+            .getInstalledPackagesAsUser(anyInt(), anyInt())
+        doAnswer {
+            installedPackages[it.arguments[0] as String]
+                ?: throw PackageManager.NameNotFoundException()
+        }.`when`(packageManager).getPackageInfo(anyString(), anyInt())
+        doAnswer {
+            val uid = it.arguments[0] as Int
+            installedPackages.values.filter { it.applicationInfo.uid == uid }
+                .map { it.packageName }.toTypedArray().ifEmpty { null }
+        }.`when`(packageManager).getPackagesForUid(anyInt())
+        doReturn(false).`when`(job).isCancelled
+
+        installPackage(PACKAGE_NAME_1, UID_1)
+        installPackage(PACKAGE_NAME_2, UID_2)
+        installPackage(PACKAGE_NAME_3, UID_3)
+
+        userPackageInfosLiveData = spy(UserPackageInfosLiveData(application, user))
+        // Updates are driven by the tests, and values are read from the posted values.
+        doNothing().`when`(userPackageInfosLiveData).updateAsync()
+        doNothing().`when`(userPackageInfosLiveData).postValue(any())
+        load()
+        clearInvocations(packageManager)
+    }
+
+    @After
+    fun finish() {
+        mockitoSession?.finishMocking()
+    }
+
+    @Test
+    fun load_firstTime_loadsAllPackages() {
+        assertThat(lastPostedPackageNames())
+            .containsExactly(PACKAGE_NAME_1, PACKAGE_NAME_2, PACKAGE_NAME_3).inOrder()
+    }
+
+    @Test
+    fun onPackageUpdate_packageReplaced_reloadsOnlyThatPackage() {
+        val oldPackageInfos = lastPostedValue()
+        installPackage(PACKAGE_NAME_2, UID_2, firstInstallTime = 42)
+
+        userPackageInfosLiveData.onPackageUpdate(PACKAGE_NAME_2)
+        val packageInfos = load()
+
+        verify(packageManager, never()).getInstalledPackagesAsUser(anyInt(), anyInt())
+        verify(packageManager, times(1)).getPackageInfo(anyString(), anyInt())
+        verify(packageManager).getPackageInfo(eq(PACKAGE_NAME_2), anyInt())
+        assertThat(packageInfos.map { it.packageName })
+            .containsExactly(PACKAGE_NAME_1, PACKAGE_NAME_2, PACKAGE_NAME_3).inOrder()
+        assertThat(packageInfos[0]).isSameInstanceAs(oldPackageInfos[0])
+        assertThat(packageInfos[1].firstInstallTime).isEqualTo(42)
+        assertThat(packageInfos[2]).isSameInstanceAs(oldPackageInfos[2])
+    }
+
+    @Test
+    fun onPackageUpdate_packageAdded_appendsOnlyThatPackage() {
+        val oldPackageInfos = lastPostedValue()
+        installPackage(SHARED_UID_PACKAGE_NAME, UID_1)
+
+        userPackageInfosLiveData.onPackageUpdate(SHARED_UID_PACKAGE_NAME)
+        val packageInfos = load()
+
+        verify(packageManager, never()).getInstalledPackagesAsUser(anyInt(), anyInt())
+        verify(packageManager, times(1)).getPackageInfo(anyString(), anyInt())
+        assertThat(packageInfos.map { it.packageName }).containsExactly(
+            PACKAGE_NAME_1, PACKAGE_NAME_2, PACKAGE_NAME_3, SHARED_UID_PACKAGE_NAME).inOrder()
+        assertThat(packageInfos.subList(0, 3)).containsExactlyElementsIn(oldPackageInfos)
+            .inOrder()
+    }
+
+    @Test
+    fun onPackageUpdate_packageRemoved_removesOnlyThatPackage() {
+        val oldPackageInfos = lastPostedValue()
+        installedPackages.remove(PACKAGE_NAME_1)
+
+        userPackageInfosLiveData.onPackageUpdate(PACKAGE_NAME_1)
+        val packageInfos = load()
+
+        verify(packageManager, never()).getInstalledPackagesAsUser(anyInt(), anyInt())
+        assertThat(packageInfos).containsExactly(oldPackageInfos[1], oldPackageInfos[2])
+            .inOrder()
+    }
+
+    @Test
+    fun onPackageUpdate_severalPackages_reloadsThemOnce() {
+        installPackage(PACKAGE_NAME_1, UID_1, firstInstallTime = 42)
+        installedPackages.remove(PACKAGE_NAME_3)
+
+        userPackageInfosLiveData.onPackageUpdate(PACKAGE_NAME_1)
+        userPackageInfosLiveData.onPackageUpdate(PACKAGE_NAME_3)
+        userPackageInfosLiveData.onPackageUpdate(PACKAGE_NAME_1)
+        val packageInfos = load()
+
+        verify(packageManager, times(2)).getPackageInfo(anyString(), anyInt())
+        assertThat(packageInfos.map { it.packageName })
+            .containsExactly(PACKAGE_NAME_1, PACKAGE_NAME_2).inOrder()
+        assertThat(packageInfos[0].firstInstallTime).isEqualTo(42)
+    }
+
+    @Test
+    fun onPermissionChange_uid_reloadsOnlyPackagesOfThatUid() {
+        installPackage(SHARED_UID_PACKAGE_NAME, UID_2)
+        userPackageInfosLiveData.onPackageUpdate(SHARED_UID_PACKAGE_NAME)
+        load()
+        clearInvocations(packageManager)
+        val oldPackageInfos = lastPostedValue()
+        installPackage(PACKAGE_NAME_2, UID_2, firstInstallTime = 42)
+        installPackage(SHARED_UID_PACKAGE_NAME, UID_2, firstInstallTime = 42)
+
+        userPackageInfosLiveData.onPermissionChange(UID_2)
+        val packageInfos = load()
+
+        verify(packageManager, never()).getInstalledPackagesAsUser(anyInt(), anyInt())
+        verify(packageManager, times(2)).getPackageInfo(anyString(), anyInt())
+        verify(packageManager).getPackageInfo(eq(PACKAGE_NAME_2), anyInt())
+        verify(packageManager).getPackageInfo(eq(SHARED_UID_PACKAGE_NAME), anyInt())
+        assertThat(packageInfos[0]).isSameInstanceAs(oldPackageInfos[0])
+        assertThat(packageInfos[1].firstInstallTime).isEqualTo(42)
+        assertThat(packageInfos[2]).isSameInstanceAs(oldPackageInfos[2])
+        assertThat(packageInfos[3].firstInstallTime).isEqualTo(42)
+    }
+
+    @Test
+    fun onPermissionChange_uidRemoved_removesItsPackages() {
+        installedPackages.remove(PACKAGE_NAME_3)
+
+        userPackageInfosLiveData.onPermissionChange(UID_3)
+        val packageInfos = load()
+
+        verify(packageManager, never()).getInstalledPackagesAsUser(anyInt(), anyInt())
+        assertThat(packageInfos.map { it.packageName })
+            .containsExactly(PACKAGE_NAME_1, PACKAGE_NAME_2).inOrder()
+    }
+
+    @Test
+    fun onPermissionChange_allUids_reloadsAllPackages() {
+        installPackage(PACKAGE_NAME_2, UID_2, firstInstallTime = 42)
+
+        userPackageInfosLiveData.onPermissionChange()
+        val packageInfos = load()
+
+        verify(packageManager, times(1)).getInstalledPackagesAsUser(anyInt(), anyInt())
+        verify(packageManager, never()).getPackageInfo(anyString(), anyInt())
+        assertThat(packageInfos[1].firstInstallTime).isEqualTo(42)
+    }
+
+    @Test
+    fun load_noChange_reloadsNothing() {
+        val oldPackageInfos = lastPostedValue()
+
+        val packageInfos = load()
+
+        verify(packageManager, never()).getInstalledPackagesAsUser(anyInt(), anyInt())
+        verify(packageManager, never()).getPackageInfo(anyString(), anyInt())
+        assertThat(packageInfos).containsExactlyElementsIn(oldPackageInfos).inOrder()
+    }
+
+    private fun installPackage(packageName: String, uid: Int, firstInstallTime: Long = 0) {
+        installedPackages[packageName] = PackageInfo().apply {
+            this.packageName = packageName
+            this.firstInstallTime = firstInstallTime
+            applicationInfo = ApplicationInfo().apply { this.uid = uid }
+        }
+    }
+
+    /** Runs the pending update and returns the posted value. */
+    private fun load(): List<LightPackageInfo> {
+        runBlocking {
+            userPackageInfosLiveData.loadDataAndPostValue(job)
+        }
+        return lastPostedValue()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun lastPostedValue(): List<LightPackageInfo> {
+        val captor = ArgumentCaptor.forClass(List::class.java)
+        verify(userPackageInfosLiveData, atLeastOnce())
+            .postValue(captor.capture() as List<LightPackageInfo>?)
+        return captor.value as List<LightPackageInfo>
+    }
+
+    private fun lastPostedPackageNames(): List<String> = lastPostedValue().map { it.packageName }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.permission.model.livedatatypes
+
+import android.content.pm.PackageInfo.REQUESTED_PERMISSION_GRANTED
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.permissioncontroller.permission.model.livedatatypes.RequestedPermissions
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Unit tests for [RequestedPermissions].
+ */
+@RunWith(AndroidJUnit4::class)
+class RequestedPermissionsTest {
+
+    companion object {
+        private const val GRANTED_PERMISSION = "com.example.permission.GRANTED"
+        private const val DENIED_PERMISSION = "com.example.permission.DENIED"
+        private const val OTHER_PERMISSION = "com.example.permission.OTHER"
+    }
+
+    private val requestedPermissions = RequestedPermissions(
+        arrayOf(GRANTED_PERMISSION, DENIED_PERMISSION),
+        intArrayOf(REQUESTED_PERMISSION_GRANTED, 0))
+
+    @Test
+    fun requestedPermissions_shouldKeepRequestOrder() {
+        assertThat(requestedPermissions)
+            .containsExactly(GRANTED_PERMISSION, DENIED_PERMISSION).inOrder()
+    }
+
+    @Test
+    fun contains_shouldOnlyReturnTrueForRequestedPermissions() {
+        assertThat(requestedPermissions.contains(GRANTED_PERMISSION)).isTrue()
+        assertThat(requestedPermissions.contains(DENIED_PERMISSION)).isTrue()
+        assertThat(requestedPermissions.contains(OTHER_PERMISSION)).isFalse()
+    }
+
+    @Test
+    fun isGranted_shouldOnlyReturnTrueForGrantedPermissions() {
+        assertThat(requestedPermissions.isGranted(GRANTED_PERMISSION)).isTrue()
+        assertThat(requestedPermissions.isGranted(DENIED_PERMISSION)).isFalse()
+        assertThat(requestedPermissions.isGranted(OTHER_PERMISSION)).isFalse()
+    }
+
+    @Test
+    fun grantedPermissions_shouldOnlyContainGrantedPermissions() {
+        assertThat(requestedPermissions.grantedPermissions).containsExactly(GRANTED_PERMISSION)
+    }
+
+    @Test
+    fun equals_shouldMatchListOfSameNames() {
+        assertThat(requestedPermissions).isEqualTo(listOf(GRANTED_PERMISSION, DENIED_PERMISSION))
+    }
+}
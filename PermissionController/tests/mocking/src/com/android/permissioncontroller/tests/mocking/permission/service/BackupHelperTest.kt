@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.permission.service
+
+import android.content.Context
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.os.UserHandle
+import android.util.Xml
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.dx.mockito.inline.extended.ExtendedMockito
+import com.android.permissioncontroller.Constants
+import com.android.permissioncontroller.permission.service.BackupHelper
+import com.android.permissioncontroller.permission.utils.Utils
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.doThrow
+import org.mockito.Mockito.`when`
+import org.mockito.MockitoAnnotations
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness
+import java.io.File
+
+@RunWith(AndroidJUnit4::class)
+class BackupHelperTest {
+
+    companion object {
+        private const val PACKAGE_A = "package.test.a"
+        private const val PACKAGE_B = "package.test.b"
+        private const val PACKAGE_C = "package.test.c"
+    }
+
+    @Mock
+    lateinit var context: Context
+
+    @Mock
+    lateinit var userContext: Context
+
+    @Mock
+    lateinit var packageManager: PackageManager
+
+    private lateinit var mockitoSession: MockitoSession
+    private lateinit var filesDir: File
+    private val user = UserHandle.of(0)
+
+    @Before
+    fun setup() {
+        MockitoAnnotations.initMocks(this)
+        mockitoSession = ExtendedMockito.mockitoSession()
+            .mockStatic(Utils::class.java)
+            .strictness(Strictness.LENIENT).startMocking()
+        filesDir = File(ApplicationProvider.getApplicationContext<Context>().cacheDir,
+            "backup_helper_test")
+        filesDir.mkdirs()
+        `when`(context.createPackageContextAsUser(any(), anyInt(), any(UserHandle::class.java)))
+            .thenReturn(userContext)
+        `when`(userContext.filesDir).thenReturn(filesDir)
+        `when`(userContext.packageManager).thenReturn(packageManager)
+        doThrow(PackageManager.NameNotFoundException())
+            .`when`(packageManager).getPackageInfo(anyString(), anyInt())
+        BackupHelper.clearLoadedDelayedRestoreStores()
+    }
+
+    @After
+    fun finish() {
+        mockitoSession.finishMocking()
+        BackupHelper.clearLoadedDelayedRestoreStores()
+        filesDir.deleteRecursively()
+    }
+
+    @Test
+    fun restoreDelayedState_afterReload_replaysJournal() {
+        restoreState(PACKAGE_A, PACKAGE_B, PACKAGE_C)
+        install(PACKAGE_A)
+        assertThat(BackupHelper(context, user).restoreDelayedState(PACKAGE_A)).isTrue()
+
+        BackupHelper.clearLoadedDelayedRestoreStores()
+        install(PACKAGE_B)
+        install(PACKAGE_C)
+
+        assertThat(BackupHelper(context, user).restoreDelayedState(PACKAGE_B)).isTrue()
+        assertThat(BackupHelper(context, user).restoreDelayedState(PACKAGE_C)).isFalse()
+    }
+
+    @Test
+    fun restoreDelayedState_afterReload_ignoresStaleJournal() {
+        restoreState(PACKAGE_A, PACKAGE_B, PACKAGE_C)
+        File(filesDir, Constants.DELAYED_RESTORE_PERMISSIONS_FILE + ".journal")
+            .writeText("stale-generation\n$PACKAGE_A 0\n")
+
+        BackupHelper.clearLoadedDelayedRestoreStores()
+        install(PACKAGE_B)
+        install(PACKAGE_C)
+
+        assertThat(BackupHelper(context, user).restoreDelayedState(PACKAGE_B)).isTrue()
+        assertThat(BackupHelper(context, user).restoreDelayedState(PACKAGE_C)).isTrue()
+    }
+
+    private fun restoreState(vararg packageNames: String) {
+        val grants = packageNames.joinToString("") { "<grant pkg=\"$it\" />" }
+        val parser = Xml.newPullParser()
+        parser.setInput(
+            ("<perm-grant-backup version=\"29\"><rt-grants>$grants</rt-grants>" +
+                "</perm-grant-backup>").reader()
+        )
+        BackupHelper(context, user).restoreState(parser)
+    }
+
+    private fun install(packageName: String) {
+        val packageInfo = PackageInfo()
+        packageInfo.packageName = packageName
+        packageInfo.applicationInfo = ApplicationInfo()
+        packageInfo.applicationInfo.packageName = packageName
+        doReturn(packageInfo).`when`(packageManager).getPackageInfo(eq(packageName), anyInt())
+    }
+}
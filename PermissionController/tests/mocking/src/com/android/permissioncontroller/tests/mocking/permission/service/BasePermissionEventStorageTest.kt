@@ -26,12 +26,14 @@ import com.android.dx.mockito.inline.extended.ExtendedMockito
 import com.android.permissioncontroller.Constants
 import com.android.permissioncontroller.PermissionControllerApplication
 import com.android.permissioncontroller.permission.service.BasePermissionEventStorage
+import com.android.permissioncontroller.permission.utils.Utils
 import com.google.common.truth.Truth.assertThat
 import kotlinx.coroutines.runBlocking
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers
 import org.mockito.Mock
 import org.mockito.Mockito
 import org.mockito.Mockito.`when`
@@ -39,7 +41,9 @@ import org.mockito.Mockito.any
 import org.mockito.MockitoAnnotations
 import org.mockito.MockitoSession
 import org.mockito.quality.Strictness
+import java.io.DataOutputStream
 import java.io.File
+import java.io.FileOutputStream
 import java.io.InputStream
 import java.io.OutputStream
 import java.util.Date
@@ -95,6 +99,15 @@ class BasePermissionEventStorageTest {
         storage = TestPermissionEventStorage(context, jobScheduler)
     }
 
+    private fun initWithJournal() {
+        `when`(
+            DeviceConfig.getBoolean(ArgumentMatchers.eq(DeviceConfig.NAMESPACE_PERMISSIONS),
+                ArgumentMatchers.eq(Utils.PROPERTY_PERMISSION_EVENTS_JOURNAL_ENABLED),
+                ArgumentMatchers.anyBoolean()))
+            .thenReturn(true)
+        storage = SerializingTestPermissionEventStorage(context, jobScheduler)
+    }
+
     @After
     fun cleanup() = runBlocking {
         mockitoSession.finishMocking()
@@ -165,6 +178,19 @@ class BasePermissionEventStorageTest {
         }
     }
 
+    @Test
+    fun loadEvents_afterStoreEvent_doesNotReadFromDisk() {
+        init()
+        runBlocking {
+            storage.storeEvent(mapEvent)
+            storage.storeEvent(musicEvent)
+            storage.flushPendingWrites()
+            (storage as TestPermissionEventStorage).fakeDiskStore = emptyList()
+
+            assertThat(storage.loadEvents()).containsExactly(musicEvent, mapEvent).inOrder()
+        }
+    }
+
     @Test
     fun removeEventsForPackage_removesEvents() {
         init()
@@ -225,6 +251,125 @@ class BasePermissionEventStorageTest {
         }
     }
 
+    @Test
+    fun storeEvent_journalEnabled_returnedOrderedByMostRecentlyAddedAcrossInstances() {
+        initWithJournal()
+        runBlocking {
+            storage.storeEvent(mapEvent)
+            storage.storeEvent(musicEvent)
+            storage.storeEvent(mapEventSameKey)
+            assertThat(storage.flushPendingWrites()).isTrue()
+
+            val reloadedStorage = SerializingTestPermissionEventStorage(context, jobScheduler)
+            assertThat(reloadedStorage.loadEvents())
+                .containsExactly(mapEventSameKey, musicEvent).inOrder()
+        }
+    }
+
+    @Test
+    fun removeEventsForPackage_journalEnabled_removesJournaledEvents() {
+        initWithJournal()
+        runBlocking {
+            storage.storeEvent(mapEvent)
+            storage.storeEvent(musicEvent)
+            storage.flushPendingWrites()
+            storage.removeEventsForPackage(MAP_PACKAGE_NAME)
+            storage.storeEvent(parkingEvent)
+            storage.flushPendingWrites()
+
+            val reloadedStorage = SerializingTestPermissionEventStorage(context, jobScheduler)
+            assertThat(reloadedStorage.loadEvents())
+                .containsExactly(parkingEvent, musicEvent).inOrder()
+        }
+    }
+
+    @Test
+    fun storeEvent_journalEnabled_manyEvents_allReturnedAfterCompaction() {
+        initWithJournal()
+        runBlocking {
+            val events = (0 until 250).map { TestPermissionEvent("package.test.$it", jan12020) }
+            for (event in events) {
+                storage.storeEvent(event)
+                assertThat(storage.flushPendingWrites()).isTrue()
+            }
+
+            val reloadedStorage = SerializingTestPermissionEventStorage(context, jobScheduler)
+            assertThat(reloadedStorage.loadEvents())
+                .containsExactlyElementsIn(events.reversed()).inOrder()
+        }
+    }
+
+    @Test
+    fun storeEvent_journalEnabled_afterTornJournalRecord_returnsLaterEvents() {
+        initWithJournal()
+        runBlocking {
+            storage.storeEvent(mapEvent)
+            assertThat(storage.flushPendingWrites()).isTrue()
+        }
+        // Simulate a crash in the middle of appending a record
+        val journalFile = File(context.filesDir, "$TEST_FILE_NAME.journal")
+        DataOutputStream(FileOutputStream(journalFile, /* append= */ true)).use { out ->
+            out.writeInt(100)
+            out.write(ByteArray(10))
+        }
+
+        runBlocking {
+            val storageAfterCrash = SerializingTestPermissionEventStorage(context, jobScheduler)
+            assertThat(storageAfterCrash.loadEvents()).containsExactly(mapEvent)
+            storageAfterCrash.storeEvent(musicEvent)
+            assertThat(storageAfterCrash.flushPendingWrites()).isTrue()
+
+            val reloadedStorage = SerializingTestPermissionEventStorage(context, jobScheduler)
+            assertThat(reloadedStorage.loadEvents())
+                .containsExactly(musicEvent, mapEvent).inOrder()
+        }
+    }
+
+    /**
+     * Test storage that actually writes its events to disk, as is needed for the journal.
+     */
+    private class SerializingTestPermissionEventStorage(
+        context: Context,
+        jobScheduler: JobScheduler
+    ) : BasePermissionEventStorage<TestPermissionEvent>(context, jobScheduler) {
+
+        override fun serialize(stream: OutputStream, events: List<TestPermissionEvent>) {
+            val writer = stream.bufferedWriter()
+            for (event in events) {
+                writer.write("${event.packageName} ${event.eventTime} ${event.id}\n")
+            }
+            writer.flush()
+        }
+
+        override fun parse(inputStream: InputStream): List<TestPermissionEvent> {
+            inputStream.bufferedReader().use { reader ->
+                return reader.readLines().map {
+                    val (packageName, eventTime, id) = it.split(" ")
+                    TestPermissionEvent(packageName, eventTime.toLong(), id.toInt())
+                }
+            }
+        }
+
+        override fun getDatabaseFileName(): String {
+            return TEST_FILE_NAME
+        }
+
+        override fun getMaxDataAgeMs(): Long {
+            return TEST_MAX_DATA_AGE
+        }
+
+        override fun hasTheSamePrimaryKey(
+            first: TestPermissionEvent,
+            second: TestPermissionEvent
+        ): Boolean {
+            return first.packageName == second.packageName && first.id == second.id
+        }
+
+        override fun TestPermissionEvent.copyWithTimeDelta(timeDelta: Long): TestPermissionEvent {
+            return this.copy(eventTime = this.eventTime + timeDelta)
+        }
+    }
+
     private class TestPermissionEventStorage(
         context: Context,
         jobScheduler: JobScheduler
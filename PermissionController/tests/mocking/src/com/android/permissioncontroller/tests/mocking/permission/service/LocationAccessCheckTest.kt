@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.permission.service
+
+import android.os.UserHandle
+import android.os.UserManager
+import android.util.ArrayMap
+import android.util.Pair
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.permissioncontroller.permission.service.LocationAccessCheck
+import com.google.common.truth.Truth.assertThat
+import java.io.BufferedReader
+import java.io.BufferedWriter
+import java.io.StringReader
+import java.io.StringWriter
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.doReturn
+import org.mockito.MockitoAnnotations
+
+/**
+ * Unit tests for the file of packages [LocationAccessCheck] already notified for.
+ */
+@RunWith(AndroidJUnit4::class)
+class LocationAccessCheckTest {
+
+    companion object {
+        private const val TEST_PACKAGE_NAME_1 = "package.test.one"
+        private const val TEST_PACKAGE_NAME_2 = "package.test.two"
+        private const val USER_0_SERIAL_NUMBER = 5630633845L
+        private const val USER_10_SERIAL_NUMBER = 5630633853L
+        private const val REMOVED_USER_SERIAL_NUMBER = 5630633861L
+    }
+
+    @Mock
+    lateinit var userManager: UserManager
+
+    private val user0 = UserHandle.of(0)
+    private val user10 = UserHandle.of(10)
+    private val removedUser = UserHandle.of(11)
+
+    @Before
+    fun setup() {
+        MockitoAnnotations.initMocks(this)
+        doReturn(null).`when`(userManager).getUserForSerialNumber(anyLong())
+        doReturn(user0).`when`(userManager).getUserForSerialNumber(USER_0_SERIAL_NUMBER)
+        doReturn(user10).`when`(userManager).getUserForSerialNumber(USER_10_SERIAL_NUMBER)
+        doReturn(USER_0_SERIAL_NUMBER).`when`(userManager).getSerialNumberForUser(user0)
+        doReturn(USER_10_SERIAL_NUMBER).`when`(userManager).getSerialNumberForUser(user10)
+        doReturn(-1L).`when`(userManager).getSerialNumberForUser(removedUser)
+    }
+
+    @Test
+    fun writeThenRead_returnsSamePackages() {
+        val packages = ArrayMap<Pair<String, UserHandle>, Boolean>()
+        packages[Pair(TEST_PACKAGE_NAME_1, user0)] = true
+        packages[Pair(TEST_PACKAGE_NAME_2, user0)] = false
+        packages[Pair(TEST_PACKAGE_NAME_1, user10)] = false
+
+        val readPackages = read(write(packages))
+
+        assertThat(readPackages).isEqualTo(packages)
+    }
+
+    @Test
+    fun write_usesCurrentSerialNumbers() {
+        val packages = ArrayMap<Pair<String, UserHandle>, Boolean>()
+        packages[Pair(TEST_PACKAGE_NAME_1, user10)] = true
+        write(packages)
+        doReturn(REMOVED_USER_SERIAL_NUMBER).`when`(userManager).getSerialNumberForUser(user10)
+
+        val file = write(packages)
+
+        assertThat(file).isEqualTo("$TEST_PACKAGE_NAME_1 $REMOVED_USER_SERIAL_NUMBER true\n")
+    }
+
+    @Test
+    fun write_removedUser_forgetsItsPackages() {
+        val packages = ArrayMap<Pair<String, UserHandle>, Boolean>()
+        packages[Pair(TEST_PACKAGE_NAME_1, user0)] = false
+        packages[Pair(TEST_PACKAGE_NAME_1, removedUser)] = true
+        packages[Pair(TEST_PACKAGE_NAME_2, removedUser)] = false
+
+        val readPackages = read(write(packages))
+
+        val expectedPackages = ArrayMap<Pair<String, UserHandle>, Boolean>()
+        expectedPackages[Pair(TEST_PACKAGE_NAME_1, user0)] = false
+        assertThat(packages).isEqualTo(expectedPackages)
+        assertThat(readPackages).isEqualTo(expectedPackages)
+    }
+
+    @Test
+    fun read_withoutDismissedState_isNotDismissed() {
+        val readPackages = read("$TEST_PACKAGE_NAME_1 $USER_0_SERIAL_NUMBER\n")
+
+        assertThat(readPackages[Pair(TEST_PACKAGE_NAME_1, user0)]).isFalse()
+    }
+
+    @Test
+    fun read_unknownUser_skipsItsPackages() {
+        val readPackages = read(
+            "$TEST_PACKAGE_NAME_1 $REMOVED_USER_SERIAL_NUMBER true\n" +
+                "$TEST_PACKAGE_NAME_2 $USER_10_SERIAL_NUMBER true\n")
+
+        assertThat(readPackages).containsExactly(Pair(TEST_PACKAGE_NAME_2, user10), true)
+    }
+
+    private fun write(packages: ArrayMap<Pair<String, UserHandle>, Boolean>): String {
+        val stringWriter = StringWriter()
+        BufferedWriter(stringWriter).use {
+            LocationAccessCheck.writeAlreadyNotifiedPackages(it, packages, userManager)
+        }
+        return stringWriter.toString()
+    }
+
+    private fun read(file: String): ArrayMap<Pair<String, UserHandle>, Boolean> =
+        BufferedReader(StringReader(file)).use {
+            LocationAccessCheck.readAlreadyNotifiedPackages(it, userManager)
+        }
+}
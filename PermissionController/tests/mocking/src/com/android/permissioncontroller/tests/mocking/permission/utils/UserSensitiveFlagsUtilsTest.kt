@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.permission.utils
+
+import android.content.pm.PackageManager
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED
+import android.os.Build
+import android.os.Process
+import android.os.UserHandle
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.UidSensitivityState
+import com.android.permissioncontroller.permission.utils.Utils.FLAGS_ALWAYS_USER_SENSITIVE
+import com.android.permissioncontroller.permission.utils.clearUserSensitiveFlagsUpdates
+import com.android.permissioncontroller.permission.utils.dumpUserSensitiveFlagsUpdates
+import com.android.permissioncontroller.permission.utils.reconcileUserSensitiveFlags
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.doThrow
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.MockitoAnnotations
+
+/**
+ * Unit tests for reconciling the user sensitive flags.
+ */
+@RunWith(AndroidJUnit4::class)
+class UserSensitiveFlagsUtilsTest {
+
+    companion object {
+        private const val TEST_PACKAGE_NAME = "package.test"
+        private const val TEST_UID = 10123
+        private const val PERM_A = "android.permission.A"
+        private const val PERM_B = "android.permission.B"
+        private const val PERM_C = "android.permission.C"
+        private const val NOT_REQUESTED_PERM = "android.permission.NOT_REQUESTED"
+    }
+
+    @Mock
+    lateinit var packageManager: PackageManager
+
+    private val user = UserHandle.of(0)
+
+    @Before
+    fun setup() {
+        MockitoAnnotations.initMocks(this)
+        clearUserSensitiveFlagsUpdates()
+    }
+
+    @After
+    fun finish() {
+        clearUserSensitiveFlagsUpdates()
+    }
+
+    @Test
+    fun reconcile_onlyUpdatesChangedFlags() {
+        setCurrentFlags(PERM_A, FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED)
+        setCurrentFlags(PERM_B, 0)
+        setCurrentFlags(PERM_C, FLAGS_ALWAYS_USER_SENSITIVE)
+
+        val update = reconcileUserSensitiveFlags(
+            uidState(PERM_A to FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED,
+                PERM_B to FLAGS_ALWAYS_USER_SENSITIVE,
+                PERM_C to FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED),
+            user, packageManager, TEST_UID)
+
+        verify(packageManager, never()).updatePermissionFlags(eq(PERM_A), anyString(), anyInt(),
+            anyInt(), eq(user))
+        verify(packageManager).updatePermissionFlags(PERM_B, TEST_PACKAGE_NAME,
+            FLAGS_ALWAYS_USER_SENSITIVE, FLAGS_ALWAYS_USER_SENSITIVE, user)
+        verify(packageManager).updatePermissionFlags(PERM_C, TEST_PACKAGE_NAME,
+            FLAGS_ALWAYS_USER_SENSITIVE, FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED, user)
+        assertThat(update.uid).isEqualTo(TEST_UID)
+        assertThat(update.userId).isEqualTo(user.identifier)
+        assertThat(update.numPermissions).isEqualTo(3)
+        assertThat(update.numFlagsRead).isEqualTo(3)
+        assertThat(update.numFlagsUpdated).isEqualTo(2)
+    }
+
+    @Test
+    fun reconcile_ignoresOtherFlags() {
+        setCurrentFlags(PERM_A,
+            PackageManager.FLAG_PERMISSION_USER_SET or FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED)
+
+        val update = reconcileUserSensitiveFlags(
+            uidState(PERM_A to FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED), user, packageManager,
+            TEST_UID)
+
+        verify(packageManager, never()).updatePermissionFlags(anyString(), anyString(), anyInt(),
+            anyInt(), eq(user))
+        assertThat(update.numFlagsUpdated).isEqualTo(0)
+    }
+
+    @Test
+    fun reconcile_alwaysReadsCurrentFlags() {
+        setCurrentFlags(PERM_A, 0)
+        reconcileUserSensitiveFlags(uidState(PERM_A to FLAGS_ALWAYS_USER_SENSITIVE), user,
+            packageManager, Process.INVALID_UID)
+
+        // The flags were reset outside of this process since the last update
+        reconcileUserSensitiveFlags(uidState(PERM_A to FLAGS_ALWAYS_USER_SENSITIVE), user,
+            packageManager, Process.INVALID_UID)
+
+        verify(packageManager, times(2)).getPermissionFlags(PERM_A, TEST_PACKAGE_NAME, user)
+        verify(packageManager, times(2)).updatePermissionFlags(PERM_A, TEST_PACKAGE_NAME,
+            FLAGS_ALWAYS_USER_SENSITIVE, FLAGS_ALWAYS_USER_SENSITIVE, user)
+    }
+
+    @Test
+    fun reconcile_skipsPermissionsWithoutTargetState() {
+        setCurrentFlags(PERM_A, 0)
+
+        val uidState = UidSensitivityState(mutableSetOf(packageInfo(PERM_A, NOT_REQUESTED_PERM)),
+            mutableMapOf(PERM_A to FLAGS_ALWAYS_USER_SENSITIVE))
+
+        val update = reconcileUserSensitiveFlags(mapOf(TEST_UID to uidState), user,
+            packageManager, TEST_UID)
+
+        verify(packageManager, never()).getPermissionFlags(eq(NOT_REQUESTED_PERM), anyString(),
+            eq(user))
+        assertThat(update.numPermissions).isEqualTo(1)
+    }
+
+    @Test
+    fun reconcile_unknownPermission_notCountedAsUpdated() {
+        setCurrentFlags(PERM_A, 0)
+        setCurrentFlags(PERM_B, 0)
+        doThrow(IllegalArgumentException("Unknown permission: $PERM_B"))
+            .`when`(packageManager).updatePermissionFlags(eq(PERM_B), anyString(), anyInt(),
+                anyInt(), eq(user))
+
+        val update = reconcileUserSensitiveFlags(
+            uidState(PERM_A to FLAGS_ALWAYS_USER_SENSITIVE, PERM_B to FLAGS_ALWAYS_USER_SENSITIVE),
+            user, packageManager, TEST_UID)
+
+        assertThat(update.numFlagsRead).isEqualTo(2)
+        assertThat(update.numFlagsUpdated).isEqualTo(1)
+    }
+
+    @Test
+    fun dump_returnsRecentUpdatesOldestFirst() {
+        setCurrentFlags(PERM_A, 0)
+        for (uid in 0 until 12) {
+            reconcileUserSensitiveFlags(uidState(PERM_A to 0), user, packageManager, uid)
+        }
+
+        val updates = dumpUserSensitiveFlagsUpdates()
+
+        assertThat(updates.map { it.uid }).containsExactlyElementsIn(2 until 12).inOrder()
+        for (update in updates) {
+            assertThat(update.numPermissions).isEqualTo(1)
+            assertThat(update.numFlagsRead).isEqualTo(1)
+            assertThat(update.numFlagsUpdated).isEqualTo(0)
+            assertThat(update.durationMillis).isAtLeast(0L)
+        }
+    }
+
+    private fun setCurrentFlags(permissionName: String, flags: Int) {
+        doReturn(flags).`when`(packageManager).getPermissionFlags(permissionName,
+            TEST_PACKAGE_NAME, user)
+    }
+
+    private fun uidState(vararg targetFlags: Pair<String, Int>): Map<Int, UidSensitivityState> {
+        val pkg = packageInfo(*targetFlags.map { it.first }.toTypedArray())
+        return mapOf(TEST_UID to UidSensitivityState(mutableSetOf(pkg), mutableMapOf(*targetFlags)))
+    }
+
+    private fun packageInfo(vararg requestedPermissions: String): LightPackageInfo {
+        return LightPackageInfo(TEST_PACKAGE_NAME, listOf(), requestedPermissions.toList(),
+            requestedPermissions.map { 0 }, TEST_UID, Build.VERSION_CODES.TIRAMISU, false, true, 0,
+            0L)
+    }
+}
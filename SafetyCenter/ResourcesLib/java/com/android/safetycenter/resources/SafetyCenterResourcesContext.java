@@ -39,6 +39,9 @@ import java.util.List;
 /**
  * Wrapper for context to override getResources method. Resources for the Safety Center that need to
  * be fetched from the dedicated resources APK.
+ *
+ * <p>This class is thread-safe: the package name, assets, resources and theme of the resources APK
+ * are loaded at most once, under a lock, and then published to all threads.
  */
 public class SafetyCenterResourcesContext extends ContextWrapper {
     private static final String TAG = "SafetyCenterResContext";
@@ -77,11 +80,13 @@ public class SafetyCenterResourcesContext extends ContextWrapper {
      */
     private final boolean mShouldFallbackIfNamedResourceNotFound;
 
-    // Cached package name and resources from the resources APK
-    @Nullable private String mResourcesApkPkgName;
-    @Nullable private AssetManager mAssetsFromApk;
-    @Nullable private Resources mResourcesFromApk;
-    @Nullable private Resources.Theme mThemeFromApk;
+    private final Object mLock = new Object();
+
+    // Cached package name and resources from the resources APK, only written while holding mLock
+    @Nullable private volatile String mResourcesApkPkgName;
+    @Nullable private volatile AssetManager mAssetsFromApk;
+    @Nullable private volatile Resources mResourcesFromApk;
+    @Nullable private volatile Resources.Theme mThemeFromApk;
 
     public SafetyCenterResourcesContext(@NonNull Context contextBase) {
         this(contextBase, /* shouldFallbackIfNamedResourceNotFound */ true);
@@ -125,10 +130,20 @@ public class SafetyCenterResourcesContext extends ContextWrapper {
     @VisibleForTesting
     @Nullable
     String getResourcesApkPkgName() {
-        if (mResourcesApkPkgName != null) {
+        String resourcesApkPkgName = mResourcesApkPkgName;
+        if (resourcesApkPkgName != null) {
+            return resourcesApkPkgName;
+        }
+        synchronized (mLock) {
+            if (mResourcesApkPkgName == null) {
+                mResourcesApkPkgName = findResourcesApkPkgName();
+            }
             return mResourcesApkPkgName;
         }
+    }
 
+    @Nullable
+    private String findResourcesApkPkgName() {
         List<ResolveInfo> resolveInfos =
                 getPackageManager().queryIntentActivities(new Intent(mResourcesApkAction), mFlags);
 
@@ -171,9 +186,9 @@ public class SafetyCenterResourcesContext extends ContextWrapper {
             return null;
         }
 
-        mResourcesApkPkgName = info.activityInfo.applicationInfo.packageName;
-        Log.i(TAG, "Found Safety Center resources APK at: " + mResourcesApkPkgName);
-        return mResourcesApkPkgName;
+        String resourcesApkPkgName = info.activityInfo.applicationInfo.packageName;
+        Log.i(TAG, "Found Safety Center resources APK at: " + resourcesApkPkgName);
+        return resourcesApkPkgName;
     }
 
     /**
@@ -283,36 +298,54 @@ public class SafetyCenterResourcesContext extends ContextWrapper {
     /** Retrieve assets held in the Safety Center resources APK. */
     @Override
     public AssetManager getAssets() {
-        if (mAssetsFromApk == null) {
-            Context resourcesApkContext = getResourcesApkContext();
-            if (resourcesApkContext != null) {
-                mAssetsFromApk = resourcesApkContext.getAssets();
+        AssetManager assetsFromApk = mAssetsFromApk;
+        if (assetsFromApk != null) {
+            return assetsFromApk;
+        }
+        synchronized (mLock) {
+            if (mAssetsFromApk == null) {
+                Context resourcesApkContext = getResourcesApkContext();
+                if (resourcesApkContext != null) {
+                    mAssetsFromApk = resourcesApkContext.getAssets();
+                }
             }
+            return mAssetsFromApk;
         }
-        return mAssetsFromApk;
     }
 
     /** Retrieve resources held in the Safety Center resources APK. */
     @Override
     public Resources getResources() {
-        if (mResourcesFromApk == null) {
-            Context resourcesApkContext = getResourcesApkContext();
-            if (resourcesApkContext != null) {
-                mResourcesFromApk = resourcesApkContext.getResources();
+        Resources resourcesFromApk = mResourcesFromApk;
+        if (resourcesFromApk != null) {
+            return resourcesFromApk;
+        }
+        synchronized (mLock) {
+            if (mResourcesFromApk == null) {
+                Context resourcesApkContext = getResourcesApkContext();
+                if (resourcesApkContext != null) {
+                    mResourcesFromApk = resourcesApkContext.getResources();
+                }
             }
+            return mResourcesFromApk;
         }
-        return mResourcesFromApk;
     }
 
     /** Retrieve theme held in the Safety Center resources APK. */
     @Override
     public Resources.Theme getTheme() {
-        if (mThemeFromApk == null) {
-            Context resourcesApkContext = getResourcesApkContext();
-            if (resourcesApkContext != null) {
-                mThemeFromApk = resourcesApkContext.getTheme();
+        Resources.Theme themeFromApk = mThemeFromApk;
+        if (themeFromApk != null) {
+            return themeFromApk;
+        }
+        synchronized (mLock) {
+            if (mThemeFromApk == null) {
+                Context resourcesApkContext = getResourcesApkContext();
+                if (resourcesApkContext != null) {
+                    mThemeFromApk = resourcesApkContext.getTheme();
+                }
             }
+            return mThemeFromApk;
         }
-        return mThemeFromApk;
     }
 }
@@ -26,6 +26,7 @@ import android.annotation.SuppressLint;
 import android.annotation.SystemApi;
 import android.annotation.SystemService;
 import android.annotation.UserIdInt;
+import android.app.PropertyInvalidatedCache;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
@@ -42,6 +43,7 @@ import androidx.annotation.RequiresApi;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.Preconditions;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
@@ -193,12 +195,33 @@ public final class RoleManager {
     public static final String PERMISSION_MANAGE_ROLES_FROM_CONTROLLER =
             "com.android.permissioncontroller.permission.MANAGE_ROLES_FROM_CONTROLLER";
 
+    /**
+     * The API name of the cache key used to invalidate the cached role holders in all processes.
+     */
+    private static final String CACHE_KEY_ROLE_HOLDERS_API = "role_holders";
+
+    private static final int ROLE_HOLDERS_CACHE_MAX_ENTRIES = 64;
+
     @NonNull
     private final Context mContext;
 
     @NonNull
     private final IRoleManager mService;
 
+    /**
+     * Cache for {@link #isRoleHeld(String)}, keyed by role name, or {@code null} if caching is not
+     * supported on this platform.
+     */
+    @Nullable
+    private final PropertyInvalidatedCache<String, Boolean> mIsRoleHeldCache;
+
+    /**
+     * Cache for {@link #getRoleHoldersAsUser(String, UserHandle)}, or {@code null} if caching is
+     * not supported on this platform.
+     */
+    @Nullable
+    private final PropertyInvalidatedCache<RoleHoldersQuery, List<String>> mRoleHoldersCache;
+
     @GuardedBy("mListenersLock")
     @NonNull
     private final SparseArray<ArrayMap<OnRoleHoldersChangedListener,
@@ -222,6 +245,52 @@ public final class RoleManager {
     public RoleManager(@NonNull Context context, @NonNull IRoleManager service) {
         mContext = context;
         mService = service;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            mIsRoleHeldCache = createIsRoleHeldCache();
+            mRoleHoldersCache = createRoleHoldersCache();
+        } else {
+            mIsRoleHeldCache = null;
+            mRoleHoldersCache = null;
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+    @NonNull
+    private PropertyInvalidatedCache<String, Boolean> createIsRoleHeldCache() {
+        return new PropertyInvalidatedCache<>(ROLE_HOLDERS_CACHE_MAX_ENTRIES,
+                PropertyInvalidatedCache.MODULE_SYSTEM, CACHE_KEY_ROLE_HOLDERS_API, "isRoleHeld",
+                new PropertyInvalidatedCache.QueryHandler<String, Boolean>() {
+                    @Override
+                    public Boolean apply(@NonNull String roleName) {
+                        return isRoleHeldUncached(roleName);
+                    }
+                });
+    }
+
+    @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+    @NonNull
+    private PropertyInvalidatedCache<RoleHoldersQuery, List<String>> createRoleHoldersCache() {
+        return new PropertyInvalidatedCache<>(ROLE_HOLDERS_CACHE_MAX_ENTRIES,
+                PropertyInvalidatedCache.MODULE_SYSTEM, CACHE_KEY_ROLE_HOLDERS_API,
+                "getRoleHoldersAsUser",
+                new PropertyInvalidatedCache.QueryHandler<RoleHoldersQuery, List<String>>() {
+                    @Override
+                    public List<String> apply(@NonNull RoleHoldersQuery query) {
+                        return getRoleHoldersAsUserUncached(query.mRoleName, query.mUserId);
+                    }
+                });
+    }
+
+    /**
+     * Invalidate the cached role holders in all processes. This should be called whenever the
+     * holders of any role change.
+     *
+     * @hide
+     */
+    @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+    public static void invalidateRoleHoldersCache() {
+        PropertyInvalidatedCache.invalidateCache(PropertyInvalidatedCache.MODULE_SYSTEM,
+                CACHE_KEY_ROLE_HOLDERS_API);
     }
 
     /**
@@ -271,6 +340,13 @@ public final class RoleManager {
      */
     public boolean isRoleHeld(@NonNull String roleName) {
         Preconditions.checkStringNotEmpty(roleName, "roleName cannot be null or empty");
+        if (mIsRoleHeldCache != null) {
+            return mIsRoleHeldCache.query(roleName);
+        }
+        return isRoleHeldUncached(roleName);
+    }
+
+    private boolean isRoleHeldUncached(@NonNull String roleName) {
         try {
             return mService.isRoleHeld(roleName, mContext.getPackageName());
         } catch (RemoteException e) {
@@ -323,8 +399,19 @@ public final class RoleManager {
     public List<String> getRoleHoldersAsUser(@NonNull String roleName, @NonNull UserHandle user) {
         Preconditions.checkStringNotEmpty(roleName, "roleName cannot be null or empty");
         Objects.requireNonNull(user, "user cannot be null");
+        if (mRoleHoldersCache != null) {
+            // Don't let the caller modify the cached list.
+            return new ArrayList<>(mRoleHoldersCache.query(new RoleHoldersQuery(roleName,
+                    user.getIdentifier())));
+        }
+        return getRoleHoldersAsUserUncached(roleName, user.getIdentifier());
+    }
+
+    @NonNull
+    private List<String> getRoleHoldersAsUserUncached(@NonNull String roleName,
+            @UserIdInt int userId) {
         try {
-            return mService.getRoleHoldersAsUser(roleName, user.getIdentifier());
+            return mService.getRoleHoldersAsUser(roleName, userId);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -831,6 +918,45 @@ public final class RoleManager {
         }
     }
 
+    /**
+     * Key for {@link #mRoleHoldersCache}.
+     */
+    private static final class RoleHoldersQuery {
+
+        @NonNull
+        private final String mRoleName;
+
+        @UserIdInt
+        private final int mUserId;
+
+        RoleHoldersQuery(@NonNull String roleName, @UserIdInt int userId) {
+            mRoleName = roleName;
+            mUserId = userId;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (object == null || getClass() != object.getClass()) {
+                return false;
+            }
+            RoleHoldersQuery that = (RoleHoldersQuery) object;
+            return mUserId == that.mUserId && mRoleName.equals(that.mRoleName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mRoleName, mUserId);
+        }
+
+        @Override
+        public String toString() {
+            return "RoleHoldersQuery{mRoleName=" + mRoleName + ", mUserId=" + mUserId + "}";
+        }
+    }
+
     private static class OnRoleHoldersChangedListenerDelegate
             extends IOnRoleHoldersChangedListener.Stub {
 
@@ -855,5 +981,22 @@ public final class RoleManager {
                 Binder.restoreCallingIdentity(token);
             }
         }
+
+        @Override
+        public void onRoleHoldersChangedBatch(@NonNull List<String> roleNames,
+                @UserIdInt int userId) {
+            final long token = Binder.clearCallingIdentity();
+            try {
+                UserHandle user = UserHandle.of(userId);
+                mExecutor.execute(() -> {
+                    int roleNamesSize = roleNames.size();
+                    for (int i = 0; i < roleNamesSize; i++) {
+                        mListener.onRoleHoldersChanged(roleNames.get(i), user);
+                    }
+                });
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
     }
 }
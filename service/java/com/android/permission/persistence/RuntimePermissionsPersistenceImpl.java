@@ -26,10 +26,16 @@ import android.util.AtomicFile;
 import android.util.Log;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -39,10 +45,22 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Persistence implementation for runtime permissions.
  *
+ * <p>Runtime permissions are written in a compact binary format to
+ * {@code runtime-permissions.bin}, with permission names stored once in a string table. The legacy
+ * {@code runtime-permissions.xml} is kept as a fallback for a module rollback, and is only
+ * rewritten when the version or fingerprint of the runtime permissions changes, or when it wasn't
+ * written by this implementation.
+ *
+ * <p>Both files record the generation of the write that produced them, and the XML file is read
+ * instead of the binary file if the binary file is missing or unreadable, if the XML file is of a
+ * later generation, or if the XML file has no generation because it was written by a module
+ * version without the binary format.
+ *
  * TODO(b/147914847): Remove @hide when it becomes the default.
  * @hide
  */
@@ -54,6 +72,20 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
 
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
 
+    private static final String RUNTIME_PERMISSIONS_BINARY_FILE_NAME = "runtime-permissions.bin";
+
+    /**
+     * Magic number at the start of the binary file, i.e. "RTPM".
+     */
+    private static final int BINARY_MAGIC = 0x5254504d;
+
+    private static final int BINARY_FORMAT_VERSION = 2;
+
+    /**
+     * Generation of a file written without one, or of a missing file.
+     */
+    private static final long NO_GENERATION = -1;
+
     private static final String TAG_PACKAGE = "package";
     private static final String TAG_PERMISSION = "permission";
     private static final String TAG_RUNTIME_PERMISSIONS = "runtime-permissions";
@@ -61,13 +93,157 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
 
     private static final String ATTRIBUTE_FINGERPRINT = "fingerprint";
     private static final String ATTRIBUTE_FLAGS = "flags";
+    private static final String ATTRIBUTE_GENERATION = "generation";
     private static final String ATTRIBUTE_GRANTED = "granted";
     private static final String ATTRIBUTE_NAME = "name";
     private static final String ATTRIBUTE_VERSION = "version";
 
+    /**
+     * Whether to write the binary format, or only the legacy XML format.
+     */
+    private final boolean mWriteBinaryFormat;
+
+    private final Object mLock = new Object();
+
+    /**
+     * The latest generation of the files of each user, as last read or written.
+     */
+    @GuardedBy("mLock")
+    private final ArrayMap<UserHandle, Long> mGenerations = new ArrayMap<>();
+
+    /**
+     * The header of the XML file of each user, if it was last read or written with a generation.
+     */
+    @GuardedBy("mLock")
+    private final ArrayMap<UserHandle, XmlHeader> mXmlHeaders = new ArrayMap<>();
+
+    public RuntimePermissionsPersistenceImpl() {
+        this(true);
+    }
+
+    RuntimePermissionsPersistenceImpl(boolean writeBinaryFormat) {
+        mWriteBinaryFormat = writeBinaryFormat;
+    }
+
     @Nullable
     @Override
     public RuntimePermissionsState readForUser(@NonNull UserHandle user) {
+        XmlHeader xmlHeader = readXmlHeaderForUser(user);
+        BinaryFile binaryFile = readBinaryForUser(user, xmlHeader != null);
+
+        RuntimePermissionsState runtimePermissions;
+        long generation;
+        if (binaryFile != null && (xmlHeader == null || (xmlHeader.mGeneration != NO_GENERATION
+                && xmlHeader.mGeneration <= binaryFile.mGeneration))) {
+            runtimePermissions = binaryFile.mRuntimePermissions;
+            generation = binaryFile.mGeneration;
+        } else {
+            // The binary file is missing or unreadable, or the XML file was written after it, e.g.
+            // by a module rolled back to a version without the binary format.
+            runtimePermissions = readXmlForUser(user);
+            generation = Math.max(binaryFile != null ? binaryFile.mGeneration : NO_GENERATION,
+                    xmlHeader != null ? xmlHeader.mGeneration : NO_GENERATION);
+        }
+
+        synchronized (mLock) {
+            mGenerations.put(user, generation);
+            setXmlHeaderLocked(user, xmlHeader);
+        }
+        return runtimePermissions;
+    }
+
+    @Nullable
+    private static BinaryFile readBinaryForUser(@NonNull UserHandle user, boolean hasXmlFile) {
+        File binaryFile = getBinaryFile(user);
+        try (FileInputStream inputStream = new AtomicFile(binaryFile).openRead()) {
+            return parseBinary(new DataInputStream(new BufferedInputStream(inputStream)));
+        } catch (FileNotFoundException e) {
+            // Not migrated yet, fall back to the XML file.
+            return null;
+        } catch (IOException | RuntimeException e) {
+            if (!hasXmlFile) {
+                throw new IllegalStateException("Failed to read runtime-permissions.bin: "
+                        + binaryFile, e);
+            }
+            Log.wtf(LOG_TAG, "Failed to read runtime-permissions.bin, falling back to XML: "
+                    + binaryFile, e);
+            return null;
+        }
+    }
+
+    private static long readBinaryGenerationForUser(@NonNull UserHandle user) {
+        File binaryFile = getBinaryFile(user);
+        try (FileInputStream inputStream = new AtomicFile(binaryFile).openRead()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+            return in.readInt() == BINARY_MAGIC && in.readInt() == BINARY_FORMAT_VERSION
+                    ? in.readLong() : NO_GENERATION;
+        } catch (IOException e) {
+            return NO_GENERATION;
+        }
+    }
+
+    @Nullable
+    private static XmlHeader readXmlHeaderForUser(@NonNull UserHandle user) {
+        File file = getFile(user);
+        try (FileInputStream inputStream = new AtomicFile(file).openRead()) {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(inputStream, null);
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG
+                        && parser.getName().equals(TAG_RUNTIME_PERMISSIONS)) {
+                    return parseXmlHeader(parser);
+                }
+            }
+            Log.w(LOG_TAG, "Missing <" + TAG_RUNTIME_PERMISSIONS + "> in runtime-permissions.xml");
+            return null;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (XmlPullParserException | IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to read the header of runtime-permissions.xml: " + file, e);
+            return null;
+        }
+    }
+
+    @NonNull
+    private static XmlHeader parseXmlHeader(@NonNull XmlPullParser parser) {
+        String versionValue = parser.getAttributeValue(null, ATTRIBUTE_VERSION);
+        int version = versionValue != null ? Integer.parseInt(versionValue)
+                : RuntimePermissionsState.NO_VERSION;
+        String fingerprint = parser.getAttributeValue(null, ATTRIBUTE_FINGERPRINT);
+        String generationValue = parser.getAttributeValue(null, ATTRIBUTE_GENERATION);
+        long generation = generationValue != null ? Long.parseLong(generationValue)
+                : NO_GENERATION;
+        return new XmlHeader(version, fingerprint, generation);
+    }
+
+    @GuardedBy("mLock")
+    private void setXmlHeaderLocked(@NonNull UserHandle user, @Nullable XmlHeader xmlHeader) {
+        if (xmlHeader != null && xmlHeader.mGeneration != NO_GENERATION) {
+            mXmlHeaders.put(user, xmlHeader);
+        } else {
+            // Rewrite the XML file on the next write, so that it has a generation.
+            mXmlHeaders.remove(user);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private long getGenerationLocked(@NonNull UserHandle user) {
+        Long generation = mGenerations.get(user);
+        if (generation != null) {
+            return generation;
+        }
+        // Writing before reading, look up the generations of the files.
+        XmlHeader xmlHeader = readXmlHeaderForUser(user);
+        setXmlHeaderLocked(user, xmlHeader);
+        long latestGeneration = Math.max(readBinaryGenerationForUser(user),
+                xmlHeader != null ? xmlHeader.mGeneration : NO_GENERATION);
+        mGenerations.put(user, latestGeneration);
+        return latestGeneration;
+    }
+
+    @Nullable
+    private static RuntimePermissionsState readXmlForUser(@NonNull UserHandle user) {
         File file = getFile(user);
         try (FileInputStream inputStream = new AtomicFile(file).openRead()) {
             XmlPullParser parser = Xml.newPullParser();
@@ -171,9 +347,231 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
         return permissions;
     }
 
+    @NonNull
+    private static BinaryFile parseBinary(@NonNull DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic != BINARY_MAGIC) {
+            throw new IOException("Invalid magic number: " + Integer.toHexString(magic));
+        }
+        int formatVersion = in.readInt();
+        if (formatVersion != BINARY_FORMAT_VERSION) {
+            throw new IOException("Unsupported binary format version: " + formatVersion);
+        }
+        long generation = in.readLong();
+
+        RuntimePermissionsState runtimePermissions = parseBinaryBody(in);
+        if (in.read() != -1) {
+            throw new IOException("Unexpected trailing data in runtime-permissions.bin");
+        }
+        return new BinaryFile(generation, runtimePermissions);
+    }
+
+    @NonNull
+    private static RuntimePermissionsState parseBinaryBody(@NonNull DataInputStream in)
+            throws IOException {
+        int version = in.readInt();
+        String fingerprint = in.readBoolean() ? in.readUTF() : null;
+
+        int permissionNamesSize = readVarInt(in);
+        String[] permissionNames = new String[permissionNamesSize];
+        for (int i = 0; i < permissionNamesSize; i++) {
+            permissionNames[i] = in.readUTF();
+        }
+
+        Map<String, List<RuntimePermissionsState.PermissionState>> packagePermissions =
+                parseBinaryPermissionsMap(in, permissionNames);
+        Map<String, List<RuntimePermissionsState.PermissionState>> sharedUserPermissions =
+                parseBinaryPermissionsMap(in, permissionNames);
+        return new RuntimePermissionsState(version, fingerprint, packagePermissions,
+                sharedUserPermissions);
+    }
+
+    @NonNull
+    private static Map<String, List<RuntimePermissionsState.PermissionState>>
+            parseBinaryPermissionsMap(@NonNull DataInputStream in,
+            @NonNull String[] permissionNames) throws IOException {
+        int mapSize = readVarInt(in);
+        Map<String, List<RuntimePermissionsState.PermissionState>> permissionsMap =
+                new ArrayMap<>(mapSize);
+        for (int i = 0; i < mapSize; i++) {
+            String name = in.readUTF();
+            int permissionsSize = readVarInt(in);
+            List<RuntimePermissionsState.PermissionState> permissions = new ArrayList<>(
+                    permissionsSize);
+            for (int j = 0; j < permissionsSize; j++) {
+                // The granted state is packed into the lowest bit of the name index.
+                int packedNameIndex = readVarInt(in);
+                String permissionName = permissionNames[packedNameIndex >>> 1];
+                boolean granted = (packedNameIndex & 1) != 0;
+                int flags = readVarInt(in);
+                permissions.add(new RuntimePermissionsState.PermissionState(permissionName,
+                        granted, flags));
+            }
+            permissionsMap.put(name, permissions);
+        }
+        return permissionsMap;
+    }
+
     @Override
     public void writeForUser(@NonNull RuntimePermissionsState runtimePermissions,
             @NonNull UserHandle user) {
+        long generation;
+        boolean writeXml;
+        synchronized (mLock) {
+            generation = getGenerationLocked(user) + 1;
+            XmlHeader xmlHeader = mXmlHeaders.get(user);
+            writeXml = !mWriteBinaryFormat || xmlHeader == null
+                    || !xmlHeader.isHeaderOf(runtimePermissions);
+        }
+
+        if (writeXml) {
+            boolean xmlWritten = writeXmlForUser(runtimePermissions, generation, user);
+            synchronized (mLock) {
+                if (xmlWritten) {
+                    mXmlHeaders.put(user, new XmlHeader(runtimePermissions.getVersion(),
+                            runtimePermissions.getFingerprint(), generation));
+                    mGenerations.put(user, generation);
+                }
+            }
+            if (!mWriteBinaryFormat) {
+                if (xmlWritten) {
+                    // Don't let a stale binary file take precedence over the XML file.
+                    new AtomicFile(getBinaryFile(user)).delete();
+                }
+                return;
+            }
+            if (!xmlWritten) {
+                // Don't let an XML file without a generation take precedence over the binary file.
+                synchronized (mLock) {
+                    if (!mXmlHeaders.containsKey(user)) {
+                        new AtomicFile(getFile(user)).delete();
+                    }
+                }
+            }
+        }
+
+        File binaryFile = getBinaryFile(user);
+        AtomicFile atomicFile = new AtomicFile(binaryFile);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = atomicFile.startWrite();
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+            serializeBinary(out, runtimePermissions, generation);
+            out.flush();
+
+            atomicFile.finishWrite(outputStream);
+        } catch (Exception e) {
+            Log.wtf(LOG_TAG, "Failed to write runtime-permissions.bin, restoring backup: "
+                    + binaryFile, e);
+            atomicFile.failWrite(outputStream);
+            return;
+        } finally {
+            IoUtils.closeQuietly(outputStream);
+        }
+
+        synchronized (mLock) {
+            mGenerations.put(user, generation);
+        }
+    }
+
+    private static void serializeBinary(@NonNull DataOutputStream out,
+            @NonNull RuntimePermissionsState runtimePermissions, long generation)
+            throws IOException {
+        out.writeInt(BINARY_MAGIC);
+        out.writeInt(BINARY_FORMAT_VERSION);
+        out.writeLong(generation);
+        serializeBinaryBody(out, runtimePermissions);
+    }
+
+    private static void serializeBinaryBody(@NonNull DataOutputStream out,
+            @NonNull RuntimePermissionsState runtimePermissions) throws IOException {
+        out.writeInt(runtimePermissions.getVersion());
+        String fingerprint = runtimePermissions.getFingerprint();
+        out.writeBoolean(fingerprint != null);
+        if (fingerprint != null) {
+            out.writeUTF(fingerprint);
+        }
+
+        Map<String, Integer> permissionNameIndices = new ArrayMap<>();
+        List<String> permissionNames = new ArrayList<>();
+        collectPermissionNames(runtimePermissions.getPackagePermissions(), permissionNameIndices,
+                permissionNames);
+        collectPermissionNames(runtimePermissions.getSharedUserPermissions(),
+                permissionNameIndices, permissionNames);
+        int permissionNamesSize = permissionNames.size();
+        writeVarInt(out, permissionNamesSize);
+        for (int i = 0; i < permissionNamesSize; i++) {
+            out.writeUTF(permissionNames.get(i));
+        }
+
+        serializeBinaryPermissionsMap(out, runtimePermissions.getPackagePermissions(),
+                permissionNameIndices);
+        serializeBinaryPermissionsMap(out, runtimePermissions.getSharedUserPermissions(),
+                permissionNameIndices);
+    }
+
+    private static void collectPermissionNames(
+            @NonNull Map<String, List<RuntimePermissionsState.PermissionState>> permissionsMap,
+            @NonNull Map<String, Integer> permissionNameIndices,
+            @NonNull List<String> permissionNames) {
+        for (List<RuntimePermissionsState.PermissionState> permissions
+                : permissionsMap.values()) {
+            int permissionsSize = permissions.size();
+            for (int i = 0; i < permissionsSize; i++) {
+                String permissionName = permissions.get(i).getName();
+                if (!permissionNameIndices.containsKey(permissionName)) {
+                    permissionNameIndices.put(permissionName, permissionNames.size());
+                    permissionNames.add(permissionName);
+                }
+            }
+        }
+    }
+
+    private static void serializeBinaryPermissionsMap(@NonNull DataOutputStream out,
+            @NonNull Map<String, List<RuntimePermissionsState.PermissionState>> permissionsMap,
+            @NonNull Map<String, Integer> permissionNameIndices) throws IOException {
+        writeVarInt(out, permissionsMap.size());
+        for (Map.Entry<String, List<RuntimePermissionsState.PermissionState>> entry
+                : permissionsMap.entrySet()) {
+            out.writeUTF(entry.getKey());
+            List<RuntimePermissionsState.PermissionState> permissions = entry.getValue();
+            int permissionsSize = permissions.size();
+            writeVarInt(out, permissionsSize);
+            for (int i = 0; i < permissionsSize; i++) {
+                RuntimePermissionsState.PermissionState permissionState = permissions.get(i);
+                int nameIndex = permissionNameIndices.get(permissionState.getName());
+                boolean granted = permissionState.isGranted() && (permissionState.getFlags()
+                        & PackageManager.FLAG_PERMISSION_ONE_TIME) == 0;
+                writeVarInt(out, (nameIndex << 1) | (granted ? 1 : 0));
+                writeVarInt(out, permissionState.getFlags());
+            }
+        }
+    }
+
+    private static void writeVarInt(@NonNull DataOutputStream out, int value)
+            throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(@NonNull DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    private static boolean writeXmlForUser(@NonNull RuntimePermissionsState runtimePermissions,
+            long generation, @NonNull UserHandle user) {
         File file = getFile(user);
         AtomicFile atomicFile = new AtomicFile(file);
         FileOutputStream outputStream = null;
@@ -184,7 +582,7 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
             serializer.setOutput(outputStream, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
 
-            serializeRuntimePermissions(serializer, runtimePermissions);
+            serializeRuntimePermissions(serializer, runtimePermissions, generation);
 
             serializer.endDocument();
             atomicFile.finishWrite(outputStream);
@@ -192,15 +590,20 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
             Log.wtf(LOG_TAG, "Failed to write runtime-permissions.xml, restoring backup: " + file,
                     e);
             atomicFile.failWrite(outputStream);
+            return false;
         } finally {
             IoUtils.closeQuietly(outputStream);
         }
+        return true;
     }
 
     private static void serializeRuntimePermissions(@NonNull XmlSerializer serializer,
-            @NonNull RuntimePermissionsState runtimePermissions) throws IOException {
+            @NonNull RuntimePermissionsState runtimePermissions, long generation)
+            throws IOException {
         serializer.startTag(null, TAG_RUNTIME_PERMISSIONS);
 
+        serializer.attribute(null, ATTRIBUTE_GENERATION, Long.toString(generation));
+
         int version = runtimePermissions.getVersion();
         serializer.attribute(null, ATTRIBUTE_VERSION, Integer.toString(version));
         String fingerprint = runtimePermissions.getFingerprint();
@@ -253,6 +656,11 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
     @Override
     public void deleteForUser(@NonNull UserHandle user) {
         getFile(user).delete();
+        new AtomicFile(getBinaryFile(user)).delete();
+        synchronized (mLock) {
+            mGenerations.remove(user);
+            mXmlHeaders.remove(user);
+        }
     }
 
     @NonNull
@@ -261,4 +669,55 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
         File dataDirectory = apexEnvironment.getDeviceProtectedDataDirForUser(user);
         return new File(dataDirectory, RUNTIME_PERMISSIONS_FILE_NAME);
     }
+
+    @NonNull
+    private static File getBinaryFile(@NonNull UserHandle user) {
+        ApexEnvironment apexEnvironment = ApexEnvironment.getApexEnvironment(APEX_MODULE_NAME);
+        File dataDirectory = apexEnvironment.getDeviceProtectedDataDirForUser(user);
+        return new File(dataDirectory, RUNTIME_PERMISSIONS_BINARY_FILE_NAME);
+    }
+
+    /**
+     * The contents of a binary file.
+     */
+    private static final class BinaryFile {
+
+        private final long mGeneration;
+
+        @NonNull
+        private final RuntimePermissionsState mRuntimePermissions;
+
+        BinaryFile(long generation, @NonNull RuntimePermissionsState runtimePermissions) {
+            mGeneration = generation;
+            mRuntimePermissions = runtimePermissions;
+        }
+    }
+
+    /**
+     * The attributes of the root tag of an XML file.
+     */
+    private static final class XmlHeader {
+
+        private final int mVersion;
+
+        @Nullable
+        private final String mFingerprint;
+
+        private final long mGeneration;
+
+        XmlHeader(int version, @Nullable String fingerprint, long generation) {
+            mVersion = version;
+            mFingerprint = fingerprint;
+            mGeneration = generation;
+        }
+
+        /**
+         * Check whether the XML file already has the version and fingerprint of some runtime
+         * permissions, i.e. whether it still serves as a fallback for them.
+         */
+        boolean isHeaderOf(@NonNull RuntimePermissionsState runtimePermissions) {
+            return mVersion == runtimePermissions.getVersion()
+                    && Objects.equals(mFingerprint, runtimePermissions.getFingerprint());
+        }
+    }
 }
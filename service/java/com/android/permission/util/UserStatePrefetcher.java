@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permission.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A prefetcher that loads per-user state for multiple users in parallel on a bounded pool of
+ * background threads, so that the state is already loaded when it is needed for a user.
+ *
+ * A prefetched state is handed out at most once by {@link #get(UserHandle)}, and it should be
+ * invalidated with {@link #invalidate(UserHandle)} whenever the underlying state is modified. A
+ * prefetched state that isn't handed out within {@link #MAX_PREFETCH_AGE_MILLIS} is discarded.
+ *
+ * @param <T> the type of the per-user state
+ */
+public final class UserStatePrefetcher<T> {
+    private static final String LOG_TAG = UserStatePrefetcher.class.getSimpleName();
+
+    private static final int MAX_THREADS = 4;
+
+    private static final long KEEP_ALIVE_MILLIS = 10 * 1000;
+
+    /**
+     * Time after which a prefetched state that hasn't been handed out is discarded, e.g. because
+     * its user is never started.
+     */
+    private static final long MAX_PREFETCH_AGE_MILLIS = 60 * 1000;
+
+    @NonNull
+    private final Function<UserHandle, T> mLoader;
+
+    @NonNull
+    private final ThreadPoolExecutor mExecutor;
+
+    @NonNull
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    @NonNull
+    private final ArrayMap<UserHandle, Future<T>> mFutures = new ArrayMap<>();
+
+    /**
+     * Create a new prefetcher.
+     *
+     * @param name the name of the prefetcher, used for its threads
+     * @param loader the function loading the state for a user synchronously
+     */
+    public UserStatePrefetcher(@NonNull String name, @NonNull Function<UserHandle, T> loader) {
+        mLoader = loader;
+        AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_MILLIS,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, name + "-prefetch-"
+                        + threadCount.incrementAndGet()));
+        // Don't keep any thread around once all the users have been prefetched.
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start loading the state for the given users in parallel, unless it is already being loaded.
+     *
+     * @param users the users to prefetch the state for
+     */
+    public void prefetch(@NonNull List<UserHandle> users) {
+        synchronized (mLock) {
+            int usersSize = users.size();
+            for (int i = 0; i < usersSize; i++) {
+                UserHandle user = users.get(i);
+                if (mFutures.containsKey(user)) {
+                    continue;
+                }
+                Future<T> future = mExecutor.submit(() -> mLoader.apply(user));
+                mFutures.put(user, future);
+                ForegroundThread.getHandler().postDelayed(() -> evict(user, future),
+                        MAX_PREFETCH_AGE_MILLIS);
+            }
+        }
+    }
+
+    private void evict(@NonNull UserHandle user, @NonNull Future<T> future) {
+        synchronized (mLock) {
+            if (mFutures.get(user) != future) {
+                return;
+            }
+            mFutures.remove(user);
+        }
+        future.cancel(false);
+    }
+
+    /**
+     * Get the state for a user, waiting for it to be loaded if it is being prefetched, or loading
+     * it synchronously otherwise.
+     *
+     * @param user the user to get the state for
+     * @return the state for the user
+     */
+    @Nullable
+    public T get(@NonNull UserHandle user) {
+        Future<T> future;
+        synchronized (mLock) {
+            future = mFutures.remove(user);
+        }
+        if (future == null) {
+            return mLoader.apply(user);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(LOG_TAG, "Interrupted while waiting for prefetched state for user " + user, e);
+            return mLoader.apply(user);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Failed to prefetch state for user " + user, cause);
+        }
+    }
+
+    /**
+     * Discard any state prefetched for a user, e.g. because it is about to be modified.
+     *
+     * @param user the user to discard the prefetched state for
+     */
+    public void invalidate(@NonNull UserHandle user) {
+        Future<T> future;
+        synchronized (mLock) {
+            future = mFutures.remove(user);
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -62,6 +62,7 @@ import com.android.permission.util.ForegroundThread;
 import com.android.permission.util.PackageUtils;
 import com.android.permission.util.ThrottledRunnable;
 import com.android.permission.util.UserUtils;
+import com.android.role.persistence.RolesPersistenceImpl;
 import com.android.server.LocalManagerRegistry;
 import com.android.server.SystemService;
 import com.android.server.role.RoleServicePlatformHelper;
@@ -93,6 +94,11 @@ public class RoleService extends SystemService implements RoleUserState.Callback
 
     private static final long GRANT_DEFAULT_ROLES_INTERVAL_MILLIS = 1000;
 
+    /**
+     * Delay used to batch role holders changes together before notifying listeners.
+     */
+    private static final long NOTIFY_ROLE_HOLDERS_CHANGED_DELAY_MILLIS = 100;
+
     @NonNull
     private final AppOpsManager mAppOpsManager;
 
@@ -127,6 +133,17 @@ public class RoleService extends SystemService implements RoleUserState.Callback
     @NonNull
     private final Handler mListenerHandler = ForegroundThread.getHandler();
 
+    /**
+     * Maps user id to the names of the roles whose holders changed since listeners were last
+     * notified.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private final SparseArray<ArraySet<String>> mPendingRoleHoldersChanges = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private boolean mNotifyRoleHoldersChangedScheduled;
+
     @GuardedBy("mLock")
     private boolean mBypassingRoleQualification;
 
@@ -169,6 +186,12 @@ public class RoleService extends SystemService implements RoleUserState.Callback
 
     @Override
     public void onStart() {
+        // Read the roles for all users in parallel before they are started one by one.
+        RolesPersistenceImpl.prefetchForUsers(UserUtils.getUserHandles(getContext()));
+        // The role holders cache stays disabled until its key is first invalidated, so enable it
+        // now that the roles are available.
+        invalidateRoleHoldersCache();
+
         publishBinderService(Context.ROLE_SERVICE, new Stub());
 
         IntentFilter intentFilter = new IntentFilter();
@@ -324,37 +347,79 @@ public class RoleService extends SystemService implements RoleUserState.Callback
         if (userState != null) {
             userState.destroy();
         }
+        invalidateRoleHoldersCache();
     }
 
     @Override
     public void onRoleHoldersChanged(@NonNull String roleName, @UserIdInt int userId) {
-        mListenerHandler.post(() -> notifyRoleHoldersChanged(roleName, userId));
+        invalidateRoleHoldersCache();
+        synchronized (mLock) {
+            ArraySet<String> roleNames = mPendingRoleHoldersChanges.get(userId);
+            if (roleNames == null) {
+                roleNames = new ArraySet<>();
+                mPendingRoleHoldersChanges.put(userId, roleNames);
+            }
+            roleNames.add(roleName);
+            if (!mNotifyRoleHoldersChangedScheduled) {
+                mListenerHandler.postDelayed(this::notifyPendingRoleHoldersChanges,
+                        NOTIFY_ROLE_HOLDERS_CHANGED_DELAY_MILLIS);
+                mNotifyRoleHoldersChangedScheduled = true;
+            }
+        }
+    }
+
+    private static void invalidateRoleHoldersCache() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            RoleManager.invalidateRoleHoldersCache();
+        }
+    }
+
+    @WorkerThread
+    private void notifyPendingRoleHoldersChanges() {
+        SparseArray<ArraySet<String>> pendingRoleHoldersChanges;
+        synchronized (mLock) {
+            pendingRoleHoldersChanges = mPendingRoleHoldersChanges.clone();
+            mPendingRoleHoldersChanges.clear();
+            mNotifyRoleHoldersChangedScheduled = false;
+        }
+
+        int pendingRoleHoldersChangesSize = pendingRoleHoldersChanges.size();
+        for (int i = 0; i < pendingRoleHoldersChangesSize; i++) {
+            int userId = pendingRoleHoldersChanges.keyAt(i);
+            List<String> roleNames = new ArrayList<>(pendingRoleHoldersChanges.valueAt(i));
+            notifyRoleHoldersChanged(roleNames, userId);
+        }
     }
 
     @WorkerThread
-    private void notifyRoleHoldersChanged(@NonNull String roleName, @UserIdInt int userId) {
+    private void notifyRoleHoldersChanged(@NonNull List<String> roleNames,
+            @UserIdInt int userId) {
         RemoteCallbackList<IOnRoleHoldersChangedListener> listeners = getListeners(userId);
         if (listeners != null) {
-            notifyRoleHoldersChangedForListeners(listeners, roleName, userId);
+            notifyRoleHoldersChangedForListeners(listeners, roleNames, userId);
         }
 
         RemoteCallbackList<IOnRoleHoldersChangedListener> allUsersListeners = getListeners(
                 UserHandleCompat.USER_ALL);
         if (allUsersListeners != null) {
-            notifyRoleHoldersChangedForListeners(allUsersListeners, roleName, userId);
+            notifyRoleHoldersChangedForListeners(allUsersListeners, roleNames, userId);
         }
     }
 
     @WorkerThread
     private void notifyRoleHoldersChangedForListeners(
             @NonNull RemoteCallbackList<IOnRoleHoldersChangedListener> listeners,
-            @NonNull String roleName, @UserIdInt int userId) {
+            @NonNull List<String> roleNames, @UserIdInt int userId) {
         int broadcastCount = listeners.beginBroadcast();
         try {
             for (int i = 0; i < broadcastCount; i++) {
                 IOnRoleHoldersChangedListener listener = listeners.getBroadcastItem(i);
                 try {
-                    listener.onRoleHoldersChanged(roleName, userId);
+                    if (roleNames.size() == 1) {
+                        listener.onRoleHoldersChanged(roleNames.get(0), userId);
+                    } else {
+                        listener.onRoleHoldersChangedBatch(roleNames, userId);
+                    }
                 } catch (RemoteException e) {
                     Log.e(LOG_TAG, "Error calling OnRoleHoldersChangedListener", e);
                 }
@@ -383,11 +448,7 @@ public class RoleService extends SystemService implements RoleUserState.Callback
             Preconditions.checkStringNotEmpty(packageName, "packageName cannot be null or empty");
 
             int userId = UserHandleCompat.getUserId(callingUid);
-            ArraySet<String> roleHolders = getOrCreateUserState(userId).getRoleHolders(roleName);
-            if (roleHolders == null) {
-                return false;
-            }
-            return roleHolders.contains(packageName);
+            return getOrCreateUserState(userId).isRoleHolder(roleName, packageName);
         }
 
         @NonNull
@@ -39,6 +39,7 @@ import com.android.role.persistence.RolesState;
 import com.android.server.role.RoleServicePlatformHelper;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -86,6 +87,13 @@ class RoleUserState {
     @NonNull
     private ArrayMap<String, ArraySet<String>> mRoles = new ArrayMap<>();
 
+    /**
+     * Immutable snapshot of {@link #mRoles}, republished after every change so that role holder
+     * queries don't need to take {@link #mLock}.
+     */
+    @NonNull
+    private volatile RolesSnapshot mRolesSnapshot = RolesSnapshot.EMPTY;
+
     @GuardedBy("mLock")
     private boolean mWriteScheduled;
 
@@ -201,9 +209,7 @@ class RoleUserState {
      * @return whether the role is available
      */
     public boolean isRoleAvailable(@NonNull String roleName) {
-        synchronized (mLock) {
-            return mRoles.containsKey(roleName);
-        }
+        return mRolesSnapshot.mRoles.containsKey(roleName);
     }
 
     /**
@@ -211,17 +217,25 @@ class RoleUserState {
      *
      * @param roleName the name of the role to query for
      *
-     * @return the set of role holders, or {@code null} if and only if the role is not found
+     * @return the set of role holders, or {@code null} if and only if the role is not found. The
+     *         returned set is shared and must not be modified.
      */
     @Nullable
     public ArraySet<String> getRoleHolders(@NonNull String roleName) {
-        synchronized (mLock) {
-            ArraySet<String> packageNames = mRoles.get(roleName);
-            if (packageNames == null) {
-                return null;
-            }
-            return new ArraySet<>(packageNames);
-        }
+        return mRolesSnapshot.mRoles.get(roleName);
+    }
+
+    /**
+     * Check whether a package holds a role.
+     *
+     * @param roleName the name of the role to query for
+     * @param packageName the package name to check
+     *
+     * @return whether the package holds the role
+     */
+    public boolean isRoleHolder(@NonNull String roleName, @NonNull String packageName) {
+        ArraySet<String> roleHolders = mRolesSnapshot.mRoles.get(roleName);
+        return roleHolders != null && roleHolders.contains(packageName);
     }
 
     /**
@@ -236,6 +250,7 @@ class RoleUserState {
             if (!mRoles.containsKey(roleName)) {
                 mRoles.put(roleName, new ArraySet<>());
                 Log.i(LOG_TAG, "Added new role: " + roleName);
+                publishRolesSnapshotLocked();
                 scheduleWriteFileLocked();
                 return true;
             } else {
@@ -273,6 +288,7 @@ class RoleUserState {
             }
 
             if (changed) {
+                publishRolesSnapshotLocked();
                 scheduleWriteFileLocked();
             }
         }
@@ -299,6 +315,7 @@ class RoleUserState {
             }
             changed = roleHolders.add(packageName);
             if (changed) {
+                publishRolesSnapshotLocked();
                 scheduleWriteFileLocked();
             }
         }
@@ -331,6 +348,7 @@ class RoleUserState {
 
             changed = roleHolders.remove(packageName);
             if (changed) {
+                publishRolesSnapshotLocked();
                 scheduleWriteFileLocked();
             }
         }
@@ -343,19 +361,18 @@ class RoleUserState {
 
     /**
      * @see android.app.role.RoleManager#getHeldRolesFromController
+     *
+     * @return the names of the roles held by the package, as an unmodifiable list
      */
     @NonNull
     public List<String> getHeldRoles(@NonNull String packageName) {
-        synchronized (mLock) {
-            List<String> roleNames = new ArrayList<>();
-            int size = mRoles.size();
-            for (int i = 0; i < size; i++) {
-                if (mRoles.valueAt(i).contains(packageName)) {
-                    roleNames.add(mRoles.keyAt(i));
-                }
-            }
-            return roleNames;
-        }
+        List<String> roleNames = mRolesSnapshot.mHeldRoles.get(packageName);
+        return roleNames != null ? roleNames : Collections.emptyList();
+    }
+
+    @GuardedBy("mLock")
+    private void publishRolesSnapshotLocked() {
+        mRolesSnapshot = new RolesSnapshot(snapshotRolesLocked());
     }
 
     /**
@@ -410,6 +427,7 @@ class RoleUserState {
                 ArraySet<String> roleHolders = new ArraySet<>(entry.getValue());
                 mRoles.put(roleName, roleHolders);
             }
+            publishRolesSnapshotLocked();
 
             if (roleState == null) {
                 scheduleWriteFileLocked();
@@ -500,6 +518,51 @@ class RoleUserState {
         }
     }
 
+    /**
+     * Immutable snapshot of the roles and their holders, along with the reverse index from
+     * package names to held roles.
+     */
+    private static final class RolesSnapshot {
+
+        @NonNull
+        static final RolesSnapshot EMPTY = new RolesSnapshot(new ArrayMap<>());
+
+        /**
+         * Maps role names to its holders' package names. Must not be modified.
+         */
+        @NonNull
+        final ArrayMap<String, ArraySet<String>> mRoles;
+
+        /**
+         * Maps package names to the unmodifiable list of names of the roles they hold.
+         */
+        @NonNull
+        final ArrayMap<String, List<String>> mHeldRoles = new ArrayMap<>();
+
+        RolesSnapshot(@NonNull ArrayMap<String, ArraySet<String>> roles) {
+            mRoles = roles;
+            int rolesSize = roles.size();
+            for (int i = 0; i < rolesSize; i++) {
+                String roleName = roles.keyAt(i);
+                ArraySet<String> roleHolders = roles.valueAt(i);
+                int roleHoldersSize = roleHolders.size();
+                for (int j = 0; j < roleHoldersSize; j++) {
+                    String packageName = roleHolders.valueAt(j);
+                    List<String> heldRoles = mHeldRoles.get(packageName);
+                    if (heldRoles == null) {
+                        heldRoles = new ArrayList<>();
+                        mHeldRoles.put(packageName, heldRoles);
+                    }
+                    heldRoles.add(roleName);
+                }
+            }
+            int heldRolesSize = mHeldRoles.size();
+            for (int i = 0; i < heldRolesSize; i++) {
+                mHeldRoles.setValueAt(i, Collections.unmodifiableList(mHeldRoles.valueAt(i)));
+            }
+        }
+    }
+
     /**
      * Callback for a user state.
      */
@@ -27,6 +27,7 @@ import android.util.Log;
 import android.util.Xml;
 
 import com.android.permission.persistence.IoUtils;
+import com.android.permission.util.UserStatePrefetcher;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -38,6 +39,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -63,9 +65,27 @@ public class RolesPersistenceImpl implements RolesPersistence {
     private static final String ATTRIBUTE_NAME = "name";
     private static final String ATTRIBUTE_PACKAGES_HASH = "packagesHash";
 
+    private static final UserStatePrefetcher<RolesState> sPrefetcher = new UserStatePrefetcher<>(
+            "RolesPersistence", RolesPersistenceImpl::readFile);
+
+    /**
+     * Start reading the roles for the given users in parallel in the background, so that a later
+     * {@link #readForUser(UserHandle)} for any of these users doesn't need to wait for the I/O.
+     *
+     * @param users the users to read for
+     */
+    public static void prefetchForUsers(@NonNull List<UserHandle> users) {
+        sPrefetcher.prefetch(users);
+    }
+
     @Nullable
     @Override
     public RolesState readForUser(@NonNull UserHandle user) {
+        return sPrefetcher.get(user);
+    }
+
+    @Nullable
+    private static RolesState readFile(@NonNull UserHandle user) {
         File file = getFile(user);
         try (FileInputStream inputStream = new AtomicFile(file).openRead()) {
             XmlPullParser parser = Xml.newPullParser();
@@ -147,6 +167,7 @@ public class RolesPersistenceImpl implements RolesPersistence {
 
     @Override
     public void writeForUser(@NonNull RolesState roles, @NonNull UserHandle user) {
+        sPrefetcher.invalidate(user);
         File file = getFile(user);
         AtomicFile atomicFile = new AtomicFile(file);
         FileOutputStream outputStream = null;
@@ -206,6 +227,7 @@ public class RolesPersistenceImpl implements RolesPersistence {
 
     @Override
     public void deleteForUser(@NonNull UserHandle user) {
+        sPrefetcher.invalidate(user);
         getFile(user).delete();
     }
 
@@ -48,6 +48,7 @@ import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.safetycenter.internaldata.SafetyCenterEntryGroupId;
 import com.android.safetycenter.internaldata.SafetyCenterEntryId;
 import com.android.safetycenter.internaldata.SafetyCenterIds;
@@ -60,6 +61,7 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -67,7 +69,9 @@ import javax.annotation.concurrent.NotThreadSafe;
  * Aggregates {@link SafetySourceData} to build {@link SafetyCenterData} instances which are shared
  * with Safety Center listeners, including PermissionController.
  *
- * <p>This class isn't thread safe. Thread safety must be handled by the caller.
+ * <p>This class isn't thread safe. Thread safety must be handled by the caller. However, {@link
+ * #getSafetyCenterData} may be called concurrently by multiple readers, as long as no other method
+ * modifying the underlying state is called at the same time.
  */
 @RequiresApi(TIRAMISU)
 @NotThreadSafe
@@ -88,6 +92,24 @@ final class SafetyCenterDataFactory {
     @NonNull private final SafetyCenterIssueCache mSafetyCenterIssueCache;
     @NonNull private final SafetyCenterRepository mSafetyCenterRepository;
 
+    @NonNull private final Object mCacheLock = new Object();
+
+    @GuardedBy("mCacheLock")
+    @NonNull
+    private final ArrayMap<SafetySourceKey, CachedSafetySourceIssues> mCachedSafetySourceIssues =
+            new ArrayMap<>();
+
+    /**
+     * The maximum number of {@link CachedSafetySourcesGroup}s kept, as they are cached for each
+     * calling package and {@link UserProfileGroup}.
+     */
+    private static final int MAX_CACHED_SAFETY_SOURCES_GROUPS = 64;
+
+    @GuardedBy("mCacheLock")
+    @NonNull
+    private final ArrayMap<SafetySourcesGroupCacheKey, CachedSafetySourcesGroup>
+            mCachedSafetySourcesGroups = new ArrayMap<>();
+
     SafetyCenterDataFactory(
             @NonNull SafetyCenterResourcesContext safetyCenterResourcesContext,
             @NonNull SafetyCenterConfigReader safetyCenterConfigReader,
@@ -131,6 +153,21 @@ final class SafetyCenterDataFactory {
                 emptyList());
     }
 
+    /**
+     * Clears the issues and entries cached from previous calls to {@link #getSafetyCenterData}.
+     *
+     * <p>Cached values are already discarded when the {@link SafetySourceData} or errors of their
+     * safety sources, the locale or the {@link SafetyCenterFlags} they depend on change. This
+     * should be called when other inputs may have changed, such as the {@link SafetyCenterConfig},
+     * the users, the state of the apps providing safety sources or the device policy strings.
+     */
+    void clearCache() {
+        synchronized (mCacheLock) {
+            mCachedSafetySourceIssues.clear();
+            mCachedSafetySourcesGroups.clear();
+        }
+    }
+
     @NonNull
     private SafetyCenterData getSafetyCenterData(
             @NonNull List<SafetySourcesGroup> safetySourcesGroups,
@@ -152,20 +189,20 @@ final class SafetyCenterDataFactory {
             int safetySourcesGroupType = safetySourcesGroup.getType();
             switch (safetySourcesGroupType) {
                 case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_COLLAPSIBLE:
-                    addSafetyCenterEntryGroup(
-                            safetyCenterOverallState,
-                            safetyCenterEntryOrGroups,
-                            safetySourcesGroup,
-                            packageName,
-                            userProfileGroup);
-                    break;
                 case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_RIGID:
-                    addSafetyCenterStaticEntryGroup(
-                            safetyCenterOverallState,
-                            safetyCenterStaticEntryGroups,
-                            safetySourcesGroup,
-                            packageName,
-                            userProfileGroup);
+                    CachedSafetySourcesGroup cachedSafetySourcesGroup =
+                            getCachedSafetySourcesGroup(
+                                    safetySourcesGroup, packageName, userProfileGroup);
+                    safetyCenterOverallState.addEntryOverallSeverityLevel(
+                            cachedSafetySourcesGroup.mEntriesOverallSeverityLevel);
+                    if (cachedSafetySourcesGroup.mSafetyCenterEntryOrGroup != null) {
+                        safetyCenterEntryOrGroups.add(
+                                cachedSafetySourcesGroup.mSafetyCenterEntryOrGroup);
+                    }
+                    if (cachedSafetySourcesGroup.mSafetyCenterStaticEntryGroup != null) {
+                        safetyCenterStaticEntryGroups.add(
+                                cachedSafetySourcesGroup.mSafetyCenterStaticEntryGroup);
+                    }
                     break;
                 case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_HIDDEN:
                     break;
@@ -247,32 +284,81 @@ final class SafetyCenterDataFactory {
             @NonNull SafetySource safetySource,
             @UserIdInt int userId) {
         SafetySourceKey key = SafetySourceKey.of(safetySource.getId(), userId);
+        List<SafetyCenterIssueWithCategory> safetySourceIssuesWithCategories =
+                getSafetyCenterIssuesWithCategories(key, safetySource);
+
+        for (int i = 0; i < safetySourceIssuesWithCategories.size(); i++) {
+            SafetyCenterIssueWithCategory safetyCenterIssueWithCategory =
+                    safetySourceIssuesWithCategories.get(i);
+            int safetySourceIssueSeverityLevel =
+                    safetyCenterIssueWithCategory.getSafetySourceIssueSeverityLevel();
+
+            if (mSafetyCenterIssueCache.isIssueDismissed(
+                    safetyCenterIssueWithCategory.getSafetyCenterIssueKey(),
+                    safetySourceIssueSeverityLevel)) {
+                continue;
+            }
+
+            safetyCenterOverallState.addIssueOverallSeverityLevel(
+                    toSafetyCenterStatusOverallSeverityLevel(safetySourceIssueSeverityLevel));
+            safetyCenterIssuesWithCategories.add(safetyCenterIssueWithCategory);
+        }
+    }
+
+    /**
+     * Returns the {@link SafetyCenterIssueWithCategory} derived from all the issues of the {@link
+     * SafetySourceData} set for the given {@link SafetySourceKey}, including dismissed ones.
+     *
+     * <p>The result is cached until the {@link SafetySourceData} or the in-flight issue actions
+     * change.
+     */
+    @NonNull
+    private List<SafetyCenterIssueWithCategory> getSafetyCenterIssuesWithCategories(
+            @NonNull SafetySourceKey key, @NonNull SafetySource safetySource) {
         SafetySourceData safetySourceData = mSafetyCenterRepository.getSafetySourceData(key);
 
         if (safetySourceData == null) {
-            return;
+            synchronized (mCacheLock) {
+                mCachedSafetySourceIssues.remove(key);
+            }
+            return emptyList();
+        }
+
+        long actionsInFlightVersion =
+                mSafetyCenterRepository.getSafetyCenterIssueActionsInFlightVersion();
+        CachedSafetySourceIssues cachedSafetySourceIssues;
+        synchronized (mCacheLock) {
+            cachedSafetySourceIssues = mCachedSafetySourceIssues.get(key);
+        }
+        if (cachedSafetySourceIssues != null
+                && cachedSafetySourceIssues.mSafetySourceData == safetySourceData
+                && cachedSafetySourceIssues.mActionsInFlightVersion == actionsInFlightVersion) {
+            return cachedSafetySourceIssues.mSafetyCenterIssuesWithCategories;
         }
 
         List<SafetySourceIssue> safetySourceIssues = safetySourceData.getIssues();
+        List<SafetyCenterIssueWithCategory> safetyCenterIssuesWithCategories =
+                new ArrayList<>(safetySourceIssues.size());
         for (int i = 0; i < safetySourceIssues.size(); i++) {
             SafetySourceIssue safetySourceIssue = safetySourceIssues.get(i);
-            SafetyCenterIssue safetyCenterIssue =
-                    toSafetyCenterIssue(safetySourceIssue, safetySource, userId);
-
-            if (safetyCenterIssue == null) {
-                continue;
-            }
-
-            safetyCenterOverallState.addIssueOverallSeverityLevel(
-                    toSafetyCenterStatusOverallSeverityLevel(safetySourceIssue.getSeverityLevel()));
             safetyCenterIssuesWithCategories.add(
-                    SafetyCenterIssueWithCategory.create(
-                            safetyCenterIssue, safetySourceIssue.getIssueCategory()));
+                    toSafetyCenterIssueWithCategory(
+                            safetySourceIssue, safetySource, key.getUserId()));
         }
+
+        synchronized (mCacheLock) {
+            mCachedSafetySourceIssues.put(
+                    key,
+                    new CachedSafetySourceIssues(
+                            safetySourceData,
+                            actionsInFlightVersion,
+                            safetyCenterIssuesWithCategories));
+        }
+        return safetyCenterIssuesWithCategories;
     }
 
-    @Nullable
-    private SafetyCenterIssue toSafetyCenterIssue(
+    @NonNull
+    private SafetyCenterIssueWithCategory toSafetyCenterIssueWithCategory(
             @NonNull SafetySourceIssue safetySourceIssue,
             @NonNull SafetySource safetySource,
             @UserIdInt int userId) {
@@ -287,12 +373,6 @@ final class SafetyCenterDataFactory {
                         .setIssueTypeId(safetySourceIssue.getIssueTypeId())
                         .build();
 
-        if (mSafetyCenterIssueCache.isIssueDismissed(
-                safetyCenterIssueId.getSafetyCenterIssueKey(),
-                safetySourceIssue.getSeverityLevel())) {
-            return null;
-        }
-
         List<SafetySourceIssue.Action> safetySourceIssueActions = safetySourceIssue.getActions();
         List<SafetyCenterIssue.Action> safetyCenterIssueActions =
                 new ArrayList<>(safetySourceIssueActions.size());
@@ -307,16 +387,23 @@ final class SafetyCenterDataFactory {
 
         int safetyCenterIssueSeverityLevel =
                 toSafetyCenterIssueSeverityLevel(safetySourceIssue.getSeverityLevel());
-        return new SafetyCenterIssue.Builder(
-                        SafetyCenterIds.encodeToString(safetyCenterIssueId),
-                        safetySourceIssue.getTitle(),
-                        safetySourceIssue.getSummary())
-                .setSeverityLevel(safetyCenterIssueSeverityLevel)
-                .setShouldConfirmDismissal(
-                        safetyCenterIssueSeverityLevel > SafetyCenterIssue.ISSUE_SEVERITY_LEVEL_OK)
-                .setSubtitle(safetySourceIssue.getSubtitle())
-                .setActions(safetyCenterIssueActions)
-                .build();
+        SafetyCenterIssue safetyCenterIssue =
+                new SafetyCenterIssue.Builder(
+                                SafetyCenterIds.encodeToString(safetyCenterIssueId),
+                                safetySourceIssue.getTitle(),
+                                safetySourceIssue.getSummary())
+                        .setSeverityLevel(safetyCenterIssueSeverityLevel)
+                        .setShouldConfirmDismissal(
+                                safetyCenterIssueSeverityLevel
+                                        > SafetyCenterIssue.ISSUE_SEVERITY_LEVEL_OK)
+                        .setSubtitle(safetySourceIssue.getSubtitle())
+                        .setActions(safetyCenterIssueActions)
+                        .build();
+        return SafetyCenterIssueWithCategory.create(
+                safetyCenterIssue,
+                safetySourceIssue.getIssueCategory(),
+                safetyCenterIssueId.getSafetyCenterIssueKey(),
+                safetySourceIssue.getSeverityLevel());
     }
 
     @NonNull
@@ -343,6 +430,119 @@ final class SafetyCenterDataFactory {
                 .build();
     }
 
+    /**
+     * Returns the entries derived from the given {@link SafetySourcesGroup}, along with their
+     * contribution to the overall {@link SafetyCenterStatus}.
+     *
+     * <p>The result is cached and only recomputed when the {@link SafetySourceData} or errors of
+     * any safety source in the group, the {@link UserProfileGroup}, the locale or the {@link
+     * SafetyCenterFlags} used to build entries change, or when {@link #clearCache()} is called.
+     */
+    @NonNull
+    private CachedSafetySourcesGroup getCachedSafetySourcesGroup(
+            @NonNull SafetySourcesGroup safetySourcesGroup,
+            @NonNull String packageName,
+            @NonNull UserProfileGroup userProfileGroup) {
+        SafetySourcesGroupCacheKey cacheKey =
+                new SafetySourcesGroupCacheKey(
+                        safetySourcesGroup.getId(), packageName, userProfileGroup);
+        List<SafetySourceKey> safetySourceKeys =
+                getSafetySourceKeys(safetySourcesGroup, userProfileGroup);
+        Locale locale = Locale.getDefault();
+        boolean replaceLockScreenIconAction = SafetyCenterFlags.getReplaceLockScreenIconAction();
+
+        CachedSafetySourcesGroup cachedSafetySourcesGroup;
+        synchronized (mCacheLock) {
+            cachedSafetySourcesGroup = mCachedSafetySourcesGroups.get(cacheKey);
+        }
+        if (cachedSafetySourcesGroup != null
+                && cachedSafetySourcesGroup.isUpToDate(
+                        safetySourcesGroup,
+                        locale,
+                        replaceLockScreenIconAction,
+                        safetySourceKeys,
+                        mSafetyCenterRepository)) {
+            return cachedSafetySourcesGroup;
+        }
+
+        SafetyCenterOverallState safetyCenterOverallState = new SafetyCenterOverallState();
+        SafetyCenterEntryOrGroup safetyCenterEntryOrGroup = null;
+        SafetyCenterStaticEntryGroup safetyCenterStaticEntryGroup = null;
+        if (safetySourcesGroup.getType()
+                == SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_COLLAPSIBLE) {
+            List<SafetyCenterEntryOrGroup> safetyCenterEntryOrGroups = new ArrayList<>(1);
+            addSafetyCenterEntryGroup(
+                    safetyCenterOverallState,
+                    safetyCenterEntryOrGroups,
+                    safetySourcesGroup,
+                    packageName,
+                    userProfileGroup);
+            if (!safetyCenterEntryOrGroups.isEmpty()) {
+                safetyCenterEntryOrGroup = safetyCenterEntryOrGroups.get(0);
+            }
+        } else {
+            List<SafetyCenterStaticEntryGroup> safetyCenterStaticEntryGroups = new ArrayList<>(1);
+            addSafetyCenterStaticEntryGroup(
+                    safetyCenterOverallState,
+                    safetyCenterStaticEntryGroups,
+                    safetySourcesGroup,
+                    packageName,
+                    userProfileGroup);
+            if (!safetyCenterStaticEntryGroups.isEmpty()) {
+                safetyCenterStaticEntryGroup = safetyCenterStaticEntryGroups.get(0);
+            }
+        }
+
+        cachedSafetySourcesGroup =
+                new CachedSafetySourcesGroup(
+                        safetySourcesGroup,
+                        locale,
+                        replaceLockScreenIconAction,
+                        safetySourceKeys,
+                        mSafetyCenterRepository,
+                        safetyCenterOverallState.getEntriesOverallSeverityLevel(),
+                        safetyCenterEntryOrGroup,
+                        safetyCenterStaticEntryGroup);
+        synchronized (mCacheLock) {
+            if (mCachedSafetySourcesGroups.size() >= MAX_CACHED_SAFETY_SOURCES_GROUPS
+                    && !mCachedSafetySourcesGroups.containsKey(cacheKey)) {
+                mCachedSafetySourcesGroups.clear();
+            }
+            mCachedSafetySourcesGroups.put(cacheKey, cachedSafetySourcesGroup);
+        }
+        return cachedSafetySourcesGroup;
+    }
+
+    /**
+     * Returns the {@link SafetySourceKey}s of all the safety sources in the given {@link
+     * SafetySourcesGroup} whose entries are shown for the given {@link UserProfileGroup}.
+     */
+    @NonNull
+    private static List<SafetySourceKey> getSafetySourceKeys(
+            @NonNull SafetySourcesGroup safetySourcesGroup,
+            @NonNull UserProfileGroup userProfileGroup) {
+        List<SafetySource> safetySources = safetySourcesGroup.getSafetySources();
+        int[] managedProfilesUserIds = userProfileGroup.getManagedProfilesUserIds();
+        List<SafetySourceKey> safetySourceKeys = new ArrayList<>(safetySources.size());
+        for (int i = 0; i < safetySources.size(); i++) {
+            SafetySource safetySource = safetySources.get(i);
+
+            safetySourceKeys.add(
+                    SafetySourceKey.of(
+                            safetySource.getId(), userProfileGroup.getProfileParentUserId()));
+
+            if (!SafetySources.supportsManagedProfiles(safetySource)) {
+                continue;
+            }
+
+            for (int j = 0; j < managedProfilesUserIds.length; j++) {
+                safetySourceKeys.add(
+                        SafetySourceKey.of(safetySource.getId(), managedProfilesUserIds[j]));
+            }
+        }
+        return safetySourceKeys;
+    }
+
     private void addSafetyCenterEntryGroup(
             @NonNull SafetyCenterOverallState safetyCenterOverallState,
             @NonNull List<SafetyCenterEntryOrGroup> safetyCenterEntryOrGroups,
@@ -1142,16 +1342,26 @@ final class SafetyCenterDataFactory {
         return SafetySourceKey.of(id.getSafetySourceId(), id.getUserId());
     }
 
-    /** Wrapper that encapsulates both {@link SafetyCenterIssue} and its category. */
+    /**
+     * Wrapper that encapsulates both {@link SafetyCenterIssue} and its category, along with the
+     * {@link SafetyCenterIssueKey} and severity level of the {@link SafetySourceIssue} it was
+     * derived from.
+     */
     private static final class SafetyCenterIssueWithCategory {
         @NonNull private final SafetyCenterIssue mSafetyCenterIssue;
         @SafetySourceIssue.IssueCategory private final int mSafetyCenterIssueCategory;
+        @NonNull private final SafetyCenterIssueKey mSafetyCenterIssueKey;
+        @SafetySourceData.SeverityLevel private final int mSafetySourceIssueSeverityLevel;
 
         private SafetyCenterIssueWithCategory(
                 @NonNull SafetyCenterIssue safetyCenterIssue,
-                @SafetySourceIssue.IssueCategory int safetyCenterIssueCategory) {
+                @SafetySourceIssue.IssueCategory int safetyCenterIssueCategory,
+                @NonNull SafetyCenterIssueKey safetyCenterIssueKey,
+                @SafetySourceData.SeverityLevel int safetySourceIssueSeverityLevel) {
             this.mSafetyCenterIssue = safetyCenterIssue;
             this.mSafetyCenterIssueCategory = safetyCenterIssueCategory;
+            this.mSafetyCenterIssueKey = safetyCenterIssueKey;
+            this.mSafetySourceIssueSeverityLevel = safetySourceIssueSeverityLevel;
         }
 
         @NonNull
@@ -1164,10 +1374,145 @@ final class SafetyCenterDataFactory {
             return mSafetyCenterIssueCategory;
         }
 
+        @NonNull
+        private SafetyCenterIssueKey getSafetyCenterIssueKey() {
+            return mSafetyCenterIssueKey;
+        }
+
+        @SafetySourceData.SeverityLevel
+        private int getSafetySourceIssueSeverityLevel() {
+            return mSafetySourceIssueSeverityLevel;
+        }
+
         private static SafetyCenterIssueWithCategory create(
                 @NonNull SafetyCenterIssue safetyCenterIssue,
-                @SafetySourceIssue.IssueCategory int safetyCenterIssueCategory) {
-            return new SafetyCenterIssueWithCategory(safetyCenterIssue, safetyCenterIssueCategory);
+                @SafetySourceIssue.IssueCategory int safetyCenterIssueCategory,
+                @NonNull SafetyCenterIssueKey safetyCenterIssueKey,
+                @SafetySourceData.SeverityLevel int safetySourceIssueSeverityLevel) {
+            return new SafetyCenterIssueWithCategory(
+                    safetyCenterIssue,
+                    safetyCenterIssueCategory,
+                    safetyCenterIssueKey,
+                    safetySourceIssueSeverityLevel);
+        }
+    }
+
+    /**
+     * The {@link SafetyCenterIssueWithCategory} derived from a given {@link SafetySourceData}, and
+     * the version of the in-flight issue actions they were derived with.
+     */
+    private static final class CachedSafetySourceIssues {
+        @NonNull private final SafetySourceData mSafetySourceData;
+        private final long mActionsInFlightVersion;
+        @NonNull private final List<SafetyCenterIssueWithCategory> mSafetyCenterIssuesWithCategories;
+
+        private CachedSafetySourceIssues(
+                @NonNull SafetySourceData safetySourceData,
+                long actionsInFlightVersion,
+                @NonNull List<SafetyCenterIssueWithCategory> safetyCenterIssuesWithCategories) {
+            mSafetySourceData = safetySourceData;
+            mActionsInFlightVersion = actionsInFlightVersion;
+            mSafetyCenterIssuesWithCategories = safetyCenterIssuesWithCategories;
+        }
+    }
+
+    /** The key used to cache the entries derived from a {@link SafetySourcesGroup}. */
+    private static final class SafetySourcesGroupCacheKey {
+        @NonNull private final String mSafetySourcesGroupId;
+        @NonNull private final String mPackageName;
+        @NonNull private final UserProfileGroup mUserProfileGroup;
+
+        private SafetySourcesGroupCacheKey(
+                @NonNull String safetySourcesGroupId,
+                @NonNull String packageName,
+                @NonNull UserProfileGroup userProfileGroup) {
+            mSafetySourcesGroupId = safetySourcesGroupId;
+            mPackageName = packageName;
+            mUserProfileGroup = userProfileGroup;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SafetySourcesGroupCacheKey)) return false;
+            SafetySourcesGroupCacheKey that = (SafetySourcesGroupCacheKey) o;
+            return mSafetySourcesGroupId.equals(that.mSafetySourcesGroupId)
+                    && mPackageName.equals(that.mPackageName)
+                    && mUserProfileGroup.equals(that.mUserProfileGroup);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mSafetySourcesGroupId, mPackageName, mUserProfileGroup);
+        }
+    }
+
+    /**
+     * The entries derived from a {@link SafetySourcesGroup}, along with the inputs they were
+     * derived from.
+     */
+    private static final class CachedSafetySourcesGroup {
+        @NonNull private final SafetySourcesGroup mSafetySourcesGroup;
+        @NonNull private final Locale mLocale;
+        private final boolean mReplaceLockScreenIconAction;
+        @NonNull private final List<SafetySourceKey> mSafetySourceKeys;
+        @NonNull private final SafetySourceData[] mSafetySourceData;
+        @NonNull private final boolean[] mSafetySourceErrors;
+
+        @SafetyCenterStatus.OverallSeverityLevel private final int mEntriesOverallSeverityLevel;
+        @Nullable private final SafetyCenterEntryOrGroup mSafetyCenterEntryOrGroup;
+        @Nullable private final SafetyCenterStaticEntryGroup mSafetyCenterStaticEntryGroup;
+
+        private CachedSafetySourcesGroup(
+                @NonNull SafetySourcesGroup safetySourcesGroup,
+                @NonNull Locale locale,
+                boolean replaceLockScreenIconAction,
+                @NonNull List<SafetySourceKey> safetySourceKeys,
+                @NonNull SafetyCenterRepository safetyCenterRepository,
+                @SafetyCenterStatus.OverallSeverityLevel int entriesOverallSeverityLevel,
+                @Nullable SafetyCenterEntryOrGroup safetyCenterEntryOrGroup,
+                @Nullable SafetyCenterStaticEntryGroup safetyCenterStaticEntryGroup) {
+            mSafetySourcesGroup = safetySourcesGroup;
+            mLocale = locale;
+            mReplaceLockScreenIconAction = replaceLockScreenIconAction;
+            mSafetySourceKeys = safetySourceKeys;
+            mSafetySourceData = new SafetySourceData[safetySourceKeys.size()];
+            mSafetySourceErrors = new boolean[safetySourceKeys.size()];
+            for (int i = 0; i < safetySourceKeys.size(); i++) {
+                SafetySourceKey key = safetySourceKeys.get(i);
+                mSafetySourceData[i] = safetyCenterRepository.getSafetySourceData(key);
+                mSafetySourceErrors[i] = safetyCenterRepository.sourceHasError(key);
+            }
+            mEntriesOverallSeverityLevel = entriesOverallSeverityLevel;
+            mSafetyCenterEntryOrGroup = safetyCenterEntryOrGroup;
+            mSafetyCenterStaticEntryGroup = safetyCenterStaticEntryGroup;
+        }
+
+        /**
+         * Returns whether the cached entries were derived from the same inputs as the ones
+         * currently available.
+         */
+        private boolean isUpToDate(
+                @NonNull SafetySourcesGroup safetySourcesGroup,
+                @NonNull Locale locale,
+                boolean replaceLockScreenIconAction,
+                @NonNull List<SafetySourceKey> safetySourceKeys,
+                @NonNull SafetyCenterRepository safetyCenterRepository) {
+            if (mSafetySourcesGroup != safetySourcesGroup
+                    || !mLocale.equals(locale)
+                    || mReplaceLockScreenIconAction != replaceLockScreenIconAction
+                    || !mSafetySourceKeys.equals(safetySourceKeys)) {
+                return false;
+            }
+            for (int i = 0; i < safetySourceKeys.size(); i++) {
+                SafetySourceKey key = safetySourceKeys.get(i);
+                // SafetySourceData is immutable and replaced whenever it changes.
+                if (mSafetySourceData[i] != safetyCenterRepository.getSafetySourceData(key)
+                        || mSafetySourceErrors[i] != safetyCenterRepository.sourceHasError(key)) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -1251,6 +1596,14 @@ final class SafetyCenterDataFactory {
             return mIssuesOverallSeverityLevel;
         }
 
+        /**
+         * Returns the {@link SafetyCenterStatus.OverallSeverityLevel} computed from entries only.
+         */
+        @SafetyCenterStatus.OverallSeverityLevel
+        private int getEntriesOverallSeverityLevel() {
+            return mEntriesOverallSeverityLevel;
+        }
+
         /**
          * Returns whether there are settings to review (i.e. at least one entry has a more severe
          * status than the overall status, or if any entry is not yet known / has errored-out).
@@ -23,17 +23,31 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.os.Binder;
 import android.provider.DeviceConfig;
+import android.provider.DeviceConfig.OnPropertiesChangedListener;
 import android.safetycenter.SafetySourceData;
 import android.safetycenter.SafetySourceIssue;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import androidx.annotation.RequiresApi;
 
 import java.io.PrintWriter;
 import java.time.Duration;
+import java.util.function.Function;
 
-/** A class to access the Safety Center {@link DeviceConfig} flags. */
+/**
+ * A class to access the Safety Center {@link DeviceConfig} flags.
+ *
+ * <p>Once {@link #init()} is called, flags are served from a copy of the {@link
+ * DeviceConfig#NAMESPACE_PRIVACY} properties, which is refreshed by a {@link
+ * OnPropertiesChangedListener} whenever any of them changes. As {@link DeviceConfig} notifies
+ * listeners asynchronously, a change may take a moment to be visible through this class. Before
+ * {@link #init()} is called, flags are read from {@link DeviceConfig} directly.
+ *
+ * <p>The flags holding mappings are only parsed again when their value changes.
+ */
 @RequiresApi(TIRAMISU)
 final class SafetyCenterFlags {
 
@@ -74,6 +88,9 @@ final class SafetyCenterFlags {
     private static final String PROPERTY_ALLOW_STATSD_LOGGING_IN_TESTS =
             "safety_center_allow_statsd_logging_in_tests";
 
+    private static final String PROPERTY_LISTENER_UPDATE_COALESCING_WINDOW_MILLIS =
+            "safety_center_listener_update_coalescing_window_millis";
+
     private static final Duration REFRESH_SOURCES_TIMEOUT_DEFAULT_DURATION = Duration.ofSeconds(15);
 
     private static final Duration RESOLVING_ACTION_TIMEOUT_DEFAULT_DURATION =
@@ -85,6 +102,61 @@ final class SafetyCenterFlags {
 
     private static final Duration RESURFACE_ISSUE_DEFAULT_DELAY = Duration.ofDays(180);
 
+    private static final Duration LISTENER_UPDATE_COALESCING_WINDOW_DEFAULT_DURATION =
+            Duration.ofMillis(100);
+
+    @NonNull private static final Object sLock = new Object();
+
+    // Only written while holding sLock, so that a newer copy is never overwritten by an older one.
+    @Nullable private static volatile DeviceConfig.Properties sProperties;
+
+    @NonNull
+    private static final ParsedFlag<SparseLongArray> sRefreshSourcesTimeoutsMillis =
+            new ParsedFlag<>(SafetyCenterFlags::parseLongMapping);
+
+    @NonNull
+    private static final ParsedFlag<SparseLongArray> sResurfaceIssueMaxCounts =
+            new ParsedFlag<>(SafetyCenterFlags::parseLongMapping);
+
+    @NonNull
+    private static final ParsedFlag<SparseLongArray> sResurfaceIssueDelaysMillis =
+            new ParsedFlag<>(SafetyCenterFlags::parseLongMapping);
+
+    @NonNull
+    private static final ParsedFlag<SparseArray<ArraySet<String>>> sIssueCategoryAllowlists =
+            new ParsedFlag<>(SafetyCenterFlags::parseStringSetMapping);
+
+    /**
+     * Starts serving the flags from a copy of the {@link DeviceConfig#NAMESPACE_PRIVACY} properties,
+     * and keeps that copy up to date.
+     *
+     * <p>This should only be called once.
+     */
+    static void init() {
+        // The listener is registered before reading the properties, so that no change is missed.
+        DeviceConfig.addOnPropertiesChangedListener(
+                DeviceConfig.NAMESPACE_PRIVACY,
+                Runnable::run,
+                properties -> refreshProperties());
+        refreshProperties();
+    }
+
+    /**
+     * Reads the {@link DeviceConfig#NAMESPACE_PRIVACY} properties again, for callers that are
+     * notified of a change and need it to be visible through this class right away.
+     */
+    static void refreshProperties() {
+        synchronized (sLock) {
+            // This call requires the READ_DEVICE_CONFIG permission.
+            final long callingId = Binder.clearCallingIdentity();
+            try {
+                sProperties = DeviceConfig.getProperties(DeviceConfig.NAMESPACE_PRIVACY);
+            } finally {
+                Binder.restoreCallingIdentity(callingId);
+            }
+        }
+    }
+
     /** Dumps state for debugging purposes. */
     static void dump(@NonNull PrintWriter fout) {
         fout.println("FLAGS");
@@ -104,6 +176,10 @@ final class SafetyCenterFlags {
                 fout, PROPERTY_REFRESH_SOURCES_TIMEOUTS_MILLIS, getRefreshSourcesTimeoutsMillis());
         printFlag(fout, PROPERTY_ISSUE_CATEGORY_ALLOWLISTS, getIssueCategoryAllowlists());
         printFlag(fout, PROPERTY_ALLOW_STATSD_LOGGING_IN_TESTS, getAllowStatsdLoggingInTests());
+        printFlag(
+                fout,
+                PROPERTY_LISTENER_UPDATE_COALESCING_WINDOW_MILLIS,
+                getListenerUpdateCoalescingWindow());
         fout.println();
     }
 
@@ -178,10 +254,11 @@ final class SafetyCenterFlags {
      * reason for the refresh.
      */
     static Duration getRefreshSourcesTimeout(@RefreshReason int refreshReason) {
-        String refreshSourcesTimeouts = getRefreshSourcesTimeoutsMillis();
-        Long timeout = getLongValueFromStringMapping(refreshSourcesTimeouts, refreshReason);
-        if (timeout != null) {
-            return Duration.ofMillis(timeout);
+        SparseLongArray refreshSourcesTimeoutsMillis =
+                sRefreshSourcesTimeoutsMillis.get(getRefreshSourcesTimeoutsMillis());
+        int index = refreshSourcesTimeoutsMillis.indexOfKey(refreshReason);
+        if (index >= 0) {
+            return Duration.ofMillis(refreshSourcesTimeoutsMillis.valueAt(index));
         }
         return REFRESH_SOURCES_TIMEOUT_DEFAULT_DURATION;
     }
@@ -201,12 +278,9 @@ final class SafetyCenterFlags {
      * should be resurfaced.
      */
     static long getResurfaceIssueMaxCount(@SafetySourceData.SeverityLevel int severityLevel) {
-        String maxCountsConfigString = getResurfaceIssueMaxCounts();
-        Long maxCount = getLongValueFromStringMapping(maxCountsConfigString, severityLevel);
-        if (maxCount != null) {
-            return maxCount;
-        }
-        return RESURFACE_ISSUE_DEFAULT_MAX_COUNT;
+        return sResurfaceIssueMaxCounts
+                .get(getResurfaceIssueMaxCounts())
+                .get(severityLevel, RESURFACE_ISSUE_DEFAULT_MAX_COUNT);
     }
 
     /**
@@ -227,10 +301,11 @@ final class SafetyCenterFlags {
      */
     @NonNull
     static Duration getResurfaceIssueDelay(@SafetySourceData.SeverityLevel int severityLevel) {
-        String delaysConfigString = getResurfaceIssueDelaysMillis();
-        Long delayMillis = getLongValueFromStringMapping(delaysConfigString, severityLevel);
-        if (delayMillis != null) {
-            return Duration.ofMillis(delayMillis);
+        SparseLongArray resurfaceIssueDelaysMillis =
+                sResurfaceIssueDelaysMillis.get(getResurfaceIssueDelaysMillis());
+        int index = resurfaceIssueDelaysMillis.indexOfKey(severityLevel);
+        if (index >= 0) {
+            return Duration.ofMillis(resurfaceIssueDelaysMillis.valueAt(index));
         }
         return RESURFACE_ISSUE_DEFAULT_DELAY;
     }
@@ -254,19 +329,12 @@ final class SafetyCenterFlags {
     @NonNull
     static boolean isIssueCategoryAllowedForSource(
             @SafetySourceIssue.IssueCategory int issueCategory, @NonNull String safetySourceId) {
-        String issueCategoryAllowlists = getIssueCategoryAllowlists();
-        String allowlistString =
-                getStringValueFromStringMapping(issueCategoryAllowlists, issueCategory);
-        if (allowlistString == null) {
+        ArraySet<String> allowlist =
+                sIssueCategoryAllowlists.get(getIssueCategoryAllowlists()).get(issueCategory);
+        if (allowlist == null) {
             return true;
         }
-        String[] allowlistArray = allowlistString.split("\\|");
-        for (int i = 0; i < allowlistArray.length; i++) {
-            if (allowlistArray[i].equals(safetySourceId)) {
-                return true;
-            }
-        }
-        return false;
+        return allowlist.contains(safetySourceId);
     }
 
     /**
@@ -284,12 +352,28 @@ final class SafetyCenterFlags {
         return getBoolean(PROPERTY_ALLOW_STATSD_LOGGING_IN_TESTS, false);
     }
 
+    /**
+     * Returns the time during which updates received from safety sources while a refresh is in
+     * progress are coalesced into a single update delivered to Safety Center listeners.
+     *
+     * <p>A zero or negative duration disables coalescing.
+     */
+    static Duration getListenerUpdateCoalescingWindow() {
+        return getDuration(
+                PROPERTY_LISTENER_UPDATE_COALESCING_WINDOW_MILLIS,
+                LISTENER_UPDATE_COALESCING_WINDOW_DEFAULT_DURATION);
+    }
+
     @NonNull
     private static Duration getDuration(@NonNull String property, @NonNull Duration defaultValue) {
         return Duration.ofMillis(getLong(property, defaultValue.toMillis()));
     }
 
     private static boolean getBoolean(@NonNull String property, boolean defaultValue) {
+        DeviceConfig.Properties properties = sProperties;
+        if (properties != null) {
+            return properties.getBoolean(property, defaultValue);
+        }
         // This call requires the READ_DEVICE_CONFIG permission.
         final long callingId = Binder.clearCallingIdentity();
         try {
@@ -300,6 +384,10 @@ final class SafetyCenterFlags {
     }
 
     private static long getLong(@NonNull String property, long defaultValue) {
+        DeviceConfig.Properties properties = sProperties;
+        if (properties != null) {
+            return properties.getLong(property, defaultValue);
+        }
         // This call requires the READ_DEVICE_CONFIG permission.
         final long callingId = Binder.clearCallingIdentity();
         try {
@@ -316,6 +404,10 @@ final class SafetyCenterFlags {
 
     @NonNull
     private static String getString(@NonNull String property, @NonNull String defaultValue) {
+        DeviceConfig.Properties properties = sProperties;
+        if (properties != null) {
+            return properties.getString(property, defaultValue);
+        }
         // This call requires the READ_DEVICE_CONFIG permission.
         final long callingId = Binder.clearCallingIdentity();
         try {
@@ -326,41 +418,50 @@ final class SafetyCenterFlags {
     }
 
     /**
-     * Gets a long value for the provided integer key in a comma separated list of colon separated
-     * pairs of integers and longs.
+     * Parses a comma separated list of colon separated pairs of integers and longs into a {@link
+     * SparseLongArray}.
      */
-    @Nullable
-    private static Long getLongValueFromStringMapping(@NonNull String config, int key) {
-        String valueString = getStringValueFromStringMapping(config, key);
-        if (valueString == null) {
-            return null;
-        }
-        try {
-            return Long.parseLong(valueString);
-        } catch (NumberFormatException e) {
-            Log.w(TAG, "Badly formatted string config: " + config, e);
-            return null;
+    @NonNull
+    private static SparseLongArray parseLongMapping(@NonNull String config) {
+        SparseArray<String> stringMapping = parseStringMapping(config);
+        SparseLongArray longMapping = new SparseLongArray(stringMapping.size());
+        for (int i = 0; i < stringMapping.size(); i++) {
+            try {
+                longMapping.put(stringMapping.keyAt(i), Long.parseLong(stringMapping.valueAt(i)));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Badly formatted string config: " + config, e);
+            }
         }
+        return longMapping;
     }
 
     /**
-     * Gets a value for the provided integer key in a comma separated list of colon separated pairs
-     * of integers and strings.
+     * Parses a comma separated list of colon separated pairs of integers and vertical-bar-delimited
+     * lists of strings into a {@link SparseArray} of {@link ArraySet}.
      */
-    @Nullable
-    private static String getStringValueFromStringMapping(@NonNull String config, int key) {
-        return getStringValueFromStringMapping(config, Integer.toString(key));
+    @NonNull
+    private static SparseArray<ArraySet<String>> parseStringSetMapping(@NonNull String config) {
+        SparseArray<String> stringMapping = parseStringMapping(config);
+        SparseArray<ArraySet<String>> stringSetMapping = new SparseArray<>(stringMapping.size());
+        for (int i = 0; i < stringMapping.size(); i++) {
+            stringSetMapping.put(
+                    stringMapping.keyAt(i),
+                    new ArraySet<>(stringMapping.valueAt(i).split("\\|")));
+        }
+        return stringSetMapping;
     }
 
     /**
-     * Gets a value for the provided key in a comma separated list of colon separated key-value
-     * string pairs.
+     * Parses a comma separated list of colon separated pairs of integers and strings into a {@link
+     * SparseArray}.
+     *
+     * <p>If a key is present more than once, only its first value is kept.
      */
-    @Nullable
-    private static String getStringValueFromStringMapping(
-            @NonNull String config, @NonNull String key) {
+    @NonNull
+    private static SparseArray<String> parseStringMapping(@NonNull String config) {
+        SparseArray<String> mapping = new SparseArray<>();
         if (config.isEmpty()) {
-            return null;
+            return mapping;
         }
         String[] pairsList = config.split(",");
         for (int i = 0; i < pairsList.length; i++) {
@@ -369,11 +470,58 @@ final class SafetyCenterFlags {
                 Log.w(TAG, "Badly formatted string config: " + config);
                 continue;
             }
-            if (pair[0].equals(key)) {
-                return pair[1];
+            int key;
+            try {
+                key = Integer.parseInt(pair[0]);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Badly formatted string config: " + config, e);
+                continue;
+            }
+            if (mapping.indexOfKey(key) < 0) {
+                mapping.put(key, pair[1]);
             }
         }
-        return null;
+        return mapping;
+    }
+
+    /**
+     * The parsed value of a string flag, which is only parsed again when the string changes.
+     *
+     * <p>The string and its parsed value are published together, so concurrent callers at worst
+     * parse the same string twice, and never see a parsed value for another string.
+     */
+    private static final class ParsedFlag<T> {
+
+        @NonNull private final Function<String, T> mParser;
+
+        @Nullable private volatile Parsed<T> mParsed;
+
+        private ParsedFlag(@NonNull Function<String, T> parser) {
+            mParser = parser;
+        }
+
+        /** Returns the parsed value of the given string, which must not be modified. */
+        @NonNull
+        private T get(@NonNull String value) {
+            Parsed<T> parsed = mParsed;
+            if (parsed == null || !parsed.mValue.equals(value)) {
+                parsed = new Parsed<>(value, mParser.apply(value));
+                mParsed = parsed;
+            }
+            return parsed.mParsedValue;
+        }
+    }
+
+    /** A string flag value along with its parsed value. */
+    private static final class Parsed<T> {
+
+        @NonNull private final String mValue;
+        @NonNull private final T mParsedValue;
+
+        private Parsed(@NonNull String value, @NonNull T parsedValue) {
+            mValue = value;
+            mParsedValue = parsedValue;
+        }
     }
 
     private SafetyCenterFlags() {}
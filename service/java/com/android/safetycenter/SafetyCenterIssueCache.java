@@ -24,12 +24,15 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.safetycenter.SafetySourceData;
+import android.safetycenter.config.SafetyCenterConfig;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.safetycenter.internaldata.SafetyCenterIds;
 import com.android.safetycenter.internaldata.SafetyCenterIssueKey;
 import com.android.safetycenter.persistence.PersistedSafetyCenterIssue;
@@ -39,7 +42,6 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -51,7 +53,9 @@ import javax.annotation.concurrent.NotThreadSafe;
  * #load(List)} and {@link #snapshot()} methods. When {@link #isDirty()} returns {@code true} that
  * means that the contents of the cache may have changed since the last load or snapshot occurred.
  *
- * <p>This class isn't thread safe. Thread safety must be handled by the caller.
+ * <p>This class isn't thread safe. Thread safety must be handled by the caller. However, {@link
+ * #countActiveIssues} and {@link #isIssueDismissed} may be called concurrently by multiple readers,
+ * as long as no other method modifying the cache is called at the same time.
  */
 @RequiresApi(TIRAMISU)
 @NotThreadSafe
@@ -62,6 +66,24 @@ final class SafetyCenterIssueCache {
     @NonNull private final SafetyCenterConfigReader mSafetyCenterConfigReader;
 
     private final ArrayMap<SafetyCenterIssueKey, IssueData> mIssues = new ArrayMap<>();
+
+    /** An index of the keys in {@link #mIssues} by safety source and user. */
+    private final ArrayMap<SafetySourceKey, ArraySet<SafetyCenterIssueKey>> mIssueKeysForSource =
+            new ArrayMap<>();
+
+    @NonNull private final Object mActiveIssueCountsLock = new Object();
+
+    /**
+     * The number of issues from active sources for each user id, computed lazily for the {@link
+     * SafetyCenterConfig} in {@link #mActiveIssueCountsConfig}.
+     */
+    @GuardedBy("mActiveIssueCountsLock")
+    private final SparseIntArray mActiveIssueCountsForUser = new SparseIntArray();
+
+    @GuardedBy("mActiveIssueCountsLock")
+    @Nullable
+    private SafetyCenterConfig mActiveIssueCountsConfig;
+
     private boolean mIsDirty = false;
 
     SafetyCenterIssueCache(@NonNull SafetyCenterConfigReader safetyCenterConfigReader) {
@@ -73,14 +95,39 @@ final class SafetyCenterIssueCache {
      * given {@link UserProfileGroup}.
      */
     int countActiveIssues(@NonNull UserProfileGroup userProfileGroup) {
+        SafetyCenterConfig safetyCenterConfig = mSafetyCenterConfigReader.getSafetyCenterConfig();
+        synchronized (mActiveIssueCountsLock) {
+            if (safetyCenterConfig != mActiveIssueCountsConfig) {
+                mActiveIssueCountsForUser.clear();
+                mActiveIssueCountsConfig = safetyCenterConfig;
+            }
+
+            int issueCount = countActiveIssuesForUser(userProfileGroup.getProfileParentUserId());
+            int[] managedProfilesUserIds = userProfileGroup.getManagedProfilesUserIds();
+            for (int i = 0; i < managedProfilesUserIds.length; i++) {
+                issueCount += countActiveIssuesForUser(managedProfilesUserIds[i]);
+            }
+            return issueCount;
+        }
+    }
+
+    @GuardedBy("mActiveIssueCountsLock")
+    private int countActiveIssuesForUser(@UserIdInt int userId) {
+        int index = mActiveIssueCountsForUser.indexOfKey(userId);
+        if (index >= 0) {
+            return mActiveIssueCountsForUser.valueAt(index);
+        }
+
         int issueCount = 0;
-        for (int i = 0; i < mIssues.size(); i++) {
-            SafetyCenterIssueKey issueKey = mIssues.keyAt(i);
-            if (mSafetyCenterConfigReader.isExternalSafetySourceActive(issueKey.getSafetySourceId())
-                    && userProfileGroup.contains(issueKey.getUserId())) {
-                issueCount++;
+        for (int i = 0; i < mIssueKeysForSource.size(); i++) {
+            SafetySourceKey safetySourceKey = mIssueKeysForSource.keyAt(i);
+            if (safetySourceKey.getUserId() == userId
+                    && mSafetyCenterConfigReader.isExternalSafetySourceActive(
+                            safetySourceKey.getSourceId())) {
+                issueCount += mIssueKeysForSource.valueAt(i).size();
             }
         }
+        mActiveIssueCountsForUser.put(userId, issueCount);
         return issueCount;
     }
 
@@ -148,21 +195,19 @@ final class SafetyCenterIssueCache {
             @NonNull ArraySet<String> safetySourceIssueIds,
             @NonNull String safetySourceId,
             @UserIdInt int userId) {
+        ArraySet<SafetyCenterIssueKey> issueKeysForSource =
+                mIssueKeysForSource.get(SafetySourceKey.of(safetySourceId, userId));
         // Remove issues no longer reported by the source.
-        // Loop in reverse index order to be able to remove entries while iterating.
-        for (int i = mIssues.size() - 1; i >= 0; i--) {
-            SafetyCenterIssueKey issueKey = mIssues.keyAt(i);
-            boolean doesNotBelongToUserOrSource =
-                    issueKey.getUserId() != userId
-                            || !Objects.equals(issueKey.getSafetySourceId(), safetySourceId);
-            if (doesNotBelongToUserOrSource) {
-                continue;
-            }
-            boolean isIssueNoLongerReported =
-                    !safetySourceIssueIds.contains(issueKey.getSafetySourceIssueId());
-            if (isIssueNoLongerReported) {
-                mIssues.removeAt(i);
-                mIsDirty = true;
+        if (issueKeysForSource != null) {
+            // Loop in reverse index order to be able to remove entries while iterating.
+            for (int i = issueKeysForSource.size() - 1; i >= 0; i--) {
+                SafetyCenterIssueKey issueKey = issueKeysForSource.valueAt(i);
+                boolean isIssueNoLongerReported =
+                        !safetySourceIssueIds.contains(issueKey.getSafetySourceIssueId());
+                if (isIssueNoLongerReported) {
+                    removeIssue(issueKey);
+                    mIsDirty = true;
+                }
             }
         }
         // Add newly reported issues.
@@ -175,7 +220,7 @@ final class SafetyCenterIssueCache {
                             .build();
             boolean isIssueNewlyReported = !mIssues.containsKey(issueKey);
             if (isIssueNewlyReported) {
-                mIssues.put(issueKey, new IssueData(Instant.now()));
+                putIssue(issueKey, new IssueData(Instant.now()));
                 mIsDirty = true;
             }
         }
@@ -212,7 +257,7 @@ final class SafetyCenterIssueCache {
      * <p>This method may change the value reported by {@link #isDirty} to {@code true}.
      */
     void load(@NonNull List<PersistedSafetyCenterIssue> persistedSafetyCenterIssues) {
-        mIssues.clear();
+        clearIssues();
         for (int i = 0; i < persistedSafetyCenterIssues.size(); i++) {
             PersistedSafetyCenterIssue persistedIssue = persistedSafetyCenterIssues.get(i);
             SafetyCenterIssueKey key = SafetyCenterIds.issueKeyFromString(persistedIssue.getKey());
@@ -226,7 +271,7 @@ final class SafetyCenterIssueCache {
             }
 
             IssueData issueData = IssueData.fromPersistedIssue(persistedIssue);
-            mIssues.put(key, issueData);
+            putIssue(key, issueData);
         }
     }
 
@@ -236,7 +281,7 @@ final class SafetyCenterIssueCache {
      * <p>This method will change the value reported by {@link #isDirty} to {@code true}.
      */
     void clear() {
-        mIssues.clear();
+        clearIssues();
         mIsDirty = true;
     }
 
@@ -247,12 +292,18 @@ final class SafetyCenterIssueCache {
      */
     void clearForUser(@UserIdInt int userId) {
         // Loop in reverse index order to be able to remove entries while iterating.
-        for (int i = mIssues.size() - 1; i >= 0; i--) {
-            SafetyCenterIssueKey issueKey = mIssues.keyAt(i);
-            if (issueKey.getUserId() == userId) {
-                mIssues.removeAt(i);
-                mIsDirty = true;
+        for (int i = mIssueKeysForSource.size() - 1; i >= 0; i--) {
+            if (mIssueKeysForSource.keyAt(i).getUserId() != userId) {
+                continue;
             }
+            ArraySet<SafetyCenterIssueKey> issueKeysForSource = mIssueKeysForSource.removeAt(i);
+            for (int j = 0; j < issueKeysForSource.size(); j++) {
+                mIssues.remove(issueKeysForSource.valueAt(j));
+            }
+            mIsDirty = true;
+        }
+        synchronized (mActiveIssueCountsLock) {
+            mActiveIssueCountsForUser.delete(userId);
         }
     }
 
@@ -268,6 +319,50 @@ final class SafetyCenterIssueCache {
         fout.println();
     }
 
+    private void putIssue(@NonNull SafetyCenterIssueKey issueKey, @NonNull IssueData issueData) {
+        mIssues.put(issueKey, issueData);
+        SafetySourceKey safetySourceKey = toSafetySourceKey(issueKey);
+        ArraySet<SafetyCenterIssueKey> issueKeysForSource =
+                mIssueKeysForSource.get(safetySourceKey);
+        if (issueKeysForSource == null) {
+            issueKeysForSource = new ArraySet<>();
+            mIssueKeysForSource.put(safetySourceKey, issueKeysForSource);
+        }
+        issueKeysForSource.add(issueKey);
+        synchronized (mActiveIssueCountsLock) {
+            mActiveIssueCountsForUser.delete(issueKey.getUserId());
+        }
+    }
+
+    private void removeIssue(@NonNull SafetyCenterIssueKey issueKey) {
+        mIssues.remove(issueKey);
+        SafetySourceKey safetySourceKey = toSafetySourceKey(issueKey);
+        ArraySet<SafetyCenterIssueKey> issueKeysForSource =
+                mIssueKeysForSource.get(safetySourceKey);
+        if (issueKeysForSource != null) {
+            issueKeysForSource.remove(issueKey);
+            if (issueKeysForSource.isEmpty()) {
+                mIssueKeysForSource.remove(safetySourceKey);
+            }
+        }
+        synchronized (mActiveIssueCountsLock) {
+            mActiveIssueCountsForUser.delete(issueKey.getUserId());
+        }
+    }
+
+    private void clearIssues() {
+        mIssues.clear();
+        mIssueKeysForSource.clear();
+        synchronized (mActiveIssueCountsLock) {
+            mActiveIssueCountsForUser.clear();
+        }
+    }
+
+    @NonNull
+    private static SafetySourceKey toSafetySourceKey(@NonNull SafetyCenterIssueKey issueKey) {
+        return SafetySourceKey.of(issueKey.getSafetySourceId(), issueKey.getUserId());
+    }
+
     @Nullable
     private IssueData getOrWarn(@NonNull SafetyCenterIssueKey issueKey, @NonNull String reason) {
         IssueData issueData = mIssues.get(issueKey);
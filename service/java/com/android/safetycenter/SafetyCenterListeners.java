@@ -21,6 +21,7 @@ import static android.os.Build.VERSION_CODES.TIRAMISU;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.UserIdInt;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
@@ -33,9 +34,13 @@ import android.util.SparseArray;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.permission.util.ForegroundThread;
+
 import java.io.PrintWriter;
+import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -51,12 +56,21 @@ final class SafetyCenterListeners {
 
     private static final String TAG = "SafetyCenterListeners";
 
+    @NonNull private final ReentrantReadWriteLock mApiLock;
+
     @NonNull private final SafetyCenterDataFactory mSafetyCenterDataFactory;
 
     private final SparseArray<RemoteCallbackList<IOnSafetyCenterDataChangedListener>>
             mSafetyCenterDataChangedListeners = new SparseArray<>();
 
-    SafetyCenterListeners(@NonNull SafetyCenterDataFactory safetyCenterDataFactory) {
+    private final ArrayMap<UserProfileGroup, PendingUpdate> mPendingUpdates = new ArrayMap<>();
+
+    private final Handler mForegroundHandler = ForegroundThread.getHandler();
+
+    SafetyCenterListeners(
+            @NonNull ReentrantReadWriteLock apiLock,
+            @NonNull SafetyCenterDataFactory safetyCenterDataFactory) {
+        mApiLock = apiLock;
         mSafetyCenterDataFactory = safetyCenterDataFactory;
     }
 
@@ -117,6 +131,11 @@ final class SafetyCenterListeners {
             return;
         }
 
+        if (updateSafetyCenterData) {
+            // This update supersedes any pending update for the same user profile group.
+            cancelPendingUpdate(userProfileGroup);
+        }
+
         ArrayMap<String, SafetyCenterData> safetyCenterDataCache = new ArrayMap<>();
         deliverUpdateForUser(
                 userProfileGroup.getProfileParentUserId(),
@@ -138,6 +157,30 @@ final class SafetyCenterListeners {
         }
     }
 
+    /**
+     * Schedules a {@link SafetyCenterData} update on all listeners of the given {@link
+     * UserProfileGroup}, to be delivered after the {@link
+     * SafetyCenterFlags#getListenerUpdateCoalescingWindow()}.
+     *
+     * <p>All the updates scheduled for the same {@link UserProfileGroup} within that window are
+     * coalesced into a single delivery. A pending update is delivered immediately by any call to
+     * {@link #deliverUpdateForUserProfileGroup} that updates the {@link SafetyCenterData}, e.g. when
+     * a refresh completes or times out.
+     */
+    void scheduleUpdateForUserProfileGroup(@NonNull UserProfileGroup userProfileGroup) {
+        Duration coalescingWindow = SafetyCenterFlags.getListenerUpdateCoalescingWindow();
+        if (coalescingWindow.isNegative() || coalescingWindow.isZero()) {
+            deliverUpdateForUserProfileGroup(userProfileGroup, true, null);
+            return;
+        }
+        if (mPendingUpdates.containsKey(userProfileGroup)) {
+            return;
+        }
+        PendingUpdate pendingUpdate = new PendingUpdate(userProfileGroup);
+        mPendingUpdates.put(userProfileGroup, pendingUpdate);
+        mForegroundHandler.postDelayed(pendingUpdate, coalescingWindow.toMillis());
+    }
+
     /**
      * Adds a {@link IOnSafetyCenterDataChangedListener} for the given {@code packageName} and
      * {@code userId}.
@@ -187,6 +230,12 @@ final class SafetyCenterListeners {
 
     /** Clears all {@link IOnSafetyCenterDataChangedListener}s, for the given user. */
     void clearForUser(@UserIdInt int userId) {
+        // Loop in reverse index order to be able to remove entries while iterating.
+        for (int i = mPendingUpdates.size() - 1; i >= 0; i--) {
+            if (mPendingUpdates.keyAt(i).contains(userId)) {
+                mForegroundHandler.removeCallbacks(mPendingUpdates.removeAt(i));
+            }
+        }
         RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
                 mSafetyCenterDataChangedListeners.get(userId);
         if (listeners == null) {
@@ -198,6 +247,10 @@ final class SafetyCenterListeners {
 
     /** Clears all {@link IOnSafetyCenterDataChangedListener}s, for all user ids. */
     void clear() {
+        for (int i = 0; i < mPendingUpdates.size(); i++) {
+            mForegroundHandler.removeCallbacks(mPendingUpdates.valueAt(i));
+        }
+        mPendingUpdates.clear();
         for (int i = 0; i < mSafetyCenterDataChangedListeners.size(); i++) {
             RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
                     mSafetyCenterDataChangedListeners.valueAt(i);
@@ -209,6 +262,13 @@ final class SafetyCenterListeners {
         mSafetyCenterDataChangedListeners.clear();
     }
 
+    private void cancelPendingUpdate(@NonNull UserProfileGroup userProfileGroup) {
+        PendingUpdate pendingUpdate = mPendingUpdates.remove(userProfileGroup);
+        if (pendingUpdate != null) {
+            mForegroundHandler.removeCallbacks(pendingUpdate);
+        }
+    }
+
     private void deliverUpdateForUser(
             @UserIdInt int userId,
             @NonNull UserProfileGroup userProfileGroup,
@@ -261,9 +321,36 @@ final class SafetyCenterListeners {
                 fout.println("\t\t[" + j + "] " + listeners.getRegisteredCallbackItem(j));
             }
         }
+        fout.println("PENDING UPDATES (" + mPendingUpdates.size() + ")");
+        for (int i = 0; i < mPendingUpdates.size(); i++) {
+            fout.println("\t[" + i + "] " + mPendingUpdates.keyAt(i));
+        }
         fout.println();
     }
 
+    /** A {@link Runnable} that delivers a coalesced update for a {@link UserProfileGroup}. */
+    private final class PendingUpdate implements Runnable {
+
+        @NonNull private final UserProfileGroup mUserProfileGroup;
+
+        private PendingUpdate(@NonNull UserProfileGroup userProfileGroup) {
+            mUserProfileGroup = userProfileGroup;
+        }
+
+        @Override
+        public void run() {
+            mApiLock.writeLock().lock();
+            try {
+                if (mPendingUpdates.get(mUserProfileGroup) != this) {
+                    return;
+                }
+                deliverUpdateForUserProfileGroup(mUserProfileGroup, true, null);
+            } finally {
+                mApiLock.writeLock().unlock();
+            }
+        }
+    }
+
     /**
      * A wrapper around an {@link IOnSafetyCenterDataChangedListener} to ensure it is only called
      * when the {@link SafetyCenterData} actually changes.
@@ -43,6 +43,7 @@ import com.android.permission.PermissionStatsLog;
 import com.android.safetycenter.internaldata.SafetyCenterIssueKey;
 
 import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A {@link StatsPullAtomCallback} that provides a {@link PermissionStatsLog#SAFETY_STATE} atom that
@@ -58,7 +59,7 @@ final class SafetyCenterPullAtomCallback implements StatsPullAtomCallback {
     private static final String TAG = "SafetyCenterPullAtomCal";
 
     @NonNull private final Context mContext;
-    @NonNull private final Object mApiLock;
+    @NonNull private final ReentrantReadWriteLock mApiLock;
 
     @GuardedBy("mApiLock")
     @NonNull
@@ -82,7 +83,7 @@ final class SafetyCenterPullAtomCallback implements StatsPullAtomCallback {
 
     SafetyCenterPullAtomCallback(
             @NonNull Context context,
-            @NonNull Object apiLock,
+            @NonNull ReentrantReadWriteLock apiLock,
             @NonNull StatsdLogger statsdLogger,
             @NonNull SafetyCenterConfigReader safetyCenterConfigReader,
             @NonNull SafetyCenterRepository safetyCenterRepository,
@@ -109,7 +110,8 @@ final class SafetyCenterPullAtomCallback implements StatsPullAtomCallback {
         }
         List<UserProfileGroup> userProfileGroups =
                 UserProfileGroup.getAllUserProfileGroups(mContext);
-        synchronized (mApiLock) {
+        mApiLock.readLock().lock();
+        try {
             if (!mSafetyCenterConfigReader.allowsStatsdLogging()) {
                 Log.w(TAG, "Skipping pulling and writing atoms due to a test config override");
                 return StatsManager.PULL_SKIP;
@@ -123,6 +125,8 @@ final class SafetyCenterPullAtomCallback implements StatsPullAtomCallback {
                 // the above pulled atom.
                 writeSafetySourceStateCollectedAtomsLocked(userProfileGroup);
             }
+        } finally {
+            mApiLock.readLock().unlock();
         }
         return StatsManager.PULL_SUCCESS;
     }
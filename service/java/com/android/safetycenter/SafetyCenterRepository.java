@@ -71,6 +71,8 @@ final class SafetyCenterRepository {
     private final ArrayMap<SafetyCenterIssueActionId, Long> mSafetyCenterIssueActionsInFlight =
             new ArrayMap<>();
 
+    private long mSafetyCenterIssueActionsInFlightVersion;
+
     @NonNull private final Context mContext;
     @NonNull private final SafetyCenterConfigReader mSafetyCenterConfigReader;
     @NonNull private final SafetyCenterRefreshTracker mSafetyCenterRefreshTracker;
@@ -230,6 +232,7 @@ final class SafetyCenterRepository {
             @NonNull SafetyCenterIssueActionId safetyCenterIssueActionId) {
         mSafetyCenterIssueActionsInFlight.put(
                 safetyCenterIssueActionId, SystemClock.elapsedRealtime());
+        mSafetyCenterIssueActionsInFlightVersion++;
     }
 
     /**
@@ -249,6 +252,7 @@ final class SafetyCenterRepository {
                             + toUserFriendlyString(safetyCenterIssueActionId));
             return false;
         }
+        mSafetyCenterIssueActionsInFlightVersion++;
 
         SafetyCenterIssueKey issueKey = safetyCenterIssueActionId.getSafetyCenterIssueKey();
         SafetySourceIssue issue = getSafetySourceIssue(issueKey);
@@ -358,6 +362,7 @@ final class SafetyCenterRepository {
         mSafetySourceDataForKey.clear();
         mSafetySourceErrors.clear();
         mSafetyCenterIssueActionsInFlight.clear();
+        mSafetyCenterIssueActionsInFlightVersion++;
     }
 
     /**
@@ -386,6 +391,7 @@ final class SafetyCenterRepository {
                 mSafetyCenterIssueActionsInFlight.removeAt(i);
             }
         }
+        mSafetyCenterIssueActionsInFlightVersion++;
     }
 
     /** Dumps state for debugging purposes. */
@@ -423,6 +429,14 @@ final class SafetyCenterRepository {
         return mSafetyCenterIssueActionsInFlight.containsKey(safetyCenterIssueActionId);
     }
 
+    /**
+     * Returns a version number that changes whenever an issue action is marked or unmarked as
+     * in-flight, so that state derived from {@link #actionIsInFlight} can be cached.
+     */
+    long getSafetyCenterIssueActionsInFlightVersion() {
+        return mSafetyCenterIssueActionsInFlightVersion;
+    }
+
     /** Returns {@code true} if the given source has an error. */
     boolean sourceHasError(@NonNull SafetySourceKey safetySourceKey) {
         return mSafetySourceErrors.contains(safetySourceKey);
@@ -41,6 +41,7 @@ import android.app.AppOpsManager;
 import android.app.PendingIntent;
 import android.app.StatsManager;
 import android.app.StatsManager.StatsPullAtomCallback;
+import android.app.admin.DevicePolicyManager;
 import android.content.ApexEnvironment;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -58,6 +59,7 @@ import android.safetycenter.ISafetyCenterManager;
 import android.safetycenter.SafetyCenterData;
 import android.safetycenter.SafetyCenterErrorDetails;
 import android.safetycenter.SafetyCenterManager;
+import android.safetycenter.SafetyCenterStatus;
 import android.safetycenter.SafetyEvent;
 import android.safetycenter.SafetySourceData;
 import android.safetycenter.SafetySourceErrorDetails;
@@ -94,6 +96,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -124,7 +127,13 @@ public final class SafetyCenterService extends SystemService {
 
     private final Handler mWriteHandler = BackgroundThread.getHandler();
 
-    private final Object mApiLock = new Object();
+    /**
+     * The lock guarding the Safety Center state.
+     *
+     * <p>The read lock is only held by the APIs that don't modify any state, so that they can be
+     * served concurrently; everything else must hold the write lock.
+     */
+    private final ReentrantReadWriteLock mApiLock = new ReentrantReadWriteLock();
 
     @GuardedBy("mApiLock")
     private final SafetyCenterTimeouts mSafetyCenterTimeouts = new SafetyCenterTimeouts();
@@ -196,7 +205,7 @@ public final class SafetyCenterService extends SystemService {
                         mPendingIntentFactory,
                         mSafetyCenterIssueCache,
                         mSafetyCenterRepository);
-        mSafetyCenterListeners = new SafetyCenterListeners(mSafetyCenterDataFactory);
+        mSafetyCenterListeners = new SafetyCenterListeners(mApiLock, mSafetyCenterDataFactory);
         mSafetyCenterBroadcastDispatcher =
                 new SafetyCenterBroadcastDispatcher(
                         context, mSafetyCenterConfigReader, mSafetyCenterRefreshTracker);
@@ -222,12 +231,17 @@ public final class SafetyCenterService extends SystemService {
     public void onStart() {
         publishBinderService(Context.SAFETY_CENTER_SERVICE, new Stub());
         if (mDeviceSupportsSafetyCenter) {
-            synchronized (mApiLock) {
+            SafetyCenterFlags.init();
+            mApiLock.writeLock().lock();
+            try {
                 mConfigAvailable = mSafetyCenterConfigReader.loadConfig();
                 if (mConfigAvailable) {
                     readSafetyCenterIssueCacheFileLocked();
                     new UserBroadcastReceiver().register(getContext());
+                    new DataCacheInvalidationBroadcastReceiver().register(getContext());
                 }
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
     }
@@ -286,13 +300,15 @@ public final class SafetyCenterService extends SystemService {
             }
 
             UserProfileGroup userProfileGroup = UserProfileGroup.from(getContext(), userId);
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 boolean hasUpdate =
                         mSafetyCenterRepository.setSafetySourceData(
                                 safetySourceData, safetySourceId, safetyEvent, packageName, userId);
-                mSafetyCenterListeners.deliverUpdateForUserProfileGroup(
-                        userProfileGroup, hasUpdate, null);
+                deliverOrScheduleUpdateLocked(userProfileGroup, hasUpdate, null);
                 scheduleWriteSafetyCenterIssueCacheFileIfNeededLocked();
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -313,9 +329,12 @@ public final class SafetyCenterService extends SystemService {
                 return null;
             }
 
-            synchronized (mApiLock) {
+            mApiLock.readLock().lock();
+            try {
                 return mSafetyCenterRepository.getSafetySourceData(
                         safetySourceId, packageName, userId);
+            } finally {
+                mApiLock.readLock().unlock();
             }
         }
 
@@ -338,7 +357,8 @@ public final class SafetyCenterService extends SystemService {
             }
 
             UserProfileGroup userProfileGroup = UserProfileGroup.from(getContext(), userId);
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 boolean hasUpdate =
                         mSafetyCenterRepository.reportSafetySourceError(
                                 errorDetails, safetySourceId, packageName, userId);
@@ -351,8 +371,10 @@ public final class SafetyCenterService extends SystemService {
                                     mSafetyCenterResourcesContext.getStringByName(
                                             "resolving_action_error"));
                 }
-                mSafetyCenterListeners.deliverUpdateForUserProfileGroup(
+                deliverOrScheduleUpdateLocked(
                         userProfileGroup, hasUpdate, safetyCenterErrorDetails);
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -380,8 +402,11 @@ public final class SafetyCenterService extends SystemService {
                 return null;
             }
 
-            synchronized (mApiLock) {
+            mApiLock.readLock().lock();
+            try {
                 return mSafetyCenterConfigReader.getSafetyCenterConfig();
+            } finally {
+                mApiLock.readLock().unlock();
             }
         }
 
@@ -400,8 +425,11 @@ public final class SafetyCenterService extends SystemService {
 
             UserProfileGroup userProfileGroup = UserProfileGroup.from(getContext(), userId);
 
-            synchronized (mApiLock) {
+            mApiLock.readLock().lock();
+            try {
                 return mSafetyCenterDataFactory.getSafetyCenterData(packageName, userProfileGroup);
+            } finally {
+                mApiLock.readLock().unlock();
             }
         }
 
@@ -422,7 +450,8 @@ public final class SafetyCenterService extends SystemService {
             }
 
             UserProfileGroup userProfileGroup = UserProfileGroup.from(getContext(), userId);
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 IOnSafetyCenterDataChangedListener registeredListener =
                         mSafetyCenterListeners.addListener(listener, packageName, userId);
                 if (registeredListener == null) {
@@ -432,6 +461,8 @@ public final class SafetyCenterService extends SystemService {
                         registeredListener,
                         mSafetyCenterDataFactory.getSafetyCenterData(packageName, userProfileGroup),
                         null);
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -447,8 +478,11 @@ public final class SafetyCenterService extends SystemService {
                 return;
             }
 
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 mSafetyCenterListeners.removeListener(listener, userId);
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -469,7 +503,8 @@ public final class SafetyCenterService extends SystemService {
             UserProfileGroup userProfileGroup = UserProfileGroup.from(getContext(), userId);
             enforceSameUserProfileGroup(
                     "dismissSafetyCenterIssue", userProfileGroup, safetyCenterIssueKey.getUserId());
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 SafetySourceIssue safetySourceIssue =
                         mSafetyCenterRepository.getSafetySourceIssue(safetyCenterIssueKey);
                 if (safetySourceIssue == null) {
@@ -499,6 +534,8 @@ public final class SafetyCenterService extends SystemService {
                 }
                 mSafetyCenterListeners.deliverUpdateForUserProfileGroup(
                         userProfileGroup, true, null);
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -532,7 +569,8 @@ public final class SafetyCenterService extends SystemService {
                     "executeSafetyCenterIssueAction",
                     userProfileGroup,
                     safetyCenterIssueKey.getUserId());
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 SafetySourceIssue.Action safetySourceIssueAction =
                         mSafetyCenterRepository.getSafetySourceIssueAction(
                                 safetyCenterIssueActionId);
@@ -581,6 +619,8 @@ public final class SafetyCenterService extends SystemService {
                     mSafetyCenterListeners.deliverUpdateForUserProfileGroup(
                             userProfileGroup, true, null);
                 }
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -595,11 +635,14 @@ public final class SafetyCenterService extends SystemService {
 
             List<UserProfileGroup> userProfileGroups =
                     UserProfileGroup.getAllUserProfileGroups(getContext());
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 // TODO(b/236693607): Should tests leave real data untouched?
                 clearDataLocked();
                 mSafetyCenterListeners.deliverUpdateForUserProfileGroups(
                         userProfileGroups, true, null);
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -615,12 +658,15 @@ public final class SafetyCenterService extends SystemService {
 
             List<UserProfileGroup> userProfileGroups =
                     UserProfileGroup.getAllUserProfileGroups(getContext());
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 mSafetyCenterConfigReader.setConfigOverrideForTests(safetyCenterConfig);
                 // TODO(b/236693607): Should tests leave real data untouched?
                 clearDataLocked();
                 mSafetyCenterListeners.deliverUpdateForUserProfileGroups(
                         userProfileGroups, true, null);
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -635,12 +681,15 @@ public final class SafetyCenterService extends SystemService {
 
             List<UserProfileGroup> userProfileGroups =
                     UserProfileGroup.getAllUserProfileGroups(getContext());
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 mSafetyCenterConfigReader.clearConfigOverrideForTests();
                 // TODO(b/236693607): Should tests leave real data untouched?
                 clearDataLocked();
                 mSafetyCenterListeners.deliverUpdateForUserProfileGroups(
                         userProfileGroups, true, null);
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -746,7 +795,8 @@ public final class SafetyCenterService extends SystemService {
             if (!checkDumpPermission(fout)) {
                 return;
             }
-            synchronized (mApiLock) {
+            mApiLock.readLock().lock();
+            try {
                 SafetyCenterService.this.dumpLocked(fd, fout);
                 SafetyCenterFlags.dump(fout);
                 mSafetyCenterConfigReader.dump(fout);
@@ -755,6 +805,8 @@ public final class SafetyCenterService extends SystemService {
                 mSafetyCenterRefreshTracker.dump(fout);
                 mSafetyCenterTimeouts.dump(fout);
                 mSafetyCenterListeners.dump(fout);
+            } finally {
+                mApiLock.readLock().unlock();
             }
         }
 
@@ -800,6 +852,9 @@ public final class SafetyCenterService extends SystemService {
             if (!properties.getKeyset().contains(PROPERTY_SAFETY_CENTER_ENABLED)) {
                 return;
             }
+            // The SafetyCenterFlags listener may not have been notified yet, and the API checks
+            // that follow the broadcasts must see the new value.
+            SafetyCenterFlags.refreshProperties();
             boolean safetyCenterEnabled =
                     properties.getBoolean(PROPERTY_SAFETY_CENTER_ENABLED, false);
             if (mSafetyCenterEnabled == safetyCenterEnabled) {
@@ -822,16 +877,22 @@ public final class SafetyCenterService extends SystemService {
         }
 
         private void onApiEnabled() {
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 mSafetyCenterBroadcastDispatcher.sendEnabledChanged();
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
         private void onApiDisabled() {
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 clearDataLocked();
                 mSafetyCenterListeners.clear();
                 mSafetyCenterBroadcastDispatcher.sendEnabledChanged();
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
     }
@@ -850,7 +911,8 @@ public final class SafetyCenterService extends SystemService {
 
         @Override
         public void run() {
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 mSafetyCenterTimeouts.remove(this);
                 ArraySet<SafetySourceKey> stillInFlight =
                         mSafetyCenterRefreshTracker.timeoutRefresh(mRefreshBroadcastId);
@@ -872,6 +934,8 @@ public final class SafetyCenterService extends SystemService {
                                 : new SafetyCenterErrorDetails(
                                         mSafetyCenterResourcesContext.getStringByName(
                                                 "refresh_timeout")));
+            } finally {
+                mApiLock.writeLock().unlock();
             }
 
             Log.v(
@@ -906,7 +970,8 @@ public final class SafetyCenterService extends SystemService {
 
         @Override
         public void run() {
-            synchronized (mApiLock) {
+            mApiLock.writeLock().lock();
+            try {
                 mSafetyCenterTimeouts.remove(this);
                 boolean safetyCenterDataHasChanged =
                         mSafetyCenterRepository.unmarkSafetyCenterIssueActionInFlight(
@@ -921,6 +986,8 @@ public final class SafetyCenterService extends SystemService {
                         new SafetyCenterErrorDetails(
                                 mSafetyCenterResourcesContext.getStringByName(
                                         "resolving_action_error")));
+            } finally {
+                mApiLock.writeLock().unlock();
             }
         }
 
@@ -967,6 +1034,9 @@ public final class SafetyCenterService extends SystemService {
                 return;
             }
 
+            // All the actions received here may change the users and profiles on the device.
+            UserProfileGroup.clearCache();
+
             UserHandle userHandle = intent.getParcelableExtra(Intent.EXTRA_USER, UserHandle.class);
             if (userHandle == null) {
                 Log.w(TAG, "Received " + action + " broadcast missing user extra!");
@@ -993,25 +1063,65 @@ public final class SafetyCenterService extends SystemService {
         }
     }
 
+    /**
+     * {@link BroadcastReceiver} which clears the {@link SafetyCenterDataFactory} cache when inputs
+     * of the cached entries that aren't tracked by Safety Center change, such as the state of the
+     * apps providing safety sources or the device policy strings.
+     */
+    private final class DataCacheInvalidationBroadcastReceiver extends BroadcastReceiver {
+
+        void register(@NonNull Context context) {
+            IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            packageFilter.addDataScheme("package");
+            context.registerReceiverForAllUsers(this, packageFilter, null, null);
+
+            IntentFilter devicePolicyFilter =
+                    new IntentFilter(DevicePolicyManager.ACTION_DEVICE_POLICY_RESOURCE_UPDATED);
+            context.registerReceiverForAllUsers(this, devicePolicyFilter, null, null);
+        }
+
+        @Override
+        public void onReceive(@NonNull Context context, @NonNull Intent intent) {
+            mApiLock.writeLock().lock();
+            try {
+                mSafetyCenterDataFactory.clearCache();
+            } finally {
+                mApiLock.writeLock().unlock();
+            }
+        }
+    }
+
     private void removeUser(@UserIdInt int userId, boolean clearDataPermanently) {
         UserProfileGroup userProfileGroup = UserProfileGroup.from(getContext(), userId);
-        synchronized (mApiLock) {
+        mApiLock.writeLock().lock();
+        try {
             if (clearDataPermanently) {
                 mSafetyCenterRepository.clearForUser(userId);
                 mSafetyCenterIssueCache.clearForUser(userId);
             }
+            mSafetyCenterDataFactory.clearCache();
             mSafetyCenterListeners.clearForUser(userId);
             mSafetyCenterRefreshTracker.clearRefreshForUser(userId);
             mSafetyCenterListeners.deliverUpdateForUserProfileGroup(userProfileGroup, true, null);
             scheduleWriteSafetyCenterIssueCacheFileIfNeededLocked();
+        } finally {
+            mApiLock.writeLock().unlock();
         }
     }
 
     private void startRefreshingSafetySources(
             @RefreshReason int refreshReason, @UserIdInt int userId) {
         UserProfileGroup userProfileGroup = UserProfileGroup.from(getContext(), userId);
-        synchronized (mApiLock) {
+        mApiLock.writeLock().lock();
+        try {
             mSafetyCenterRepository.clearSafetySourceErrors(userProfileGroup);
+            // Entries may depend on the state of the apps providing safety sources, e.g. for their
+            // default intents, so recompute them when a refresh is requested.
+            mSafetyCenterDataFactory.clearCache();
 
             String refreshBroadcastId =
                     mSafetyCenterBroadcastDispatcher.sendRefreshSafetySources(
@@ -1026,7 +1136,33 @@ public final class SafetyCenterService extends SystemService {
                     refreshTimeout, SafetyCenterFlags.getRefreshSourcesTimeout(refreshReason));
 
             mSafetyCenterListeners.deliverUpdateForUserProfileGroup(userProfileGroup, true, null);
+        } finally {
+            mApiLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delivers an update to the listeners of the given {@link UserProfileGroup}, or schedules it to
+     * be coalesced with other updates if it is the result of a source responding to an ongoing
+     * refresh.
+     *
+     * <p>Updates are always delivered immediately when they carry {@link SafetyCenterErrorDetails}
+     * or when no refresh is in progress anymore, which includes the update completing a refresh.
+     */
+    @GuardedBy("mApiLock")
+    private void deliverOrScheduleUpdateLocked(
+            @NonNull UserProfileGroup userProfileGroup,
+            boolean updateSafetyCenterData,
+            @Nullable SafetyCenterErrorDetails safetyCenterErrorDetails) {
+        boolean refreshInProgress =
+                mSafetyCenterRefreshTracker.getRefreshStatus()
+                        != SafetyCenterStatus.REFRESH_STATUS_NONE;
+        if (updateSafetyCenterData && safetyCenterErrorDetails == null && refreshInProgress) {
+            mSafetyCenterListeners.scheduleUpdateForUserProfileGroup(userProfileGroup);
+            return;
         }
+        mSafetyCenterListeners.deliverUpdateForUserProfileGroup(
+                userProfileGroup, updateSafetyCenterData, safetyCenterErrorDetails);
     }
 
     /** Schedule writing the cache to file. */
@@ -1046,12 +1182,15 @@ public final class SafetyCenterService extends SystemService {
     private void writeSafetyCenterIssueCacheFile() {
         List<PersistedSafetyCenterIssue> persistedSafetyCenterIssues;
 
-        synchronized (mApiLock) {
+        mApiLock.writeLock().lock();
+        try {
             mSafetyCenterIssueCacheWriteScheduled = false;
             persistedSafetyCenterIssues = mSafetyCenterIssueCache.snapshot();
             // Since all write operations are scheduled in the same background thread, we can safely
             // release the lock after creating a snapshot and know that all snapshots will be
             // written in the correct order even if we are not holding the lock.
+        } finally {
+            mApiLock.writeLock().unlock();
         }
 
         SafetyCenterIssuesPersistence.write(
@@ -1086,6 +1225,7 @@ public final class SafetyCenterService extends SystemService {
     private void clearDataLocked() {
         mSafetyCenterRepository.clear();
         mSafetyCenterIssueCache.clear();
+        mSafetyCenterDataFactory.clearCache();
         mSafetyCenterTimeouts.clear();
         mSafetyCenterRefreshTracker.clearRefresh();
         scheduleWriteSafetyCenterIssueCacheFileIfNeededLocked();
@@ -28,24 +28,45 @@ import android.os.Binder;
 import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.util.SparseArray;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.permission.util.UserUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
 /**
  * A class that represent all the enabled profiles (profile parent and managed profile(s))
  * associated with a user id.
+ *
+ * <p>The users and profiles on the device are cached across calls, and the cache must be cleared
+ * using {@link #clearCache()} whenever a user or profile is added or removed. The cache is also
+ * cleared when a user that it doesn't know about is queried, as this means a user was added and
+ * the cache wasn't cleared yet. Whether managed profiles are running is not cached.
  */
 @RequiresApi(TIRAMISU)
 final class UserProfileGroup {
 
+    private static final Object sCacheLock = new Object();
+
+    /** Incremented every time the cache is cleared, to discard values computed concurrently. */
+    @GuardedBy("sCacheLock")
+    private static long sCacheGeneration = 0;
+
+    @GuardedBy("sCacheLock")
+    @Nullable
+    private static List<UserHandle> sUserHandles;
+
+    @GuardedBy("sCacheLock")
+    private static final SparseArray<UserProfiles> sUserProfilesForUser = new SparseArray<>();
+
     @UserIdInt private final int mProfileParentUserId;
     @NonNull private final int[] mManagedProfilesUserIds;
     @NonNull private final int[] mManagedRunningProfilesUserIds;
@@ -62,7 +83,7 @@ final class UserProfileGroup {
     /** Returns all the alive {@link UserProfileGroup}s. */
     static List<UserProfileGroup> getAllUserProfileGroups(@NonNull Context context) {
         List<UserProfileGroup> userProfileGroups = new ArrayList<>();
-        List<UserHandle> userHandles = UserUtils.getUserHandles(context);
+        List<UserHandle> userHandles = getUserHandles(context);
         for (int i = 0; i < userHandles.size(); i++) {
             UserHandle userHandle = userHandles.get(i);
             int userId = userHandle.getIdentifier();
@@ -97,6 +118,92 @@ final class UserProfileGroup {
      * managed profile(s).
      */
     static UserProfileGroup from(@NonNull Context context, @UserIdInt int userId) {
+        UserProfiles userProfiles = getUserProfiles(context, userId);
+        int[] managedProfilesUserIds = userProfiles.mManagedProfilesUserIds;
+
+        int[] managedRunningProfilesUserIds = new int[managedProfilesUserIds.length];
+        int managedRunningProfilesUserIdsLen = 0;
+        for (int i = 0; i < managedProfilesUserIds.length; i++) {
+            int managedProfileUserId = managedProfilesUserIds[i];
+
+            if (UserUtils.isProfileRunning(managedProfileUserId, context)) {
+                managedRunningProfilesUserIds[managedRunningProfilesUserIdsLen++] =
+                        managedProfileUserId;
+            }
+        }
+
+        return new UserProfileGroup(
+                userProfiles.mProfileParentUserId,
+                // The cached array must not be modified through the returned instance.
+                managedProfilesUserIds.clone(),
+                Arrays.copyOf(managedRunningProfilesUserIds, managedRunningProfilesUserIdsLen));
+    }
+
+    /**
+     * Clears the users and profiles cached by {@link #from} and {@link #getAllUserProfileGroups}.
+     *
+     * <p>This must be called whenever a user or profile is added or removed.
+     */
+    static void clearCache() {
+        synchronized (sCacheLock) {
+            clearCacheLocked();
+        }
+    }
+
+    @GuardedBy("sCacheLock")
+    private static void clearCacheLocked() {
+        sCacheGeneration++;
+        sUserHandles = null;
+        sUserProfilesForUser.clear();
+    }
+
+    @NonNull
+    private static List<UserHandle> getUserHandles(@NonNull Context context) {
+        long cacheGeneration;
+        synchronized (sCacheLock) {
+            if (sUserHandles != null) {
+                return sUserHandles;
+            }
+            cacheGeneration = sCacheGeneration;
+        }
+
+        List<UserHandle> userHandles =
+                Collections.unmodifiableList(new ArrayList<>(UserUtils.getUserHandles(context)));
+        synchronized (sCacheLock) {
+            if (cacheGeneration == sCacheGeneration) {
+                sUserHandles = userHandles;
+            }
+        }
+        return userHandles;
+    }
+
+    @NonNull
+    private static UserProfiles getUserProfiles(@NonNull Context context, @UserIdInt int userId) {
+        long cacheGeneration;
+        synchronized (sCacheLock) {
+            UserProfiles userProfiles = sUserProfilesForUser.get(userId);
+            if (userProfiles != null) {
+                return userProfiles;
+            }
+            if (sUserHandles != null && !sUserHandles.contains(UserHandle.of(userId))) {
+                // The user was added after the cache was filled, so the cached profiles of its
+                // profile parent are stale too.
+                clearCacheLocked();
+            }
+            cacheGeneration = sCacheGeneration;
+        }
+
+        UserProfiles userProfiles = loadUserProfiles(context, userId);
+        synchronized (sCacheLock) {
+            if (cacheGeneration == sCacheGeneration) {
+                sUserProfilesForUser.put(userId, userProfiles);
+            }
+        }
+        return userProfiles;
+    }
+
+    @NonNull
+    private static UserProfiles loadUserProfiles(@NonNull Context context, @UserIdInt int userId) {
         UserManager userManager = getUserManagerForUser(userId, context);
         List<UserHandle> userProfiles = getEnabledUserProfiles(userManager);
         UserHandle profileParent = getProfileParent(userManager, userId);
@@ -106,26 +213,19 @@ final class UserProfileGroup {
         }
 
         int[] managedProfilesUserIds = new int[userProfiles.size()];
-        int[] managedRunningProfilesUserIds = new int[userProfiles.size()];
         int managedProfilesUserIdsLen = 0;
-        int managedRunningProfilesUserIdsLen = 0;
         for (int i = 0; i < userProfiles.size(); i++) {
             UserHandle userProfileHandle = userProfiles.get(i);
             int userProfileId = userProfileHandle.getIdentifier();
 
             if (UserUtils.isManagedProfile(userProfileId, context)) {
                 managedProfilesUserIds[managedProfilesUserIdsLen++] = userProfileId;
-                if (UserUtils.isProfileRunning(userProfileId, context)) {
-                    managedRunningProfilesUserIds[managedRunningProfilesUserIdsLen++] =
-                            userProfileId;
-                }
             }
         }
 
-        return new UserProfileGroup(
+        return new UserProfiles(
                 profileParentUserId,
-                Arrays.copyOf(managedProfilesUserIds, managedProfilesUserIdsLen),
-                Arrays.copyOf(managedRunningProfilesUserIds, managedRunningProfilesUserIdsLen));
+                Arrays.copyOf(managedProfilesUserIds, managedProfilesUserIdsLen));
     }
 
     @NonNull
@@ -242,4 +342,17 @@ final class UserProfileGroup {
                 + Arrays.toString(mManagedRunningProfilesUserIds)
                 + '}';
     }
+
+    /** The profile parent and managed profiles associated with a user id. */
+    private static final class UserProfiles {
+
+        @UserIdInt private final int mProfileParentUserId;
+        @NonNull private final int[] mManagedProfilesUserIds;
+
+        private UserProfiles(
+                @UserIdInt int profileParentUserId, @NonNull int[] managedProfilesUserIds) {
+            mProfileParentUserId = profileParentUserId;
+            mManagedProfilesUserIds = managedProfilesUserIds;
+        }
+    }
 }
@@ -18,8 +18,10 @@ package com.android.permission.persistence
 
 import android.content.ApexEnvironment
 import android.content.Context
+import android.content.pm.PackageManager
 import android.os.Process
 import android.os.UserHandle
+import android.util.Xml
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.platform.app.InstrumentationRegistry
 import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
@@ -47,7 +49,7 @@ class RuntimePermissionsPersistenceTest {
     @Mock
     lateinit var apexEnvironment: ApexEnvironment
 
-    private val persistence = RuntimePermissionsPersistence.createInstance()
+    private val persistence = RuntimePermissionsPersistenceImpl()
     private val permissionState = RuntimePermissionsState.PermissionState("permission", true, 3)
     private val state = RuntimePermissionsState(
         1, "fingerprint", mapOf("package" to listOf(permissionState)),
@@ -95,6 +97,111 @@ class RuntimePermissionsPersistenceTest {
         assertThat(persistedState.sharedUserPermissions).isEqualTo(state.sharedUserPermissions)
     }
 
+    @Test
+    fun testReadWrite_migratesFromXml() {
+        val xmlPersistence = RuntimePermissionsPersistenceImpl(false)
+        xmlPersistence.writeForUser(state, user)
+
+        assertThat(persistence.readForUser(user)).isEqualTo(state)
+
+        val newState = RuntimePermissionsState(
+            2, "fingerprint2", mapOf("package" to listOf(permissionState)), emptyMap()
+        )
+        persistence.writeForUser(newState, user)
+
+        assertThat(persistence.readForUser(user)).isEqualTo(newState)
+        // The XML file is kept current for a module rollback.
+        val xmlFile = File(File(mockDataDirectory, user.toString()), "runtime-permissions.xml")
+        xmlFile.inputStream().use {
+            val parser = Xml.newPullParser()
+            parser.setInput(it, null)
+            parser.nextTag()
+            assertThat(parser.name).isEqualTo("runtime-permissions")
+            assertThat(parser.getAttributeValue(null, "version")).isEqualTo("2")
+            assertThat(parser.getAttributeValue(null, "fingerprint")).isEqualTo("fingerprint2")
+        }
+    }
+
+    @Test
+    fun testWrite_sameVersion_keepsXml() {
+        persistence.writeForUser(state, user)
+        val xmlFile = File(File(mockDataDirectory, user.toString()), "runtime-permissions.xml")
+        val xml = xmlFile.readBytes()
+        val newState = RuntimePermissionsState(
+            1, "fingerprint", mapOf("package" to listOf(permissionState)), emptyMap()
+        )
+
+        persistence.writeForUser(newState, user)
+
+        assertThat(xmlFile.readBytes()).isEqualTo(xml)
+        assertThat(persistence.readForUser(user)).isEqualTo(newState)
+        assertThat(RuntimePermissionsPersistenceImpl().readForUser(user)).isEqualTo(newState)
+    }
+
+    @Test
+    fun testRead_xmlWithoutGeneration_readsXml() {
+        persistence.writeForUser(state, user)
+        // Simulate a module rollback that only rewrote the XML file, without a generation.
+        File(File(mockDataDirectory, user.toString()), "runtime-permissions.xml").writeText(
+            "<runtime-permissions version=\"2\" fingerprint=\"fingerprint2\">" +
+                "<package name=\"package\">" +
+                "<permission name=\"permission\" granted=\"true\" flags=\"3\" />" +
+                "</package></runtime-permissions>"
+        )
+        val newState = RuntimePermissionsState(
+            2, "fingerprint2", mapOf("package" to listOf(permissionState)), emptyMap()
+        )
+
+        val readPersistence = RuntimePermissionsPersistenceImpl()
+        assertThat(readPersistence.readForUser(user)).isEqualTo(newState)
+
+        // The XML file is rewritten with a generation, so the binary file is read again.
+        readPersistence.writeForUser(state, user)
+        assertThat(RuntimePermissionsPersistenceImpl().readForUser(user)).isEqualTo(state)
+    }
+
+    @Test
+    fun testRead_binaryOlderThanXml_readsXml() {
+        val binaryFile = File(File(mockDataDirectory, user.toString()), "runtime-permissions.bin")
+        persistence.writeForUser(state, user)
+        val staleBinary = binaryFile.readBytes()
+        val newState = RuntimePermissionsState(
+            2, "fingerprint2", mapOf("package" to listOf(permissionState)), emptyMap()
+        )
+        persistence.writeForUser(newState, user)
+        // Simulate a binary file write that failed after the XML file was written.
+        binaryFile.writeBytes(staleBinary)
+
+        assertThat(RuntimePermissionsPersistenceImpl().readForUser(user)).isEqualTo(newState)
+    }
+
+    @Test
+    fun testRead_corruptBinary_readsXml() {
+        persistence.writeForUser(state, user)
+        File(File(mockDataDirectory, user.toString()), "runtime-permissions.bin")
+            .writeBytes(byteArrayOf(1, 2, 3))
+
+        assertThat(persistence.readForUser(user)).isEqualTo(state)
+    }
+
+    @Test
+    fun testReadWrite_oneTimePermission_notGranted() {
+        val oneTimePermissionState = RuntimePermissionsState.PermissionState(
+            "permission", true, PackageManager.FLAG_PERMISSION_ONE_TIME
+        )
+        val oneTimeState = RuntimePermissionsState(
+            1, null, mapOf("package" to listOf(oneTimePermissionState)), emptyMap()
+        )
+        persistence.writeForUser(oneTimeState, user)
+        val persistedState = persistence.readForUser(user)
+
+        val persistedPermissionState = persistedState!!.packagePermissions.values.first().first()
+        assertThat(persistedPermissionState.isGranted).isFalse()
+        assertThat(persistedPermissionState.flags)
+            .isEqualTo(PackageManager.FLAG_PERMISSION_ONE_TIME)
+        assertThat(persistedState.fingerprint).isNull()
+    }
+
     @Test
     fun testDelete() {
         persistence.writeForUser(state, user)
@@ -86,6 +86,26 @@ class RolesPersistenceTest {
         assertThat(persistedState.roles).isEqualTo(state.roles)
     }
 
+    @Test
+    fun testPrefetchRead() {
+        persistence.writeForUser(state, user)
+        RolesPersistenceImpl.prefetchForUsers(listOf(user))
+        val persistedState = persistence.readForUser(user)
+
+        assertThat(persistedState).isEqualTo(state)
+    }
+
+    @Test
+    fun testPrefetchWriteRead_readsWrittenState() {
+        persistence.writeForUser(state, user)
+        RolesPersistenceImpl.prefetchForUsers(listOf(user))
+        val newState = RolesState(2, "packagesHash2", mapOf("role" to setOf("holder1")))
+        persistence.writeForUser(newState, user)
+        val persistedState = persistence.readForUser(user)
+
+        assertThat(persistedState).isEqualTo(newState)
+    }
+
     @Test
     fun testDelete() {
         persistence.writeForUser(state, user)
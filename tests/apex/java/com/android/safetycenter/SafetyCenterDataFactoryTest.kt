@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.app.PendingIntent
+import android.content.Intent
+import android.os.Build
+import android.safetycenter.SafetyCenterData
+import android.safetycenter.SafetySourceData
+import android.safetycenter.SafetySourceIssue
+import android.safetycenter.SafetySourceStatus
+import android.safetycenter.config.SafetySource
+import android.safetycenter.config.SafetySourcesGroup
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.safetycenter.resources.SafetyCenterResourcesContext
+import com.google.common.truth.Truth.assertThat
+import java.util.Locale
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.RETURNS_SMART_NULLS
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.MockitoAnnotations.initMocks
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness
+
+/**
+ * Unit tests for the issues and entries cached by [SafetyCenterDataFactory].
+ *
+ * <p>The package, device policy resource, refresh, user removal and clear data triggers of
+ * [SafetyCenterService] all invalidate the cache through [SafetyCenterDataFactory.clearCache],
+ * after updating the [SafetyCenterRepository] where needed.
+ */
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.TIRAMISU)
+class SafetyCenterDataFactoryTest {
+
+    companion object {
+        private const val PACKAGE_NAME = "package.test"
+        private const val USER_ID = 0
+        private const val DYNAMIC_SOURCE_ID = "DynamicSource"
+        private const val STATIC_SOURCE_ID = "StaticSource"
+        private const val INTENT_ACTION = "action.test"
+    }
+
+    private val context = InstrumentationRegistry.getInstrumentation().context
+
+    private lateinit var mockitoSession: MockitoSession
+
+    @Mock
+    lateinit var configReader: SafetyCenterConfigReader
+
+    @Mock
+    lateinit var refreshTracker: SafetyCenterRefreshTracker
+
+    @Mock
+    lateinit var pendingIntentFactory: PendingIntentFactory
+
+    @Mock
+    lateinit var issueCache: SafetyCenterIssueCache
+
+    @Mock
+    lateinit var repository: SafetyCenterRepository
+
+    @Mock
+    lateinit var userProfileGroup: UserProfileGroup
+
+    private val resourcesContext =
+        mock(SafetyCenterResourcesContext::class.java, RETURNS_SMART_NULLS)
+
+    private val safetySourceData = mutableMapOf<SafetySourceKey, SafetySourceData>()
+    private val safetySourceErrors = mutableSetOf<SafetySourceKey>()
+    private var actionsInFlightVersion = 0L
+
+    private val dynamicSourceKey = SafetySourceKey.of(DYNAMIC_SOURCE_ID, USER_ID)
+    private val staticSourceKey = SafetySourceKey.of(STATIC_SOURCE_ID, USER_ID)
+
+    private lateinit var dataFactory: SafetyCenterDataFactory
+
+    @Before
+    fun setup() {
+        initMocks(this)
+        mockitoSession = mockitoSession()
+            .mockStatic(SafetyCenterFlags::class.java)
+            .strictness(Strictness.LENIENT)
+            .startMocking()
+
+        doReturn(listOf(collapsibleGroup(), rigidGroup())).`when`(configReader)
+            .safetySourcesGroups
+        doReturn(USER_ID).`when`(userProfileGroup).profileParentUserId
+        doReturn(IntArray(0)).`when`(userProfileGroup).managedProfilesUserIds
+        doReturn(IntArray(0)).`when`(userProfileGroup).managedRunningProfilesUserIds
+        doAnswer { safetySourceData[it.arguments[0] as SafetySourceKey] }.`when`(repository)
+            .getSafetySourceData(any())
+        doAnswer { it.arguments[0] as SafetySourceKey in safetySourceErrors }.`when`(repository)
+            .sourceHasError(any())
+        doAnswer { actionsInFlightVersion }.`when`(repository)
+            .safetyCenterIssueActionsInFlightVersion
+        doAnswer { it.arguments[1] }.`when`(pendingIntentFactory)
+            .maybeOverridePendingIntent(anyString(), any(), anyBoolean())
+        doReturn(pendingIntent(0)).`when`(pendingIntentFactory)
+            .getPendingIntent(anyString(), any(), anyString(), anyInt(), anyBoolean())
+
+        safetySourceData[dynamicSourceKey] = safetySourceData("Title")
+
+        dataFactory = SafetyCenterDataFactory(resourcesContext, configReader, refreshTracker,
+            pendingIntentFactory, issueCache, repository)
+    }
+
+    @After
+    fun finish() {
+        mockitoSession.finishMocking()
+    }
+
+    @Test
+    fun getSafetyCenterData_sameInputs_servesCachedIssuesAndEntries() {
+        val first = getSafetyCenterData()
+
+        val second = getSafetyCenterData()
+
+        assertThat(second.issues.single()).isSameInstanceAs(first.issues.single())
+        assertThat(second.entriesOrGroups.single())
+            .isSameInstanceAs(first.entriesOrGroups.single())
+        assertThat(second.staticEntryGroups.single())
+            .isSameInstanceAs(first.staticEntryGroups.single())
+        verify(pendingIntentFactory, times(1))
+            .getPendingIntent(eq(STATIC_SOURCE_ID), any(), anyString(), anyInt(), anyBoolean())
+    }
+
+    @Test
+    fun getSafetyCenterData_newSafetySourceData_recomputesIssuesAndEntries() {
+        val first = getSafetyCenterData()
+        safetySourceData[dynamicSourceKey] = safetySourceData("New title")
+
+        val second = getSafetyCenterData()
+
+        assertThat(second.issues.single()).isNotSameInstanceAs(first.issues.single())
+        assertThat(second.entriesOrGroups.single().entry!!.title).isEqualTo("New title")
+        assertThat(second.staticEntryGroups.single())
+            .isSameInstanceAs(first.staticEntryGroups.single())
+    }
+
+    @Test
+    fun getSafetyCenterData_actionsInFlightVersionChanged_recomputesIssuesOnly() {
+        val first = getSafetyCenterData()
+        doReturn(true).`when`(repository).actionIsInFlight(any())
+        actionsInFlightVersion++
+
+        val second = getSafetyCenterData()
+
+        assertThat(second.issues.single().actions.single().isInFlight).isTrue()
+        assertThat(second.entriesOrGroups.single())
+            .isSameInstanceAs(first.entriesOrGroups.single())
+    }
+
+    @Test
+    fun getSafetyCenterData_sourceErrorChanged_recomputesEntries() {
+        val first = getSafetyCenterData()
+        safetySourceErrors.add(staticSourceKey)
+
+        val withError = getSafetyCenterData()
+        // Starting a refresh clears the errors.
+        safetySourceErrors.clear()
+        val withoutError = getSafetyCenterData()
+
+        assertThat(withError.staticEntryGroups.single())
+            .isNotSameInstanceAs(first.staticEntryGroups.single())
+        assertThat(withoutError.staticEntryGroups.single())
+            .isNotSameInstanceAs(withError.staticEntryGroups.single())
+        assertThat(withoutError.issues.single()).isSameInstanceAs(first.issues.single())
+    }
+
+    @Test
+    fun getSafetyCenterData_localeChanged_recomputesEntries() {
+        val defaultLocale = Locale.getDefault()
+        val first = getSafetyCenterData()
+        try {
+            Locale.setDefault(
+                if (defaultLocale == Locale.FRANCE) Locale.GERMANY else Locale.FRANCE)
+
+            val second = getSafetyCenterData()
+
+            assertThat(second.entriesOrGroups.single())
+                .isNotSameInstanceAs(first.entriesOrGroups.single())
+            assertThat(second.staticEntryGroups.single())
+                .isNotSameInstanceAs(first.staticEntryGroups.single())
+        } finally {
+            Locale.setDefault(defaultLocale)
+        }
+    }
+
+    @Test
+    fun clearCache_afterPackageOrDevicePolicyResourceChange_recomputesEntries() {
+        val first = getSafetyCenterData()
+        val newPendingIntent = pendingIntent(1)
+        doReturn(newPendingIntent).`when`(pendingIntentFactory)
+            .getPendingIntent(anyString(), any(), anyString(), anyInt(), anyBoolean())
+
+        val beforeClear = getSafetyCenterData()
+        dataFactory.clearCache()
+        val afterClear = getSafetyCenterData()
+
+        assertThat(beforeClear.staticEntryGroups.single())
+            .isSameInstanceAs(first.staticEntryGroups.single())
+        assertThat(afterClear.staticEntryGroups.single().staticEntries.single().pendingIntent)
+            .isEqualTo(newPendingIntent)
+        assertThat(afterClear.issues.single()).isNotSameInstanceAs(first.issues.single())
+        assertThat(afterClear.entriesOrGroups.single())
+            .isNotSameInstanceAs(first.entriesOrGroups.single())
+    }
+
+    @Test
+    fun clearCache_afterUserRemovedOrDataCleared_dropsRemovedData() {
+        val first = getSafetyCenterData()
+        safetySourceData.clear()
+
+        dataFactory.clearCache()
+        val second = getSafetyCenterData()
+
+        assertThat(first.issues).isNotEmpty()
+        assertThat(second.issues).isEmpty()
+        assertThat(second.entriesOrGroups.single().entry!!.title).isNotEqualTo("Title")
+    }
+
+    private fun getSafetyCenterData(): SafetyCenterData =
+        dataFactory.getSafetyCenterData(PACKAGE_NAME, userProfileGroup)
+
+    private fun collapsibleGroup(): SafetySourcesGroup =
+        SafetySourcesGroup.Builder()
+            .setId("CollapsibleGroup")
+            .setTitleResId(android.R.string.ok)
+            .setSummaryResId(android.R.string.ok)
+            .addSafetySource(
+                SafetySource.Builder(SafetySource.SAFETY_SOURCE_TYPE_DYNAMIC)
+                    .setId(DYNAMIC_SOURCE_ID)
+                    .setPackageName(PACKAGE_NAME)
+                    .setTitleResId(android.R.string.ok)
+                    .setSummaryResId(android.R.string.ok)
+                    .setIntentAction(INTENT_ACTION)
+                    .setProfile(SafetySource.PROFILE_PRIMARY)
+                    .build())
+            .build()
+
+    private fun rigidGroup(): SafetySourcesGroup =
+        SafetySourcesGroup.Builder()
+            .setId("RigidGroup")
+            .setTitleResId(android.R.string.ok)
+            .addSafetySource(
+                SafetySource.Builder(SafetySource.SAFETY_SOURCE_TYPE_STATIC)
+                    .setId(STATIC_SOURCE_ID)
+                    .setTitleResId(android.R.string.ok)
+                    .setSummaryResId(android.R.string.ok)
+                    .setIntentAction(INTENT_ACTION)
+                    .setProfile(SafetySource.PROFILE_PRIMARY)
+                    .build())
+            .build()
+
+    private fun safetySourceData(title: String): SafetySourceData =
+        SafetySourceData.Builder()
+            .setStatus(
+                SafetySourceStatus.Builder(
+                    title, "Summary", SafetySourceData.SEVERITY_LEVEL_RECOMMENDATION)
+                    .setPendingIntent(pendingIntent(0))
+                    .build())
+            .addIssue(
+                SafetySourceIssue.Builder(
+                    "Issue", "Issue title", "Issue summary",
+                    SafetySourceData.SEVERITY_LEVEL_RECOMMENDATION, "IssueType")
+                    .addAction(
+                        SafetySourceIssue.Action.Builder("Action", "Label", pendingIntent(0))
+                            .build())
+                    .build())
+            .build()
+
+    private fun pendingIntent(requestCode: Int): PendingIntent =
+        PendingIntent.getActivity(context, requestCode, Intent(INTENT_ACTION),
+            PendingIntent.FLAG_IMMUTABLE)
+}
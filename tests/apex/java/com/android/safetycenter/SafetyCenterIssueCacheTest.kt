@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.os.Build
+import android.safetycenter.config.SafetyCenterConfig
+import android.util.ArraySet
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.safetycenter.internaldata.SafetyCenterIds
+import com.android.safetycenter.internaldata.SafetyCenterIssueKey
+import com.google.common.truth.Truth.assertThat
+import java.time.Duration
+import java.util.Random
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mock
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.`when`
+import org.mockito.MockitoAnnotations.initMocks
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness
+
+/**
+ * Unit tests that the per-source index and the lazy active issue counts of
+ * [SafetyCenterIssueCache] stay consistent with a linear scan of its issues.
+ */
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.TIRAMISU)
+class SafetyCenterIssueCacheTest {
+
+    companion object {
+        private const val ACTIVE_SOURCE_1 = "ActiveSource1"
+        private const val ACTIVE_SOURCE_2 = "ActiveSource2"
+        private const val INACTIVE_SOURCE = "InactiveSource"
+        private val SOURCES = listOf(ACTIVE_SOURCE_1, ACTIVE_SOURCE_2, INACTIVE_SOURCE)
+        private val USERS = listOf(0, 10, 11)
+        private val ISSUE_IDS = listOf("Issue1", "Issue2", "Issue3", "Issue4")
+        private const val SEVERITY_LEVEL = 300
+    }
+
+    private lateinit var mockitoSession: MockitoSession
+
+    @Mock
+    lateinit var configReader: SafetyCenterConfigReader
+
+    private val inactiveSources = mutableSetOf(INACTIVE_SOURCE)
+
+    private lateinit var issueCache: SafetyCenterIssueCache
+
+    @Before
+    fun setup() {
+        initMocks(this)
+        mockitoSession = mockitoSession()
+            .mockStatic(SafetyCenterFlags::class.java)
+            .strictness(Strictness.LENIENT)
+            .startMocking()
+        `when`(SafetyCenterFlags.getResurfaceIssueMaxCount(anyInt())).thenReturn(1L)
+        `when`(SafetyCenterFlags.getResurfaceIssueDelay(anyInt())).thenReturn(Duration.ofDays(1))
+
+        doAnswer { it.arguments[0] !in inactiveSources }.`when`(configReader)
+            .isExternalSafetySourceActive(anyString())
+
+        issueCache = SafetyCenterIssueCache(configReader)
+    }
+
+    @After
+    fun finish() {
+        mockitoSession.finishMocking()
+    }
+
+    @Test
+    fun updateIssuesForSource_countsMatchLinearScan() {
+        issueCache.updateIssuesForSource(issueIds("Issue1", "Issue2"), ACTIVE_SOURCE_1, 0)
+        issueCache.updateIssuesForSource(issueIds("Issue1"), ACTIVE_SOURCE_2, 0)
+        issueCache.updateIssuesForSource(issueIds("Issue1", "Issue2"), INACTIVE_SOURCE, 0)
+        issueCache.updateIssuesForSource(issueIds("Issue3"), ACTIVE_SOURCE_1, 10)
+
+        assertThat(issueCache.countActiveIssues(profileGroup(0))).isEqualTo(3)
+        assertThat(issueCache.countActiveIssues(profileGroup(0, 10))).isEqualTo(4)
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun updateIssuesForSource_afterCount_updatesCount() {
+        issueCache.updateIssuesForSource(issueIds("Issue1", "Issue2"), ACTIVE_SOURCE_1, 0)
+        assertThat(issueCache.countActiveIssues(profileGroup(0))).isEqualTo(2)
+
+        issueCache.updateIssuesForSource(issueIds("Issue2", "Issue3", "Issue4"), ACTIVE_SOURCE_1, 0)
+
+        assertThat(issueCache.countActiveIssues(profileGroup(0))).isEqualTo(3)
+        assertThat(issueKeys()).containsExactly(
+            issueKey(ACTIVE_SOURCE_1, 0, "Issue2"),
+            issueKey(ACTIVE_SOURCE_1, 0, "Issue3"),
+            issueKey(ACTIVE_SOURCE_1, 0, "Issue4"))
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun dismissIssue_keepsIssueIndexedAndCounted() {
+        issueCache.updateIssuesForSource(issueIds("Issue1", "Issue2"), ACTIVE_SOURCE_1, 0)
+        val key = issueKey(ACTIVE_SOURCE_1, 0, "Issue1")
+
+        issueCache.dismissIssue(key)
+
+        assertThat(issueCache.isIssueDismissed(key, SEVERITY_LEVEL)).isTrue()
+        assertThat(issueCache.countActiveIssues(profileGroup(0))).isEqualTo(2)
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun dismissIssue_afterResurfaceDelay_issueResurfacesAndStaysCounted() {
+        issueCache.updateIssuesForSource(issueIds("Issue1"), ACTIVE_SOURCE_1, 0)
+        val key = issueKey(ACTIVE_SOURCE_1, 0, "Issue1")
+        issueCache.dismissIssue(key)
+        `when`(SafetyCenterFlags.getResurfaceIssueDelay(anyInt())).thenReturn(Duration.ZERO)
+
+        assertThat(issueCache.isIssueDismissed(key, SEVERITY_LEVEL)).isFalse()
+
+        // Once dismissed more than the max resurface count, the issue no longer resurfaces.
+        issueCache.dismissIssue(key)
+        assertThat(issueCache.isIssueDismissed(key, SEVERITY_LEVEL)).isTrue()
+        assertThat(issueCache.countActiveIssues(profileGroup(0))).isEqualTo(1)
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun dismissIssue_reportedAgainAfterRemoval_isNotDismissed() {
+        issueCache.updateIssuesForSource(issueIds("Issue1"), ACTIVE_SOURCE_1, 0)
+        val key = issueKey(ACTIVE_SOURCE_1, 0, "Issue1")
+        issueCache.dismissIssue(key)
+
+        issueCache.updateIssuesForSource(issueIds(), ACTIVE_SOURCE_1, 0)
+        issueCache.updateIssuesForSource(issueIds("Issue1"), ACTIVE_SOURCE_1, 0)
+
+        assertThat(issueCache.isIssueDismissed(key, SEVERITY_LEVEL)).isFalse()
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun clearForUser_removesOnlyIssuesOfUser() {
+        issueCache.updateIssuesForSource(issueIds("Issue1", "Issue2"), ACTIVE_SOURCE_1, 0)
+        issueCache.updateIssuesForSource(issueIds("Issue1"), ACTIVE_SOURCE_2, 10)
+        issueCache.updateIssuesForSource(issueIds("Issue1"), ACTIVE_SOURCE_1, 10)
+        assertThat(issueCache.countActiveIssues(profileGroup(0, 10))).isEqualTo(4)
+
+        issueCache.clearForUser(10)
+
+        assertThat(issueCache.countActiveIssues(profileGroup(0, 10))).isEqualTo(2)
+        assertThat(issueKeys().map { it.userId }.toSet()).containsExactly(0)
+        assertCountsMatchLinearScan()
+
+        // The user's sources are indexed again when they report new issues.
+        issueCache.updateIssuesForSource(issueIds("Issue2"), ACTIVE_SOURCE_1, 10)
+        assertThat(issueCache.countActiveIssues(profileGroup(0, 10))).isEqualTo(3)
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun load_replacesIssuesAndDropsInactiveSources() {
+        issueCache.updateIssuesForSource(issueIds("Issue1", "Issue2"), ACTIVE_SOURCE_1, 0)
+        issueCache.updateIssuesForSource(issueIds("Issue1"), INACTIVE_SOURCE, 0)
+        issueCache.dismissIssue(issueKey(ACTIVE_SOURCE_1, 0, "Issue1"))
+        val snapshot = issueCache.snapshot()
+        val otherIssueCache = SafetyCenterIssueCache(configReader)
+        otherIssueCache.updateIssuesForSource(issueIds("Issue3"), ACTIVE_SOURCE_2, 0)
+        assertThat(otherIssueCache.countActiveIssues(profileGroup(0))).isEqualTo(1)
+
+        otherIssueCache.load(snapshot)
+
+        assertThat(otherIssueCache.countActiveIssues(profileGroup(0))).isEqualTo(2)
+        assertThat(otherIssueCache.isIssueDismissed(
+            issueKey(ACTIVE_SOURCE_1, 0, "Issue1"), SEVERITY_LEVEL)).isTrue()
+        issueCache = otherIssueCache
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun countActiveIssues_configChanged_recountsActiveSources() {
+        issueCache.updateIssuesForSource(issueIds("Issue1", "Issue2"), ACTIVE_SOURCE_1, 0)
+        issueCache.updateIssuesForSource(issueIds("Issue1"), ACTIVE_SOURCE_2, 0)
+        assertThat(issueCache.countActiveIssues(profileGroup(0))).isEqualTo(3)
+
+        inactiveSources.add(ACTIVE_SOURCE_1)
+        doReturn(mock(SafetyCenterConfig::class.java)).`when`(configReader).safetyCenterConfig
+
+        assertThat(issueCache.countActiveIssues(profileGroup(0))).isEqualTo(1)
+        assertCountsMatchLinearScan()
+    }
+
+    @Test
+    fun randomOperations_indexAndCountsMatchLinearScan() {
+        val random = Random(42)
+        val expectedIssueKeys = mutableSetOf<SafetyCenterIssueKey>()
+        repeat(500) {
+            val user = USERS[random.nextInt(USERS.size)]
+            val source = SOURCES[random.nextInt(SOURCES.size)]
+            when (random.nextInt(10)) {
+                in 0..5 -> {
+                    val ids = ISSUE_IDS.filter { random.nextBoolean() }
+                    issueCache.updateIssuesForSource(
+                        issueIds(*ids.toTypedArray()), source, user)
+                    expectedIssueKeys.removeIf {
+                        it.safetySourceId == source && it.userId == user
+                    }
+                    ids.forEach { expectedIssueKeys.add(issueKey(source, user, it)) }
+                }
+                in 6..8 -> {
+                    val key = issueKey(source, user, ISSUE_IDS[random.nextInt(ISSUE_IDS.size)])
+                    issueCache.dismissIssue(key)
+                    if (key in expectedIssueKeys) {
+                        assertThat(issueCache.isIssueDismissed(key, SEVERITY_LEVEL)).isTrue()
+                    }
+                }
+                else -> {
+                    issueCache.clearForUser(user)
+                    expectedIssueKeys.removeIf { it.userId == user }
+                }
+            }
+
+            assertThat(issueKeys()).containsExactlyElementsIn(expectedIssueKeys)
+            assertCountsMatchLinearScan()
+        }
+    }
+
+    /**
+     * Asserts that the active issue counts of every user, alone and with each other user as a
+     * managed profile, match a linear scan of all the issues in the cache.
+     */
+    private fun assertCountsMatchLinearScan() {
+        val issueKeys = issueKeys()
+        fun linearCount(userId: Int): Int =
+            issueKeys.count {
+                it.userId == userId && configReader.isExternalSafetySourceActive(it.safetySourceId)
+            }
+        for (user in USERS) {
+            assertThat(issueCache.countActiveIssues(profileGroup(user)))
+                .isEqualTo(linearCount(user))
+            for (profile in USERS.filter { it != user }) {
+                assertThat(issueCache.countActiveIssues(profileGroup(user, profile)))
+                    .isEqualTo(linearCount(user) + linearCount(profile))
+            }
+        }
+    }
+
+    /** Returns the keys of all the issues in the cache, read through a snapshot. */
+    private fun issueKeys(): List<SafetyCenterIssueKey> =
+        issueCache.snapshot().map { SafetyCenterIds.issueKeyFromString(it.key) }
+
+    private fun profileGroup(profileParentUserId: Int, vararg managedProfilesUserIds: Int) =
+        mock(UserProfileGroup::class.java).also {
+            doReturn(profileParentUserId).`when`(it).profileParentUserId
+            doReturn(managedProfilesUserIds).`when`(it).managedProfilesUserIds
+        }
+
+    private fun issueIds(vararg ids: String): ArraySet<String> = ArraySet(ids.toList())
+
+    private fun issueKey(source: String, userId: Int, issueId: String): SafetyCenterIssueKey =
+        SafetyCenterIssueKey.newBuilder()
+            .setSafetySourceId(source)
+            .setUserId(userId)
+            .setSafetySourceIssueId(issueId)
+            .build()
+}
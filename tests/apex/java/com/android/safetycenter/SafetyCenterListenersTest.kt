@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.os.Binder
+import android.os.Build
+import android.safetycenter.IOnSafetyCenterDataChangedListener
+import android.safetycenter.SafetyCenterData
+import android.safetycenter.SafetyCenterStatus
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permission.util.ForegroundThread
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mock
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.never
+import org.mockito.Mockito.timeout
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when`
+import org.mockito.MockitoAnnotations.initMocks
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness
+
+/**
+ * Unit tests for the updates coalesced by
+ * [SafetyCenterListeners.scheduleUpdateForUserProfileGroup].
+ */
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.TIRAMISU)
+class SafetyCenterListenersTest {
+
+    companion object {
+        private const val PACKAGE_NAME = "package.test"
+        private const val USER_ID = 0
+        private val COALESCING_WINDOW = Duration.ofMillis(200)
+        private const val TIMEOUT_MILLIS = 5000L
+    }
+
+    private lateinit var mockitoSession: MockitoSession
+
+    @Mock
+    lateinit var dataFactory: SafetyCenterDataFactory
+
+    @Mock
+    lateinit var listener: IOnSafetyCenterDataChangedListener
+
+    @Mock
+    lateinit var userProfileGroup: UserProfileGroup
+
+    private val apiLock = ReentrantReadWriteLock()
+
+    private var safetyCenterDataCount = 0
+
+    private lateinit var listeners: SafetyCenterListeners
+
+    @Before
+    fun setup() {
+        initMocks(this)
+        mockitoSession = mockitoSession()
+            .mockStatic(SafetyCenterFlags::class.java)
+            .strictness(Strictness.LENIENT)
+            .startMocking()
+        setCoalescingWindow(COALESCING_WINDOW)
+
+        doReturn(Binder()).`when`(listener).asBinder()
+        doReturn(USER_ID).`when`(userProfileGroup).profileParentUserId
+        doReturn(IntArray(0)).`when`(userProfileGroup).managedRunningProfilesUserIds
+        doReturn(true).`when`(userProfileGroup).contains(USER_ID)
+        // Every update has new data, so that the listener wrapper never skips a delivery.
+        doAnswer { newSafetyCenterData() }.`when`(dataFactory)
+            .getSafetyCenterData(anyString(), any())
+
+        listeners = SafetyCenterListeners(apiLock, dataFactory)
+        withWriteLock { listeners.addListener(listener, PACKAGE_NAME, USER_ID) }
+    }
+
+    @After
+    fun finish() {
+        withWriteLock { listeners.clear() }
+        mockitoSession.finishMocking()
+    }
+
+    @Test
+    fun scheduleUpdate_deliversCoalescedUpdateAfterWindow() {
+        withWriteLock {
+            listeners.scheduleUpdateForUserProfileGroup(userProfileGroup)
+            listeners.scheduleUpdateForUserProfileGroup(userProfileGroup)
+            listeners.scheduleUpdateForUserProfileGroup(userProfileGroup)
+        }
+        verify(listener, never()).onSafetyCenterDataChanged(any())
+
+        verify(listener, timeout(TIMEOUT_MILLIS)).onSafetyCenterDataChanged(any())
+        waitForWindowToElapse()
+
+        verify(listener, times(1)).onSafetyCenterDataChanged(any())
+        verify(dataFactory, times(1)).getSafetyCenterData(anyString(), any())
+    }
+
+    @Test
+    fun scheduleUpdate_afterDeliveredUpdate_schedulesNewUpdate() {
+        withWriteLock { listeners.scheduleUpdateForUserProfileGroup(userProfileGroup) }
+        verify(listener, timeout(TIMEOUT_MILLIS)).onSafetyCenterDataChanged(any())
+
+        withWriteLock { listeners.scheduleUpdateForUserProfileGroup(userProfileGroup) }
+
+        verify(listener, timeout(TIMEOUT_MILLIS).times(2)).onSafetyCenterDataChanged(any())
+    }
+
+    @Test
+    fun scheduleUpdate_refreshEnds_deliversUpdateImmediatelyOnce() {
+        setCoalescingWindow(Duration.ofHours(1))
+        withWriteLock { listeners.scheduleUpdateForUserProfileGroup(userProfileGroup) }
+        verify(listener, never()).onSafetyCenterDataChanged(any())
+
+        // This is what a refresh completing or timing out delivers.
+        withWriteLock { listeners.deliverUpdateForUserProfileGroup(userProfileGroup, true, null) }
+
+        verify(listener, times(1)).onSafetyCenterDataChanged(any())
+    }
+
+    @Test
+    fun scheduleUpdate_refreshEndsWithinWindow_pendingUpdateNotDeliveredAgain() {
+        withWriteLock {
+            listeners.scheduleUpdateForUserProfileGroup(userProfileGroup)
+            listeners.deliverUpdateForUserProfileGroup(userProfileGroup, true, null)
+        }
+        verify(listener, times(1)).onSafetyCenterDataChanged(any())
+
+        waitForWindowToElapse()
+
+        verify(listener, times(1)).onSafetyCenterDataChanged(any())
+    }
+
+    @Test
+    fun scheduleUpdate_noWindow_deliversUpdateImmediately() {
+        setCoalescingWindow(Duration.ZERO)
+
+        withWriteLock { listeners.scheduleUpdateForUserProfileGroup(userProfileGroup) }
+
+        verify(listener, times(1)).onSafetyCenterDataChanged(any())
+    }
+
+    @Test
+    fun clearForUser_cancelsPendingUpdate() {
+        withWriteLock {
+            listeners.scheduleUpdateForUserProfileGroup(userProfileGroup)
+            listeners.clearForUser(USER_ID)
+        }
+
+        waitForWindowToElapse()
+
+        verify(listener, never()).onSafetyCenterDataChanged(any())
+        verify(dataFactory, never()).getSafetyCenterData(anyString(), any())
+    }
+
+    private fun setCoalescingWindow(window: Duration) {
+        `when`(SafetyCenterFlags.getListenerUpdateCoalescingWindow()).thenReturn(window)
+    }
+
+    private fun newSafetyCenterData(): SafetyCenterData {
+        safetyCenterDataCount++
+        return SafetyCenterData(
+            SafetyCenterStatus.Builder("Title $safetyCenterDataCount", "Summary").build(),
+            emptyList(), emptyList(), emptyList())
+    }
+
+    /** Waits for any update scheduled within [COALESCING_WINDOW] to have run. */
+    private fun waitForWindowToElapse() {
+        Thread.sleep(COALESCING_WINDOW.toMillis() * 2)
+        val latch = CountDownLatch(1)
+        ForegroundThread.getHandler().post { latch.countDown() }
+        latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+    }
+
+    private fun <T> withWriteLock(block: () -> T): T {
+        apiLock.writeLock().lock()
+        try {
+            return block()
+        } finally {
+            apiLock.writeLock().unlock()
+        }
+    }
+}